@@ -0,0 +1,143 @@
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.math.BigInteger;
+import java.security.KeyFactory;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.PublicKey;
+import java.security.interfaces.RSAPublicKey;
+import java.security.spec.InvalidKeySpecException;
+import java.security.spec.RSAPublicKeySpec;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The canonical entry for an output address, shared by every {@link Transaction.Output} paying an
+ * equal key. It holds one instance of the key, its encoded exponent and modulus (the bytes
+ * {@code getRawTx} writes), and a SHA-256 fingerprint of them, all computed once per distinct key
+ * instead of once per output and use.
+ *
+ * Entries are interned: {@link #of(PublicKey)} and {@link #of(byte[], byte[])} return the same
+ * entry for equal keys for as long as it is reachable, so entries compare with {@code ==}. The
+ * tables hold them weakly and forget an address once no output refers to it. Looking up an
+ * interned entry takes no lock; only adding one does.
+ */
+final class Address {
+
+    /** held to add entries and drop cleared ones, so both tables agree */
+    private static final Object LOCK = new Object();
+    private static final ConcurrentHashMap<PublicKey, Ref> BY_KEY =
+            new ConcurrentHashMap<PublicKey, Ref>();
+    private static final ConcurrentHashMap<Hash256, Ref> BY_FINGERPRINT =
+            new ConcurrentHashMap<Hash256, Ref>();
+    private static final ReferenceQueue<Address> CLEARED = new ReferenceQueue<Address>();
+
+    /**
+     * a table entry, which remembers its keys so it can be removed once cleared. Holding the
+     * public key does not keep the entry alive: the key does not refer to it.
+     */
+    private static final class Ref extends WeakReference<Address> {
+        final PublicKey key;
+        final Hash256 fingerprint;
+
+        Ref(Address address) {
+            super(address, CLEARED);
+            key = address.key;
+            fingerprint = address.fingerprint;
+        }
+    }
+
+    final PublicKey key;
+    /** the big-endian bytes of the public exponent and the modulus; do not modify */
+    final byte[] exponent;
+    final byte[] modulus;
+    /** SHA-256 of the exponent's length and bytes followed by the modulus's length and bytes */
+    final Hash256 fingerprint;
+
+    private Address(PublicKey key, byte[] exponent, byte[] modulus) {
+        this.key = key;
+        this.exponent = exponent;
+        this.modulus = modulus;
+        try {
+            MessageDigest md = MessageDigest.getInstance("SHA-256");
+            md.update(lengthOf(exponent));
+            md.update(exponent);
+            md.update(lengthOf(modulus));
+            md.update(modulus);
+            fingerprint = Hash256.of(md.digest());
+        } catch (NoSuchAlgorithmException x) {
+            throw new IllegalStateException(x);
+        }
+    }
+
+    /** @return the entry for {@code key}, creating it if no equal key has one */
+    static Address of(PublicKey key) {
+        Address a = get(BY_KEY.get(key));
+        if (a != null)
+            return a;
+        RSAPublicKey rsa = (RSAPublicKey) key;
+        Address made = new Address(key, rsa.getPublicExponent().toByteArray(),
+                rsa.getModulus().toByteArray());
+        return intern(made);
+    }
+
+    /**
+     * @return the entry for the RSA key with these encoded exponent and modulus, building the key
+     *         only if no entry has exactly these bytes yet
+     * @throws InvalidKeySpecException if they do not make an RSA key
+     */
+    static Address of(byte[] exponent, byte[] modulus) throws InvalidKeySpecException {
+        Address probe = new Address(null, exponent, modulus);
+        Address a = get(BY_FINGERPRINT.get(probe.fingerprint));
+        if (a != null)
+            return a;
+        PublicKey key;
+        try {
+            key = KeyFactory.getInstance("RSA").generatePublic(
+                    new RSAPublicKeySpec(new BigInteger(modulus), new BigInteger(exponent)));
+        } catch (NoSuchAlgorithmException x) {
+            throw new IllegalStateException(x);
+        } catch (NumberFormatException x) {
+            throw new InvalidKeySpecException(x);
+        }
+        // The entry keeps the key's canonical encoding, which these bytes may not be.
+        return of(key);
+    }
+
+    /** @return the entry already interned for an equal key, or {@code made} once interned */
+    private static Address intern(Address made) {
+        synchronized (LOCK) {
+            expunge();
+            Address a = get(BY_KEY.get(made.key));
+            if (a == null)
+                a = get(BY_FINGERPRINT.get(made.fingerprint));
+            if (a != null)
+                return a;
+            Ref ref = new Ref(made);
+            BY_KEY.put(made.key, ref);
+            BY_FINGERPRINT.put(made.fingerprint, ref);
+            return made;
+        }
+    }
+
+    public int hashCode() {
+        return fingerprint.hashCode();
+    }
+
+    private static Address get(Ref ref) {
+        return ref == null ? null : ref.get();
+    }
+
+    /** Drops cleared entries from both tables; the caller holds {@code LOCK} */
+    private static void expunge() {
+        Ref ref;
+        while ((ref = (Ref) CLEARED.poll()) != null) {
+            BY_KEY.remove(ref.key, ref);
+            BY_FINGERPRINT.remove(ref.fingerprint, ref);
+        }
+    }
+
+    private static byte[] lengthOf(byte[] a) {
+        int n = a.length;
+        return new byte[] { (byte) (n >>> 24), (byte) (n >>> 16), (byte) (n >>> 8), (byte) n };
+    }
+}
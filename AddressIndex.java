@@ -0,0 +1,88 @@
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * The UTXOs of a {@link UTXOPool} grouped by the interned {@link Address} they pay, so the
+ * outputs of one address are found in time proportional to their number. Forks like
+ * {@link PersistentHashMap}: forking is O(1), and each side copies an address's outputs map only
+ * when it first writes to it.
+ */
+final class AddressIndex {
+
+    /** the outputs of one address, and the index allowed to change them in place */
+    private static final class Outputs {
+        final PersistentHashMap<UTXO, Transaction.Output> map;
+        final Object edit;
+
+        Outputs(PersistentHashMap<UTXO, Transaction.Output> map, Object edit) {
+            this.map = map;
+            this.edit = edit;
+        }
+    }
+
+    private final PersistentHashMap<Address, Outputs> byAddress;
+    /** marks the {@link Outputs} this index created since its last fork, or null once frozen */
+    private Object edit = new Object();
+
+    AddressIndex() {
+        byAddress = new PersistentHashMap<Address, Outputs>();
+    }
+
+    private AddressIndex(PersistentHashMap<Address, Outputs> byAddress) {
+        this.byAddress = byAddress;
+    }
+
+    void add(UTXO utxo, Transaction.Output txOut) {
+        writable(txOut.getAddressEntry()).map.put(utxo, txOut);
+    }
+
+    void remove(UTXO utxo, Transaction.Output txOut) {
+        Address address = txOut.getAddressEntry();
+        Outputs outputs = byAddress.get(address);
+        if (outputs == null || outputs.map.get(utxo) == null)
+            return;
+        if (outputs.map.size() == 1) {
+            byAddress.remove(address);
+            return;
+        }
+        writable(address).map.remove(utxo);
+    }
+
+    /** @return the number of UTXOs paying {@code address} */
+    int count(Address address) {
+        Outputs outputs = byAddress.get(address);
+        return outputs == null ? 0 : outputs.map.size();
+    }
+
+    /** Iterates over the UTXOs paying {@code address} and their outputs, as of this call */
+    Iterator<Map.Entry<UTXO, Transaction.Output>> outputs(Address address) {
+        Outputs outputs = byAddress.get(address);
+        if (outputs == null)
+            return new PersistentHashMap<UTXO, Transaction.Output>().sharedIterator();
+        // Only the index that created an Outputs since its last fork writes to it again.
+        return outputs.edit == edit ? outputs.map.iterator() : outputs.map.sharedIterator();
+    }
+
+    /** @return an index with the same contents that shares all structure with this one */
+    AddressIndex fork() {
+        if (edit != null)
+            edit = new Object();
+        return new AddressIndex(byAddress.fork());
+    }
+
+    /** Makes this index read-only; forking and reading it then write nothing to it */
+    void freeze() {
+        byAddress.freeze();
+        edit = null;
+    }
+
+    private Outputs writable(Address address) {
+        Outputs outputs = byAddress.get(address);
+        if (outputs != null && outputs.edit == edit)
+            return outputs;
+        outputs = new Outputs(outputs == null ? new PersistentHashMap<UTXO, Transaction.Output>()
+                : outputs.map.share(), edit);
+        byAddress.put(address, outputs);
+        return outputs;
+    }
+}
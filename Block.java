@@ -9,9 +9,15 @@ public class Block {
     public static final double COINBASE = 25;
 
     private byte[] hash;
+    /** {@code hash} as a map key, made on first use */
+    private Hash256 hashId;
     private byte[] prevBlockHash;
     private Transaction coinbase;
     private ArrayList<Transaction> txs;
+    /** non-null when the block hash commits to a Merkle root of the transaction hashes */
+    private MerkleTree merkleTree;
+    /** the transactions whose hashes are the current leaves of {@code merkleTree} */
+    private ArrayList<Transaction> merkleLeaves;
 
     /** {@code address} is the address to which the coinbase transaction would go */
     public Block(byte[] prevHash, PublicKey address) {
@@ -20,6 +26,20 @@ public class Block {
         txs = new ArrayList<Transaction>();
     }
 
+    /**
+     * If {@code merkleRoot} is true, the block hash is the SHA-256 of the previous block hash
+     * followed by the Merkle root of the transaction hashes, instead of the hash of
+     * {@link #getRawBlock()}. The tree is updated as transactions are added, so finalizing again
+     * after adding one transaction costs O(log n) hashes.
+     */
+    public Block(byte[] prevHash, PublicKey address, boolean merkleRoot) {
+        this(prevHash, address);
+        if (merkleRoot) {
+            merkleTree = new MerkleTree();
+            merkleLeaves = new ArrayList<Transaction>();
+        }
+    }
+
     public Transaction getCoinbase() {
         return coinbase;
     }
@@ -28,6 +48,20 @@ public class Block {
         return hash;
     }
 
+    /** @return the hash of this block as a {@link Hash256}, or null before it is finalized */
+    public Hash256 getHashId() {
+        Hash256 id = hashId;
+        if (id == null && hash != null)
+            hashId = id = Hash256.of(hash);
+        return id;
+    }
+
+    /** Sets a hash already known to be this block's, e.g. when decoding a stored block */
+    void setHash(byte[] h) {
+        hash = h;
+        hashId = null;
+    }
+
     public byte[] getPrevBlockHash() {
         return prevBlockHash;
     }
@@ -42,30 +76,86 @@ public class Block {
 
     public void addTransaction(Transaction tx) {
         txs.add(tx);
+        if (merkleTree != null && tx.getHash() != null && merkleLeaves.size() == txs.size() - 1) {
+            merkleTree.add(tx.getHash());
+            merkleLeaves.add(tx);
+        }
+    }
+
+    /** @return true if the block hash commits to a Merkle root of its transactions */
+    public boolean isMerkleRootHash() {
+        return merkleTree != null;
+    }
+
+    /** @return the Merkle root of the transaction hashes, or null in flat hash mode */
+    public byte[] getMerkleRoot() {
+        if (merkleTree == null)
+            return null;
+        syncMerkleTree();
+        return merkleTree.getRoot();
+    }
+
+    /**
+     * @return the proof that transaction {@code index} is in this block, checkable with
+     *         {@link MerkleTree#verifyProof} against {@link #getMerkleRoot()} and the number of
+     *         transactions, or null in flat hash mode
+     */
+    public ArrayList<byte[]> getMerkleProof(int index) {
+        if (merkleTree == null)
+            return null;
+        syncMerkleTree();
+        return merkleTree.getProof(index);
+    }
+
+    /**
+     * Brings the tree in line with {@code txs}, which callers may have changed through
+     * {@link #getTransactions()} or by re-finalizing a transaction. Leaves before the first
+     * difference are kept.
+     */
+    private void syncMerkleTree() {
+        int keep = 0;
+        int n = Math.min(merkleLeaves.size(), txs.size());
+        while (keep < n && merkleLeaves.get(keep) == txs.get(keep)
+                && merkleTree.getLeaf(keep) == txs.get(keep).getHash())
+            keep++;
+        if (keep == merkleLeaves.size() && keep == txs.size())
+            return;
+        merkleTree.truncate(keep);
+        merkleLeaves.subList(keep, merkleLeaves.size()).clear();
+        ArrayList<byte[]> leaves = new ArrayList<byte[]>(txs.size() - keep);
+        for (int i = keep; i < txs.size(); i++) {
+            Transaction tx = txs.get(i);
+            leaves.add(tx.getHash() != null ? tx.getHash() : hashOf(tx));
+            merkleLeaves.add(tx);
+        }
+        merkleTree.addAll(leaves);
     }
 
     public byte[] getRawBlock() {
-        ArrayList<Byte> rawBlock = new ArrayList<Byte>();
-        if (prevBlockHash != null)
-            for (int i = 0; i < prevBlockHash.length; i++)
-                rawBlock.add(prevBlockHash[i]);
-        for (int i = 0; i < txs.size(); i++) {
-            byte[] rawTx = txs.get(i).getRawTx();
-            for (int j = 0; j < rawTx.length; j++) {
-                rawBlock.add(rawTx[j]);
-            }
+        return RawEncoder.local().rawBlock(this);
+    }
+
+    private static byte[] hashOf(Transaction tx) {
+        try {
+            return RawEncoder.local().hashTx(tx);
+        } catch (NoSuchAlgorithmException x) {
+            throw new IllegalStateException(x);
         }
-        byte[] raw = new byte[rawBlock.size()];
-        for (int i = 0; i < raw.length; i++)
-            raw[i] = rawBlock.get(i);
-        return raw;
     }
 
     public void finalize() {
         try {
-            MessageDigest md = MessageDigest.getInstance("SHA-256");
-            md.update(getRawBlock());
-            hash = md.digest();
+            if (merkleTree != null) {
+                MessageDigest md = MessageDigest.getInstance("SHA-256");
+                if (prevBlockHash != null)
+                    md.update(prevBlockHash);
+                md.update(getMerkleRoot());
+                hash = md.digest();
+                hashId = null;
+                return;
+            }
+            hash = RawEncoder.local().hashBlock(this);
+            hashId = null;
         } catch (NoSuchAlgorithmException x) {
             x.printStackTrace(System.err);
         }
@@ -0,0 +1,346 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Append-only store for blocks that {@link BlockChain} no longer keeps in memory. Blocks are
+ * written in the {@link WireFormat} encoding to segment files {@code blocks-NNNNN.dat}, each record
+ * being its length, the block height and the encoded block; a zero length ends a segment. An
+ * in-memory index maps block hashes and heights to record locations and is rebuilt by scanning
+ * the segments on open, up to the first record that is torn or does not decode.
+ *
+ * Each segment is mapped once, at its full size, and records are written into the mapping, so a
+ * read decodes straight from it without mapping again. {@link #getBlockView} does not decode at
+ * all: it returns a {@link WireFormat.BlockView} over the record in the mapping. {@link #append}
+ * only queues the block; a background thread does the writing. Reads see queued blocks as well.
+ * A block whose write fails is dropped and the failure is reported by the next {@link #flush}.
+ */
+public class BlockArchive {
+
+    public static final long DEFAULT_SEGMENT_SIZE = 128L << 20;
+
+    private static final int RECORD_HEADER = 8;
+
+    private final Path dir;
+    private final long segmentSize;
+    private final ArrayList<FileChannel> segments = new ArrayList<FileChannel>();
+    private final ArrayList<MappedByteBuffer> mappings = new ArrayList<MappedByteBuffer>();
+    /** where the next record goes in each segment */
+    private final ArrayList<Integer> ends = new ArrayList<Integer>();
+    private final HashMap<Hash256, Location> byHash = new HashMap<Hash256, Location>();
+    private final HashMap<Integer, ArrayList<byte[]>> byHeight =
+            new HashMap<Integer, ArrayList<byte[]>>();
+    /** blocks queued but not yet written */
+    private final HashMap<Hash256, Block> pending = new HashMap<Hash256, Block>();
+    private final ExecutorService writer;
+    private Future<?> lastWrite;
+    /** the first write failure not yet reported by {@link #flush}, or null */
+    private IOException writeFailure;
+    private boolean closed;
+
+    private static class Location {
+        final int segment;
+        final long offset;
+        final int length;
+
+        Location(int segment, long offset, int length) {
+            this.segment = segment;
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+
+    public BlockArchive(Path dir) throws IOException {
+        this(dir, DEFAULT_SEGMENT_SIZE);
+    }
+
+    /** Opens the archive in {@code dir}, creating it if needed */
+    public BlockArchive(Path dir, long segmentSize) throws IOException {
+        if (segmentSize <= 0 || segmentSize > Integer.MAX_VALUE)
+            throw new IllegalArgumentException("segment size must be positive and under 2 GiB");
+        this.dir = dir;
+        this.segmentSize = segmentSize;
+        Files.createDirectories(dir);
+        for (int i = 0; Files.exists(segmentPath(i)); i++)
+            scan(i);
+        writer = Executors.newSingleThreadExecutor(r -> {
+            Thread t = new Thread(r, "block-archive-writer");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /**
+     * Queues {@code block}, found at {@code height}, to be written by the background thread
+     *
+     * @throws IllegalStateException if the archive is closed
+     */
+    public synchronized void append(final Block block, final int height) {
+        if (closed)
+            throw new IllegalStateException("archive is closed");
+        final Hash256 hash = block.getHashId();
+        if (byHash.containsKey(hash) || pending.containsKey(hash))
+            return;
+        final byte[] hashBytes = block.getHash();
+        try {
+            lastWrite = writer.submit(() -> write(hash, hashBytes, block, height));
+        } catch (RejectedExecutionException e) {
+            throw new IllegalStateException("archive is closed", e);
+        }
+        pending.put(hash, block);
+        heightList(height).add(hashBytes);
+    }
+
+    /**
+     * @return the archived block with hash {@code hash}, decoded in full, or null;
+     *         {@link #getBlockView} reads it without decoding
+     */
+    public Block getBlock(byte[] hash) throws IOException {
+        Hash256 key = Hash256.of(hash);
+        Location loc;
+        synchronized (this) {
+            Block queued = pending.get(key);
+            if (queued != null)
+                return queued;
+            loc = byHash.get(key);
+        }
+        if (loc == null)
+            return null;
+        return WireFormat.readBlock(record(loc));
+    }
+
+    /**
+     * @return a view of the archived block with hash {@code hash} over its record in the
+     *         mapping, which decodes only the fields asked for, or null. A block still queued is
+     *         encoded for the view.
+     */
+    public WireFormat.BlockView getBlockView(byte[] hash) {
+        Hash256 key = Hash256.of(hash);
+        Location loc;
+        synchronized (this) {
+            Block queued = pending.get(key);
+            if (queued != null)
+                return WireFormat.viewBlock(ByteBuffer.wrap(WireFormat.encode(queued)));
+            loc = byHash.get(key);
+        }
+        if (loc == null)
+            return null;
+        return WireFormat.viewBlock(record(loc));
+    }
+
+    /** @return every archived block at {@code height}, in the order they were appended */
+    public ArrayList<Block> getBlocksAtHeight(int height) throws IOException {
+        ArrayList<byte[]> hashes = new ArrayList<byte[]>();
+        synchronized (this) {
+            ArrayList<byte[]> atHeight = byHeight.get(height);
+            if (atHeight != null)
+                hashes.addAll(atHeight);
+        }
+        ArrayList<Block> blocks = new ArrayList<Block>(hashes.size());
+        for (byte[] hash : hashes) {
+            Block block = getBlock(hash);
+            if (block != null)
+                blocks.add(block);
+        }
+        return blocks;
+    }
+
+    public synchronized boolean contains(byte[] hash) {
+        Hash256 key = Hash256.of(hash);
+        return byHash.containsKey(key) || pending.containsKey(key);
+    }
+
+    public synchronized int size() {
+        return byHash.size() + pending.size();
+    }
+
+    /**
+     * Waits until every queued block is written, then forces the segments to disk
+     *
+     * @throws IOException if a block could not be written since the last call; that block is not
+     *         in the archive
+     */
+    public void flush() throws IOException {
+        Future<?> last;
+        synchronized (this) {
+            last = lastWrite;
+        }
+        if (last != null) {
+            try {
+                last.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("interrupted while flushing", e);
+            } catch (ExecutionException e) {
+                throw new IOException("archive write failed", e.getCause());
+            }
+        }
+        IOException failure;
+        synchronized (this) {
+            for (MappedByteBuffer map : mappings)
+                map.force();
+            failure = writeFailure;
+            writeFailure = null;
+        }
+        if (failure != null)
+            throw new IOException("archive write failed", failure);
+    }
+
+    public void close() throws IOException {
+        synchronized (this) {
+            if (closed)
+                return;
+            closed = true;
+        }
+        try {
+            flush();
+        } finally {
+            writer.shutdown();
+            synchronized (this) {
+                for (FileChannel ch : segments)
+                    ch.close();
+            }
+        }
+    }
+
+    /** Runs on the writer thread; a failure drops the block and is kept for {@link #flush} */
+    private Void write(Hash256 hash, byte[] hashBytes, Block block, int height) {
+        try {
+            byte[] encoded = WireFormat.encode(block);
+            int length = RECORD_HEADER + encoded.length;
+            int segment;
+            int offset;
+            MappedByteBuffer map;
+            synchronized (this) {
+                segment = segments.size() - 1;
+                // Start a new segment when the current one would overflow, unless it is empty.
+                if (segment < 0
+                        || (ends.get(segment) + (long) length > mappings.get(segment).capacity()
+                                && ends.get(segment) > 0)) {
+                    segment = segments.size();
+                    openSegment(segment, length);
+                }
+                map = mappings.get(segment);
+                offset = ends.get(segment);
+                // An oversized block in an empty segment: map it large enough.
+                if (offset + (long) length > map.capacity())
+                    map = remap(segment, length);
+            }
+            // The length goes in last; a record cut short by a crash is dropped by scan.
+            ByteBuffer b = map.duplicate();
+            b.position(offset + RECORD_HEADER);
+            b.put(encoded);
+            b.putInt(offset + 4, height);
+            b.putInt(offset, encoded.length);
+            synchronized (this) {
+                ends.set(segment, offset + length);
+                byHash.put(hash, new Location(segment, offset, encoded.length));
+                pending.remove(hash);
+            }
+        } catch (IOException | RuntimeException e) {
+            synchronized (this) {
+                pending.remove(hash);
+                ArrayList<byte[]> atHeight = byHeight.get(height);
+                if (atHeight != null)
+                    atHeight.remove(hashBytes);
+                if (writeFailure == null)
+                    writeFailure = e instanceof IOException ? (IOException) e : new IOException(e);
+            }
+        }
+        return null;
+    }
+
+    /** @return a read-only view of the encoded block at {@code loc}, backed by the mapping */
+    private ByteBuffer record(Location loc) {
+        MappedByteBuffer map;
+        synchronized (this) {
+            map = mappings.get(loc.segment);
+        }
+        ByteBuffer view = map.asReadOnlyBuffer();
+        view.position((int) loc.offset + RECORD_HEADER);
+        view.limit((int) loc.offset + RECORD_HEADER + loc.length);
+        return view.slice();
+    }
+
+    /** Indexes the records of segment {@code segment} up to the first torn or undecodable one */
+    private void scan(int segment) throws IOException {
+        MappedByteBuffer map = openSegment(segment, 0);
+        long size = map.capacity();
+        int pos = 0;
+        while (pos + RECORD_HEADER <= size) {
+            int length = map.getInt(pos);
+            int height = map.getInt(pos + 4);
+            if (length <= 0 || pos + RECORD_HEADER + (long) length > size)
+                break; // the end, or a torn write at the tail
+            ByteBuffer view = map.asReadOnlyBuffer();
+            view.position(pos + RECORD_HEADER);
+            view.limit(pos + RECORD_HEADER + length);
+            byte[] hash;
+            try {
+                WireFormat.BlockView block = WireFormat.viewBlock(view.slice());
+                hash = block.getHash();
+                if (block.encodedLength() != length || hash == null)
+                    break;
+            } catch (WireFormat.FormatException e) {
+                break; // a corrupt record; keep what comes before it
+            }
+            byHash.put(Hash256.of(hash), new Location(segment, pos, length));
+            heightList(height).add(hash);
+            pos += RECORD_HEADER + length;
+        }
+        ends.set(segment, pos);
+        // Clear what follows, so the next record written here is not mistaken for a longer one.
+        if (pos + 4 <= size && map.getInt(pos) != 0) {
+            segments.get(segment).truncate(pos);
+            remap(segment, 0);
+        }
+    }
+
+    private ArrayList<byte[]> heightList(int height) {
+        ArrayList<byte[]> list = byHeight.get(height);
+        if (list == null) {
+            list = new ArrayList<byte[]>();
+            byHeight.put(height, list);
+        }
+        return list;
+    }
+
+    /** Opens segment {@code i} and maps at least {@code minSize} bytes of it, and the whole file */
+    private MappedByteBuffer openSegment(int i, int minSize) throws IOException {
+        FileChannel ch = FileChannel.open(segmentPath(i), StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        segments.add(ch);
+        mappings.add(null);
+        ends.add(0);
+        return remap(i, minSize);
+    }
+
+    /**
+     * Maps segment {@code i} anew, at the larger of its file size, the segment size and
+     * {@code minSize}
+     */
+    private MappedByteBuffer remap(int i, int minSize) throws IOException {
+        FileChannel ch = segments.get(i);
+        long length = Math.max(Math.max(ch.size(), segmentSize), minSize);
+        if (length > Integer.MAX_VALUE)
+            throw new IOException(segmentPath(i) + " is too large");
+        MappedByteBuffer map = ch.map(FileChannel.MapMode.READ_WRITE, 0, length);
+        mappings.set(i, map);
+        return map;
+    }
+
+    private Path segmentPath(int i) {
+        return dir.resolve(String.format("blocks-%05d.dat", i));
+    }
+}
@@ -2,52 +2,264 @@
 // You should not have all the blocks added to the block chain in memory 
 // as it would cause a memory overflow.
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.security.PublicKey;
 import java.util.HashMap;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.concurrent.atomic.AtomicReference;
 
+/**
+ * Safe for use from several threads. {@link #addBlock} calls run one at a time;
+ * {@link #addTransaction} may run alongside them. The max height block, its height and its UTXO
+ * pool are published together as one immutable snapshot, so {@link #getMaxHeightBlock} and
+ * {@link #getMaxHeightUTXOPool} never block and always agree with each other.
+ */
 public class BlockChain {
     public static final int CUT_OFF_AGE = 10;
 
+    /** only read and written by {@link #addBlock} */
     private Integer currentHeight = 0;
+    private final AtomicReference<Tip> tip = new AtomicReference<Tip>();
+    private volatile boolean parallelVerification;
+    private volatile boolean dependencyOrdering;
+    private volatile boolean mempoolValidation;
+    private final SignatureCache signatureCache = new SignatureCache();
 
     HashMap<Integer, ArrayList<Block>> heightBlockMap;
-    HashMap<ByteArrayWrapper, BlockModel> hashBlockMap;
+    HashMap<Hash256, BlockModel> hashBlockMap;
     TransactionPool txPool;
+    /** the empty pool the genesis block's pool is copied from */
+    private final UTXOPool emptyPool;
+    /** where blocks whose parent is unknown wait for it, or null to reject them */
+    private volatile OrphanBlockPool orphanPool;
+    /** where pruned blocks go, or null to drop them */
+    private volatile BlockArchive archive;
+    /** where timings, transaction counts and sizes go, or null to measure nothing */
+    private volatile Metrics metrics;
+    /** the next block's transactions, kept up to date under the txPool lock, or null */
+    private BlockTemplate template;
+    /** the block whose UTXO pool {@link #tip} holds */
+    private BlockModel tipModel;
+    /**
+     * the last block whose delta is written to {@code emptyPool}'s store, if disk-backed; no
+     * kept block looks past it
+     */
+    private BlockModel committedModel;
+    /** the blocks whose published pools have a lineage that has not expired, if disk-backed */
+    private final ArrayList<BlockModel> lineages = new ArrayList<BlockModel>();
+    /** why writing to {@code emptyPool}'s store last failed, or null; no block is added once set */
+    private IOException storeFailure;
 
     /**
      * create an empty block chain with just a genesis block. Assume {@code genesisBlock} is a valid
      * block
      */
     public BlockChain(Block genesisBlock) {
+        this(genesisBlock, new UTXOPool());
+    }
+
+    /**
+     * create a block chain whose UTXO set lives in memory-mapped files in {@code utxoDir}, so it
+     * can outgrow the heap. Each block's changes are written to disk once the block is the only
+     * one left at the lowest height still kept. Call {@link #close} when done with the chain.
+     *
+     * @throws java.nio.file.FileAlreadyExistsException if {@code utxoDir} already holds a UTXO set
+     */
+    public BlockChain(Block genesisBlock, Path utxoDir) throws IOException {
+        this(genesisBlock, UTXOPool.mapped(utxoDir));
+    }
+
+    private BlockChain(Block genesisBlock, UTXOPool emptyPool) {
         // IMPLEMENT THIS
+        this.emptyPool = emptyPool;
         heightBlockMap = new HashMap<Integer, ArrayList<Block>>();
-        hashBlockMap = new HashMap<ByteArrayWrapper, BlockModel>();
+        hashBlockMap = new HashMap<Hash256, BlockModel>();
         txPool = new TransactionPool();
         addBlock(genesisBlock);
     }
 
+    /** Forces the UTXO changes written so far to disk; does nothing for an in-memory chain */
+    public synchronized void flush() throws IOException {
+        emptyPool.flush();
+    }
+
+    /**
+     * Writes the UTXO changes so far to disk and closes the files of a disk-backed chain, and
+     * closes the block archive, if one is set. The chain must not be used afterwards.
+     */
+    public synchronized void close() throws IOException {
+        try {
+            emptyPool.close();
+        } finally {
+            BlockArchive a = archive;
+            if (a != null)
+                a.close();
+        }
+    }
+
+    /**
+     * Verify the input signatures of each incoming block in parallel before connecting it. The
+     * set of accepted blocks is the same as with serial verification.
+     */
+    public void setParallelVerification(boolean parallel) {
+        parallelVerification = parallel;
+    }
+
+    /**
+     * Accept blocks whose transactions spend outputs of transactions listed later in the same
+     * block. By default such a block is rejected.
+     */
+    public void setDependencyOrdering(boolean ordering) {
+        dependencyOrdering = ordering;
+    }
+
+    /**
+     * Check each transaction given to {@link #addTransaction} once, against the tip UTXO pool and
+     * the pooled transactions, and drop it if it is invalid or spends an outpoint a pooled
+     * transaction already spends; see {@link TransactionPool#admitTransaction}. When the tip
+     * moves, the pool is then updated incrementally: transactions of the blocks joining the
+     * chain leave it along with those conflicting with them, and transactions of blocks leaving
+     * the chain are offered back. By default any transaction is pooled unchecked.
+     */
+    public void setMempoolValidation(boolean validation) {
+        mempoolValidation = validation;
+    }
+
+    /**
+     * Keep the transactions of the next block on the tip, up to {@code maxTxs} of them, up to date
+     * as transactions are added, so {@link #newTemplateBlock} does not have to select them from
+     * the pool; after the tip moves they are selected again on the next {@link #newTemplateBlock}.
+     * See {@link BlockTemplate}. Zero or less stops keeping them.
+     */
+    public void setBlockTemplateSize(int maxTxs) {
+        synchronized (txPool) {
+            if (maxTxs <= 0)
+                template = null;
+            else if (template == null || template.getMaxTransactions() != maxTxs)
+                template = new BlockTemplate(maxTxs);
+        }
+    }
+
+    /**
+     * Create a block on the tip that pays its coinbase to {@code address} and holds the
+     * transactions of the block template, not yet finalized.
+     *
+     * @return the block, or null if no template is kept
+     */
+    Block newTemplateBlock(PublicKey address) {
+        ArrayList<Transaction> txs;
+        Block parent;
+        synchronized (txPool) {
+            if (template == null)
+                return null;
+            Tip t = tip.get();
+            parent = t.block;
+            txs = template.transactionsFor(t.block, t.utxoPool, txPool, signatureCache);
+        }
+        Block block = new Block(parent.getHash(), address);
+        for (Transaction tx : txs)
+            block.addTransaction(tx);
+        return block;
+    }
+
+    /**
+     * Get the cache of input signatures already found valid by this block chain. Share it with
+     * any {@link TxHandler} that validates transactions headed for this chain.
+     */
+    public SignatureCache getSignatureCache() {
+        return signatureCache;
+    }
+
+    /**
+     * Write blocks to {@code archive} once they fall below {@code CUT_OFF_AGE}, instead of
+     * dropping them. The archive writes on its own thread, off the {@link #addBlock} path.
+     * {@link #close} closes it.
+     */
+    public void setBlockArchive(BlockArchive archive) {
+        this.archive = archive;
+    }
+
+    /**
+     * Buffer blocks whose parent has not been added yet in {@code pool}, instead of dropping them.
+     * {@link #addBlock} still returns false for such a block, but adds it as soon as its parent
+     * is added, along with any buffered descendants.
+     */
+    public void setOrphanPool(OrphanBlockPool pool) {
+        orphanPool = pool;
+    }
+
+    public OrphanBlockPool getOrphanPool() {
+        return orphanPool;
+    }
+
+    /**
+     * Record block and transaction processing in {@code metrics}: stage timings, the transactions
+     * accepted and rejected while validating blocks, transactions evicted from the transaction
+     * pool, and the sizes of the UTXO pool, the transaction pool and the set of kept blocks.
+     * Transactions are counted only when a block is validated, not when they are admitted to the
+     * pool or selected for a new block, so each is counted once. Null switches it off.
+     */
+    public void setMetrics(Metrics metrics) {
+        this.metrics = metrics;
+        txPool.setMetrics(metrics);
+    }
+
+    public Metrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Index the UTXO pools of this chain by address, see {@link UTXOPool#enableAddressIndex}. The
+     * pool of every block added from now on, and the current {@link #getMaxHeightUTXOPool}, answer
+     * address queries in time proportional to the outputs of that address.
+     */
+    public synchronized void enableAddressIndex() {
+        Tip t = tip.get();
+        if (t.utxoPool.hasAddressIndex())
+            return;
+        UTXOPool indexed = new UTXOPool(t.utxoPool);
+        indexed.enableAddressIndex();
+        indexed.freeze();
+        synchronized (txPool) {
+            tip.set(new Tip(t.block, t.height, indexed));
+        }
+    }
+
     /** Get the maximum height block */
     public Block getMaxHeightBlock() {
         // IMPLEMENT THIS
-        ArrayList<Block> blockList = heightBlockMap.get(currentHeight);
-        if (blockList != null) {
-            Block maxHeightBlock = blockList.get(0);
-            return maxHeightBlock;
-        }
-        return null;
+        Tip t = tip.get();
+        return t == null ? null : t.block;
+    }
+
+    /** @return the max height block, its height and its pool as one consistent snapshot */
+    Tip getTip() {
+        return tip.get();
     }
 
-    /** Get the UTXOPool for mining a new block on top of max height block */
+    /** Get the height of the maximum height block, the genesis block being at height 1 */
+    public int getMaxHeight() {
+        Tip t = tip.get();
+        return t == null ? 0 : t.height;
+    }
+
+    /**
+     * Get the UTXOPool for mining a new block on top of max height block. The pool is the chain's
+     * own snapshot and is read-only: changing it throws {@link IllegalStateException}. Any number
+     * of threads may read it, and {@code new UTXOPool(pool)} gives a changeable copy in O(1).
+     * For a disk-backed chain, the pool and its copies stay readable until blocks that its block
+     * does not lead to are written to disk: once its block falls {@code CUT_OFF_AGE} behind, or
+     * after the chain switches away from it. Reading them then throws
+     * {@link IllegalStateException}.
+     */
     public UTXOPool getMaxHeightUTXOPool() {
         // IMPLEMENT THIS
-        ArrayList<Block> blockList = heightBlockMap.get(currentHeight);
-        if(blockList != null) {
-            Block maxHeightBlock = blockList.get(0);
-            ByteArrayWrapper maxHeightBlockHash = new ByteArrayWrapper(maxHeightBlock.getHash());
-            BlockModel blockModel = hashBlockMap.get(maxHeightBlockHash);
-            return blockModel.utxoPool;
-        }
-        return null;
+        Tip t = tip.get();
+        return t == null ? null : t.utxoPool;
     }
 
     /** Get the transaction pool to mine a new block */
@@ -67,8 +279,40 @@ public class BlockChain {
      * at height 2.
      * 
      * @return true if block is successfully added
+     * @throws UncheckedIOException if writing the UTXO set of a disk-backed chain failed; the
+     *         block has been added, but this and every later call throws
      */
-    public boolean addBlock(Block block) {
+    public synchronized boolean addBlock(Block block) {
+        if (storeFailure != null)
+            throw new UncheckedIOException("UTXO store failed", storeFailure);
+        Metrics m = metrics;
+        long start = m != null ? System.nanoTime() : 0;
+        boolean added = connect(block, m);
+        if (added)
+            connectOrphans(block, m);
+        if (m != null) {
+            m.record(Metrics.Stage.ADD_BLOCK, start);
+            BlockModel model = added ? hashBlockMap.get(block.getHashId()) : null;
+            m.blockConnected(block, model == null ? 0 : model.height, added, start);
+        }
+        return added;
+    }
+
+    private void connectOrphans(Block block, Metrics m) {
+        OrphanBlockPool orphans = orphanPool;
+        if (orphans != null) {
+            ArrayList<byte[]> connected = new ArrayList<byte[]>();
+            connected.add(block.getHash());
+            while (!connected.isEmpty()) {
+                byte[] parentHash = connected.remove(connected.size() - 1);
+                for (Block child : orphans.removeChildren(parentHash))
+                    if (connect(child, m))
+                        connected.add(child.getHash());
+            }
+        }
+    }
+
+    private boolean connect(Block block, Metrics m) {
         // Genesis block check in a block chain where blocks exist.
         byte[] parentHash = block.getPrevBlockHash();
         if(currentHeight != 0 && parentHash == null) {
@@ -81,29 +325,45 @@ public class BlockChain {
             ArrayList<Block> blockList = new ArrayList<>();
             blockList.add(block);
             heightBlockMap.put(1, blockList);
-            UTXOPool uPool = createUTXOPoolForGenesisBlock(block);
-            hashBlockMap.put(new ByteArrayWrapper(block.getHash()), new BlockModel(block, 1, uPool));
+            UTXODelta delta = new UTXODelta(block.getCoinbase());
+            UTXOPool uPool = new UTXOPool(emptyPool);
+            delta.applyTo(uPool);
+            BlockModel genesisModel = new BlockModel(block, 1, null, delta);
+            hashBlockMap.put(block.getHashId(), genesisModel);
             currentHeight++;
+            tipModel = genesisModel;
+            startLineage(genesisModel, uPool);
+            uPool.freeze();
+            tip.set(new Tip(block, 1, uPool));
             return true;
         }
 
-        BlockModel parentBlockModel = hashBlockMap.get(new ByteArrayWrapper(block.getPrevBlockHash()));
-        if(parentBlockModel == null)
+        BlockModel parentBlockModel = hashBlockMap.get(Hash256.of(block.getPrevBlockHash()));
+        if(parentBlockModel == null) {
+            OrphanBlockPool orphans = orphanPool;
+            if(orphans != null)
+                orphans.add(block);
             return false;
+        }
 
         // Verify that incoming block is valid.
-        UTXOPool uPoolAfterBlockAddition = verifyBlock(block, parentBlockModel.utxoPool);
-        if(uPoolAfterBlockAddition == null)
+        long applyStart = m != null ? System.nanoTime() : 0;
+        UTXOPool parentPool = utxoPoolAt(parentBlockModel);
+        long applyNanos = m != null ? System.nanoTime() - applyStart : 0;
+        TxHandler txHandler = new TxHandler(parentPool);
+        txHandler.setMetrics(m);
+        Transaction[] acceptedTxs = verifyBlock(block, txHandler);
+        if(acceptedTxs == null)
             return false;
+        applyStart = m != null ? System.nanoTime() : 0;
+        UTXOPool uPoolAfterBlockAddition = txHandler.getUTXOPool();
+        UTXODelta delta = new UTXODelta(acceptedTxs, block.getCoinbase(), parentPool);
 
         // If this is a newly found block corresponding to the root we are on..
         Integer blockHeight = parentBlockModel.height + 1;
-        if(blockHeight > currentHeight) {
-            // This block is going to be the longest valid branch.
-            // Remove all transactions from the txPool which are present in this block.
+        boolean newTip = blockHeight > currentHeight;
+        if(newTip)
             currentHeight = blockHeight;
-            removeTxsFromTxPool(block);
-        }
 
         // Insert block in the heightBlock Map
         ArrayList<Block> blockHeightArrayList = heightBlockMap.get(blockHeight);
@@ -118,15 +378,49 @@ public class BlockChain {
         Transaction coinbaseTx = block.getCoinbase();
         ArrayList<Transaction.Output> coinbaseOutputs = coinbaseTx.getOutputs();
         for(Transaction.Output output : coinbaseOutputs) {
-            UTXO utxo = new UTXO(coinbaseTx.getHash(), idx);
+            UTXO utxo = new UTXO(coinbaseTx.getHashId(), idx);
             uPoolAfterBlockAddition.addUTXO(utxo, output);
             idx++;
         }
+        if (m != null)
+            m.recordNanos(Metrics.Stage.UTXO_APPLY, applyNanos + System.nanoTime() - applyStart);
         // Insert BlockModel in hashBlock Map
-        BlockModel currentBlockModel = new BlockModel(block, blockHeight, uPoolAfterBlockAddition);
-        hashBlockMap.put(new ByteArrayWrapper(block.getHash()), currentBlockModel);
+        BlockModel currentBlockModel = new BlockModel(block, blockHeight, parentBlockModel, delta);
+        hashBlockMap.put(block.getHashId(), currentBlockModel);
+        if(newTip) {
+            // Only the tip's pool is kept; any other block's is rebuilt from deltas when needed.
+            BlockModel oldTipModel = tipModel;
+            tipModel = currentBlockModel;
+            // This block is going to be the longest valid branch. Publish it and remove its
+            // transactions from the txPool in one step, so addTransaction sees either both or
+            // neither.
+            startLineage(currentBlockModel, uPoolAfterBlockAddition);
+            uPoolAfterBlockAddition.freeze();
+            synchronized (txPool) {
+                tip.set(new Tip(block, blockHeight, uPoolAfterBlockAddition));
+                if (mempoolValidation) {
+                    moveTxPoolTip(oldTipModel, currentBlockModel, uPoolAfterBlockAddition);
+                } else {
+                    removeTxsFromTxPool(block);
+                    txPool.updateTip(uPoolAfterBlockAddition);
+                }
+                if (template != null)
+                    template.invalidate();
+            }
+        }
 
+        long pruneStart = m != null ? System.nanoTime() : 0;
         removeBlocksLowerThanCutoff();
+        rerootOldestBlocks();
+        if (m != null) {
+            m.record(Metrics.Stage.PRUNE, pruneStart);
+            m.setGauge(Metrics.Gauge.UTXO_POOL_SIZE, tip.get().utxoPool.size());
+            m.setGauge(Metrics.Gauge.BLOCK_MODELS, hashBlockMap.size());
+            synchronized (txPool) {
+                m.setGauge(Metrics.Gauge.MEMPOOL_SIZE, txPool.size());
+                m.setGauge(Metrics.Gauge.MEMPOOL_BYTES, txPool.getBytes());
+            }
+        }
         return true;
     }
 
@@ -137,20 +431,148 @@ public class BlockChain {
         }
     }
 
-    private UTXOPool createUTXOPoolForGenesisBlock(Block block) {
+    /**
+     * Updates the validated txPool for the tip moving from {@code from} to {@code to}, whose pool
+     * is {@code toPool}: the blocks joining the chain are confirmed oldest first, then the blocks
+     * leaving it are disconnected oldest first, so their transactions are offered back in an order
+     * where parents come before children.
+     */
+    private void moveTxPoolTip(BlockModel from, BlockModel to, UTXOPool toPool) {
+        ArrayList<Block> leaving = new ArrayList<Block>();
+        ArrayList<Block> joining = new ArrayList<Block>();
+        while (from != to && from != null && to != null) {
+            int fromHeight = from.height;
+            if (fromHeight >= to.height) {
+                leaving.add(from.block);
+                from = from.parent;
+            }
+            if (to.height >= fromHeight) {
+                joining.add(to.block);
+                to = to.parent;
+            }
+        }
+        for (int i = joining.size() - 1; i >= 0; i--)
+            txPool.confirmBlock(joining.get(i));
+        for (int i = leaving.size() - 1; i >= 0; i--)
+            txPool.disconnectBlock(leaving.get(i), toPool, signatureCache);
+    }
 
-        // Genesis block. Add all outputs to utxoPool.
-        UTXOPool uPool = new UTXOPool();
-        Transaction coinbaseTx = block.getCoinbase();
-        int idx = 0;
-        for(Transaction.Output output : coinbaseTx.getOutputs()) {
-            UTXO utxo = new UTXO(coinbaseTx.getHash(), idx);
-            uPool.addUTXO(utxo, output);
-            idx++;
+    /**
+     * @return the UTXO pool after {@code model}'s block: the tip's pool itself, which is
+     *         read-only, or a copy of it with the deltas on the path from the tip to {@code model}
+     *         undone and applied, in O(size of those deltas)
+     */
+    private UTXOPool utxoPoolAt(BlockModel model) {
+        UTXOPool tipPool = tip.get().utxoPool;
+        if (model == tipModel)
+            return tipPool;
+        UTXOPool uPool = new UTXOPool(tipPool);
+        ArrayList<BlockModel> forward = new ArrayList<BlockModel>();
+        BlockModel from = tipModel;
+        BlockModel to = model;
+        while (from != to) {
+            if (from == null || to == null)
+                throw new IllegalStateException(
+                        "no common ancestor kept for block at height " + model.height);
+            int fromHeight = from.height;
+            if (fromHeight >= to.height) {
+                from.delta.undo(uPool);
+                from = from.parent;
+            }
+            if (to.height >= fromHeight) {
+                forward.add(to);
+                to = to.parent;
+            }
         }
+        for (int i = forward.size() - 1; i >= 0; i--)
+            forward.get(i).delta.applyTo(uPool);
         return uPool;
     }
-    
+
+    /**
+     * Drops the parent link of the latest common ancestor of the blocks at the lowest height kept,
+     * so deltas no kept block can reach are freed. No pool is ever rebuilt past that ancestor. For
+     * a disk-backed pool, the deltas up to that ancestor are also written to disk.
+     */
+    private void rerootOldestBlocks() {
+        Integer lowestHeight = Math.max(1, currentHeight - CUT_OFF_AGE);
+        ArrayList<Block> blockList = heightBlockMap.get(lowestHeight);
+        if (blockList == null)
+            return;
+        ArrayList<BlockModel> models = new ArrayList<BlockModel>(blockList.size());
+        for (Block b : blockList)
+            models.add(hashBlockMap.get(b.getHashId()));
+        BlockModel root = commonAncestor(models);
+        if (root == null || root == committedModel)
+            return;
+
+        ArrayList<UTXODelta> deltas = new ArrayList<UTXODelta>();
+        for (BlockModel m = root; m != null && m != committedModel; m = m.parent)
+            deltas.add(m.delta);
+        Collections.reverse(deltas);
+        expireLineages(root);
+        try {
+            tip.get().utxoPool.commit(deltas);
+        } catch (IOException e) {
+            storeFailure = e;
+            Metrics m = metrics;
+            if (m != null)
+                m.storeFailed();
+            throw new UncheckedIOException("UTXO store failed", e);
+        }
+        committedModel = root;
+        root.parent = null;
+    }
+
+    /**
+     * Gives {@code pool}, about to be published as the pool of {@code model}, a lineage of its
+     * own, if disk-backed, so that {@link #expireLineages} can tell when it is out of date
+     */
+    private void startLineage(BlockModel model, UTXOPool pool) {
+        model.lineage = pool.startLineage();
+        if (model.lineage != null)
+            lineages.add(model);
+    }
+
+    /**
+     * Expires the lineage of every published pool whose block is not {@code root} or one of its
+     * descendants. Writing the deltas up to {@code root} to disk would give such a pool state it
+     * does not hold, so its readers must fail first.
+     */
+    private void expireLineages(BlockModel root) {
+        Iterator<BlockModel> it = lineages.iterator();
+        while (it.hasNext()) {
+            BlockModel model = it.next();
+            BlockModel m = model;
+            while (m != null && m.height > root.height)
+                m = m.parent;
+            if (m != root) {
+                model.lineage.expire();
+                model.lineage = null;
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * @return the latest block all of {@code models}, which are at the same height, descend from
+     */
+    private static BlockModel commonAncestor(ArrayList<BlockModel> models) {
+        while (true) {
+            BlockModel first = models.get(0);
+            boolean same = true;
+            for (BlockModel m : models) {
+                if (m == null)
+                    return null;
+                same &= m == first;
+            }
+            if (same)
+                return first;
+            for (int i = 0; i < models.size(); i++)
+                models.set(i, models.get(i).parent);
+        }
+    }
+
     private void removeBlocksLowerThanCutoff() {
         Integer removeHeight = currentHeight - CUT_OFF_AGE - 1;
         if(removeHeight <= 0)
@@ -164,36 +586,105 @@ public class BlockChain {
         if(blockList == null)
             return;
         for(Block block : blockList) {
-            ByteArrayWrapper blockHash = new ByteArrayWrapper(block.getHash());
+            Hash256 blockHash = block.getHashId();
             hashBlockMap.remove(blockHash);
+            if (archive != null)
+                archive.append(block, height);
         }
         heightBlockMap.remove(height);
     }
 
-    private UTXOPool verifyBlock(Block block, UTXOPool uPool) {
-        TxHandler txHandler = new TxHandler(uPool);
+    /**
+     * @return the transactions of {@code block} in the order {@code txHandler} applied them, or
+     *         null if any is invalid
+     */
+    private Transaction[] verifyBlock(Block block, TxHandler txHandler) {
+        txHandler.setParallelVerification(parallelVerification);
+        txHandler.setDependencyOrdering(dependencyOrdering);
+        txHandler.setSignatureCache(signatureCache);
         ArrayList<Transaction> txList = block.getTransactions();
         Transaction[] txArray = txList.toArray(new Transaction[txList.size()]);
         Transaction[] acceptedTxs = txHandler.handleTxs(txArray);
         if(acceptedTxs.length != txList.size())
             return null;
-        return txHandler.getUTXOPool();
+        return acceptedTxs;
     }
 
-    /** Add a transaction to the transaction pool */
+    /**
+     * Add a transaction to the transaction pool. With mempool validation its signatures are
+     * verified before the pool is locked, so other callers wait only for the conflict checks and
+     * the insert.
+     */
     public void addTransaction(Transaction tx) {
         // IMPLEMENT THIS
-        txPool.addTransaction(tx);
+        if (mempoolValidation)
+            verifySignatures(tx, getMaxHeightUTXOPool());
+        synchronized (txPool) {
+            if (mempoolValidation)
+                txPool.admitTransaction(tx, getMaxHeightUTXOPool(), signatureCache);
+            else
+                txPool.addTransaction(tx, getMaxHeightUTXOPool());
+            if (template != null)
+                template.offer(tx, txPool);
+            Metrics m = metrics;
+            if (m != null) {
+                m.setGauge(Metrics.Gauge.MEMPOOL_SIZE, txPool.size());
+                m.setGauge(Metrics.Gauge.MEMPOOL_BYTES, txPool.getBytes());
+            }
+        }
+    }
+
+    /**
+     * Verifies the input signatures of {@code tx} against {@code tipPool} and its pooled parents
+     * into the signature cache. {@link TransactionPool#admitTransaction} then finds them there,
+     * unless the tip or the parents changed meanwhile, in which case it verifies them again.
+     */
+    private void verifySignatures(Transaction tx, UTXOPool tipPool) {
+        HashMap<Hash256, Transaction> parents = new HashMap<Hash256, Transaction>();
+        try {
+            for (Transaction.Input in : tx.getInputs()) {
+                if (in.prevTxHash == null
+                        || tipPool.contains(new UTXO(in.prevTxHash, in.outputIndex)))
+                    continue;
+                Transaction parent = txPool.getTransaction(in.prevTxHash);
+                if (parent != null)
+                    parents.put(parent.getHashId(), parent);
+            }
+            TxHandler handler = new TxHandler(tipPool);
+            handler.setSignatureCache(signatureCache);
+            handler.prewarmSignatures(new Transaction[] { tx }, parents);
+        } catch (IllegalStateException e) {
+            // tipPool went out of date meanwhile; admitTransaction verifies against the new tip.
+        }
     }
 
-    private class BlockModel {
+    /** The max height block, its height and its UTXO pool, published together */
+    static final class Tip {
+        final Block block;
+        final int height;
+        final UTXOPool utxoPool;
+
+        Tip(Block block, int height, UTXOPool utxoPool) {
+            this.block = block;
+            this.height = height;
+            this.utxoPool = utxoPool;
+        }
+    }
+
+    private static class BlockModel {
         Block block;
         Integer height;
-        UTXOPool utxoPool;
-        public BlockModel(Block block, Integer height, UTXOPool utxoPool) {
+        /** null once no kept block needs to look past this one */
+        BlockModel parent;
+        /** what this block changed in its parent's UTXO pool */
+        UTXODelta delta;
+        /** the lineage of this block's published pool, or null */
+        OverlayUTXOStore.Lineage lineage;
+        public BlockModel(Block block, Integer height, BlockModel parent, UTXODelta delta) {
             this.block = block;
             this.height = height;
-            this.utxoPool = utxoPool;
+            this.parent = parent;
+            this.delta = delta;
         }
     }
 
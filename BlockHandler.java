@@ -1,14 +1,38 @@
 
 import java.security.PublicKey;
+import java.util.concurrent.CompletableFuture;
 
 public class BlockHandler {
     private BlockChain blockChain;
+    private int maxBlockTransactions = Integer.MAX_VALUE;
+    private BlockPipeline pipeline;
+    private boolean blockTemplate;
 
     /** assume blockChain has the genesis block */
     public BlockHandler(BlockChain blockChain) {
         this.blockChain = blockChain;
     }
 
+    /**
+     * Limit the number of transactions, coinbase excluded, that {@link #createBlock} puts in a
+     * block
+     */
+    public void setMaxBlockTransactions(int max) {
+        maxBlockTransactions = max;
+        if (blockTemplate)
+            blockChain.setBlockTemplateSize(max);
+    }
+
+    /**
+     * Have the block chain keep the next block's transactions up to date as transactions arrive
+     * and the tip moves, see {@link BlockChain#setBlockTemplateSize}, so {@link #createBlock} only
+     * adds the coinbase and hashes the block instead of selecting from the whole pool.
+     */
+    public void setBlockTemplate(boolean enabled) {
+        blockTemplate = enabled;
+        blockChain.setBlockTemplateSize(enabled ? maxBlockTransactions : 0);
+    }
+
     /**
      * add {@code block} to the block chain if it is valid.
      * 
@@ -20,21 +44,51 @@ public class BlockHandler {
         return blockChain.addBlock(block);
     }
 
-    /** create a new {@code block} over the max height {@code block} */
+    /**
+     * add {@code block} to the block chain through a {@link BlockPipeline}, so its signatures are
+     * checked on other threads, alongside those of other blocks still in flight. Blocks are added
+     * in the order this method is called; it waits while the pipeline is full.
+     *
+     * @return completes with true if the block is valid and has been added, false otherwise
+     */
+    public synchronized CompletableFuture<Boolean> processBlockAsync(Block block) {
+        if (block == null)
+            return CompletableFuture.completedFuture(false);
+        if (pipeline == null)
+            pipeline = new BlockPipeline(blockChain);
+        return pipeline.submit(block);
+    }
+
+    /**
+     * create a new {@code block} over the max height {@code block}, filled with the pooled
+     * transactions paying the best fee rate
+     */
     public Block createBlock(PublicKey myAddress) {
-        Block parent = blockChain.getMaxHeightBlock();
-        byte[] parentHash = parent.getHash();
-        Block current = new Block(parentHash, myAddress);
-        UTXOPool uPool = blockChain.getMaxHeightUTXOPool();
-        TransactionPool txPool = blockChain.getTransactionPool();
-        TxHandler handler = new TxHandler(uPool);
-        Transaction[] txs = txPool.getTransactions().toArray(new Transaction[0]);
-        Transaction[] rTxs = handler.handleTxs(txs);
-        for (int i = 0; i < rTxs.length; i++)
-            current.addTransaction(rTxs[i]);
+        Metrics m = blockChain.getMetrics();
+        long start = m != null ? System.nanoTime() : 0;
+        Block current = blockTemplate ? blockChain.newTemplateBlock(myAddress) : null;
+        if (current == null) {
+            // One snapshot, so the block's parent and the pool it is checked against agree.
+            BlockChain.Tip tip = blockChain.getTip();
+            current = new Block(tip.block.getHash(), myAddress);
+            TransactionPool txPool = blockChain.getTransactionPool();
+            TxHandler handler = new TxHandler(tip.utxoPool);
+            handler.setSignatureCache(blockChain.getSignatureCache());
+            handler.setDependencyOrdering(true);
+            for (Transaction tx : txPool.selectTransactions(handler, maxBlockTransactions))
+                current.addTransaction(tx);
+        }
 
+        long hashStart = m != null ? System.nanoTime() : 0;
         current.finalize();
-        if (blockChain.addBlock(current))
+        if (m != null)
+            m.record(Metrics.Stage.HASH, hashStart);
+        boolean added = blockChain.addBlock(current);
+        if (m != null) {
+            m.record(Metrics.Stage.CREATE_BLOCK, start);
+            m.blockCreated(current, added, start);
+        }
+        if (added)
             return current;
         else
             return null;
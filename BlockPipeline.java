@@ -0,0 +1,122 @@
+import java.util.ArrayList;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Feeds blocks to a {@link BlockChain} in three stages, so a burst of blocks overlaps its CPU-heavy
+ * work:
+ * <ol>
+ * <li>structure checks: the block is finalized and starts with a coinbase transaction;</li>
+ * <li>signature verification, on a pool of threads so several blocks are checked at once. Each
+ * input is checked against the tip UTXO pool, the block itself or the other blocks in flight,
+ * and the valid signatures go to the chain's {@link SignatureCache};</li>
+ * <li>connect: {@link BlockChain#addBlock} on a single thread, in submission order, which then
+ * finds its signatures in the cache.</li>
+ * </ol>
+ * Only the connect stage decides whether a block is accepted, so the resulting chain is the same
+ * as calling {@code addBlock} on each block in turn. At most {@code capacity} blocks are in
+ * flight; {@link #submit} waits for a slot.
+ */
+public class BlockPipeline {
+
+    public static final int DEFAULT_CAPACITY = 64;
+
+    private final BlockChain blockChain;
+    private final Semaphore slots;
+    private final ExecutorService verifiers;
+    private final ExecutorService connector;
+    /** transactions of the blocks in flight, for resolving inputs across blocks */
+    private final ConcurrentHashMap<Hash256, Transaction> inFlight =
+            new ConcurrentHashMap<Hash256, Transaction>();
+    private CompletableFuture<Boolean> last = CompletableFuture.completedFuture(true);
+
+    public BlockPipeline(BlockChain blockChain) {
+        this(blockChain, DEFAULT_CAPACITY, Runtime.getRuntime().availableProcessors());
+    }
+
+    public BlockPipeline(BlockChain blockChain, int capacity, int verifyThreads) {
+        if (capacity < 1 || verifyThreads < 1)
+            throw new IllegalArgumentException("capacity and thread count must be positive");
+        this.blockChain = blockChain;
+        this.slots = new Semaphore(capacity);
+        this.verifiers = Executors.newFixedThreadPool(verifyThreads, daemon("block-verifier"));
+        this.connector = Executors.newSingleThreadExecutor(daemon("block-connector"));
+    }
+
+    /**
+     * Queues {@code block}, waiting first while {@code capacity} blocks are in flight.
+     *
+     * @return completes with true once the block is added to the chain, false if it is rejected
+     */
+    public CompletableFuture<Boolean> submit(final Block block) {
+        slots.acquireUninterruptibly();
+        final ArrayList<Transaction> txs = new ArrayList<Transaction>();
+        if (block != null) {
+            for (Transaction tx : block.getTransactions()) {
+                if (tx == null || tx.getHash() == null)
+                    continue;
+                if (inFlight.putIfAbsent(tx.getHashId(), tx) == null)
+                    txs.add(tx);
+            }
+        }
+        CompletableFuture<Boolean> checked =
+                CompletableFuture.supplyAsync(() -> check(block), verifiers);
+        CompletableFuture<Boolean> result;
+        synchronized (this) {
+            CompletableFuture<Boolean> previous = last.exceptionally(e -> false);
+            result = checked.thenCombineAsync(previous,
+                    (ok, ignored) -> ok && blockChain.addBlock(block), connector);
+            last = result;
+        }
+        result.whenComplete((accepted, e) -> {
+            for (Transaction tx : txs)
+                inFlight.remove(tx.getHashId(), tx);
+            slots.release();
+        });
+        return result;
+    }
+
+    /** Stops the pipeline threads once the blocks already queued are done */
+    public void shutdown() {
+        verifiers.shutdown();
+        connector.shutdown();
+    }
+
+    /** Runs the first two stages on a verifier thread */
+    private boolean check(Block block) {
+        if (block == null || block.getHash() == null)
+            return false;
+        Transaction coinbase = block.getCoinbase();
+        if (coinbase == null || !coinbase.isCoinbase())
+            return false;
+        ArrayList<Transaction> txList = block.getTransactions();
+        for (Transaction tx : txList)
+            if (tx == null || tx.getHash() == null)
+                return false;
+
+        UTXOPool tipPool = blockChain.getMaxHeightUTXOPool();
+        if (tipPool == null || txList.isEmpty())
+            return true;
+        TxHandler handler = new TxHandler(tipPool);
+        handler.setSignatureCache(blockChain.getSignatureCache());
+        handler.setMetrics(blockChain.getMetrics());
+        try {
+            handler.prewarmSignatures(txList.toArray(new Transaction[txList.size()]), inFlight);
+        } catch (IllegalStateException e) {
+            // The tip pool went out of date meanwhile; the block is verified in full when added.
+        }
+        return true;
+    }
+
+    private static ThreadFactory daemon(final String name) {
+        return r -> {
+            Thread t = new Thread(r, name);
+            t.setDaemon(true);
+            return t;
+        };
+    }
+}
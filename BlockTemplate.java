@@ -0,0 +1,92 @@
+import java.util.ArrayList;
+
+/**
+ * The transactions of the next block to mine on the tip, kept up to date by {@link BlockChain}
+ * so {@link BlockHandler#createBlock} only has to add the coinbase and hash the block. A
+ * transaction that arrives while there is room is validated against the template on its own and
+ * appended. When the tip moves, when a transaction arrives that pays a better fee rate than the
+ * worst one in a full template, or when a transaction in the template has left the pool, for
+ * example evicted for the pool's byte budget or age, the template is marked stale. It is rebuilt
+ * from the pool with {@link TransactionPool#selectTransactions}, best packages first, on the
+ * next {@link #transactionsFor}, so blocks that arrive from peers in a row cost one rebuild
+ * rather than one each.
+ *
+ * Not thread-safe; the chain uses it under the transaction pool's lock.
+ */
+final class BlockTemplate {
+
+    private final int maxTxs;
+    /** the block the template builds on, or null if it must be rebuilt */
+    private Block parent;
+    /** validates against the parent's UTXO pool plus the transactions in {@code txs} */
+    private TxHandler handler;
+    private final ArrayList<Transaction> txs = new ArrayList<Transaction>();
+    /** the lowest fee rate in {@code txs}, to tell when a full template is worth rebuilding */
+    private double worstFeeRate;
+
+    BlockTemplate(int maxTxs) {
+        this.maxTxs = maxTxs;
+    }
+
+    int getMaxTransactions() {
+        return maxTxs;
+    }
+
+    /** Rebuilds the template on {@code parent}, whose UTXO pool is {@code tip} */
+    void rebuild(Block parent, UTXOPool tip, TransactionPool txPool, SignatureCache cache) {
+        handler = new TxHandler(tip);
+        handler.setSignatureCache(cache);
+        handler.setDependencyOrdering(true);
+        txs.clear();
+        worstFeeRate = Double.POSITIVE_INFINITY;
+        for (Transaction tx : txPool.selectTransactions(handler, maxTxs))
+            append(tx, txPool);
+        this.parent = parent;
+    }
+
+    /** Marks the template stale, e.g. because the tip moved */
+    void invalidate() {
+        parent = null;
+    }
+
+    /**
+     * Appends {@code tx}, just added to {@code txPool}, if it fits and is valid on top of the
+     * template
+     */
+    void offer(Transaction tx, TransactionPool txPool) {
+        if (parent == null || tx.getHash() == null || txPool.getTransaction(tx.getHash()) == null)
+            return;
+        if (txs.size() >= maxTxs) {
+            if (txPool.getFeeRate(tx.getHash()) > worstFeeRate)
+                parent = null;
+            return;
+        }
+        if (handler.handleTxs(new Transaction[] { tx }).length == 1)
+            append(tx, txPool);
+    }
+
+    /**
+     * @return the transactions for a block on {@code tip}, in block order, rebuilding the template
+     *         first if it is not for {@code tip} or holds a transaction no longer pooled
+     */
+    ArrayList<Transaction> transactionsFor(Block tip, UTXOPool tipPool, TransactionPool txPool,
+            SignatureCache cache) {
+        if (parent != tip || !allPooled(txPool))
+            rebuild(tip, tipPool, txPool, cache);
+        return new ArrayList<Transaction>(txs);
+    }
+
+    private boolean allPooled(TransactionPool txPool) {
+        for (Transaction tx : txs)
+            if (txPool.getTransaction(tx.getHash()) == null)
+                return false;
+        return true;
+    }
+
+    private void append(Transaction tx, TransactionPool txPool) {
+        txs.add(tx);
+        double rate = txPool.getFeeRate(tx.getHash());
+        if (!(rate >= worstFeeRate))
+            worstFeeRate = Double.isNaN(rate) ? Double.NEGATIVE_INFINITY : rate;
+    }
+}
@@ -0,0 +1,264 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * {@link UTXOStore} that packs every entry into primitive arrays: the 32-byte transaction hash as
+ * four longs, the output index, the value and an id into a table of distinct addresses. Entries are
+ * kept dense and found through an int table with linear probing and backward-shift deletion, so
+ * there are no tombstones. An entry takes 48 bytes plus its table slots and no per-entry objects
+ * are allocated; see {@code UTXOPoolMemoryBenchmark} for a comparison with the map-based stores.
+ *
+ * Outputs are rebuilt on every {@link #get}, so they are equal to, but not the same objects as,
+ * the outputs that were added. UTXOs whose hash is not 32 bytes long are kept in an ordinary map.
+ */
+class CompactUTXOStore implements UTXOStore {
+
+    private static final int HASH_LONGS = 4;
+    private static final int HASH_BYTES = HASH_LONGS * 8;
+
+    /** enclosing instance for rebuilt {@code Transaction.Output}s */
+    private static final Transaction OWNER = new Transaction();
+
+    /* Entries, densely packed in positions [0, size). */
+    private long[] hashes;
+    private int[] indexes;
+    private double[] values;
+    private int[] addressIds;
+    private int size;
+
+    /** open-addressing table of entry position + 1, or 0 for an empty slot; at most half full */
+    private int[] table;
+    private int mask;
+
+    private final AddressTable addresses;
+    private HashMap<UTXO, Transaction.Output> others;
+
+    public CompactUTXOStore() {
+        this(16);
+    }
+
+    public CompactUTXOStore(int expectedSize) {
+        int capacity = Math.max(16, expectedSize);
+        hashes = new long[capacity * HASH_LONGS];
+        indexes = new int[capacity];
+        values = new double[capacity];
+        addressIds = new int[capacity];
+        table = new int[Integer.highestOneBit(2 * capacity - 1) << 1];
+        mask = table.length - 1;
+        addresses = new AddressTable();
+        others = new HashMap<UTXO, Transaction.Output>();
+    }
+
+    private CompactUTXOStore(CompactUTXOStore store) {
+        hashes = store.hashes.clone();
+        indexes = store.indexes.clone();
+        values = store.values.clone();
+        addressIds = store.addressIds.clone();
+        size = store.size;
+        table = store.table.clone();
+        mask = store.mask;
+        addresses = store.addresses;
+        others = new HashMap<UTXO, Transaction.Output>(store.others);
+    }
+
+    public Transaction.Output get(UTXO utxo) {
+        Hash256 h = utxo.getTxHashId();
+        if (h.length() != HASH_BYTES)
+            return others.get(utxo);
+        int slot = find(h, utxo.getIndex());
+        if (slot < 0)
+            return null;
+        return outputAt(table[slot] - 1);
+    }
+
+    public boolean contains(UTXO utxo) {
+        Hash256 h = utxo.getTxHashId();
+        if (h.length() != HASH_BYTES)
+            return others.containsKey(utxo);
+        return find(h, utxo.getIndex()) >= 0;
+    }
+
+    public void put(UTXO utxo, Transaction.Output txOut) {
+        Hash256 h = utxo.getTxHashId();
+        if (h.length() != HASH_BYTES) {
+            others.put(utxo, txOut);
+            return;
+        }
+        int index = utxo.getIndex();
+        int id = addresses.idOf(txOut.getAddressEntry());
+        int slot = find(h, index);
+        if (slot >= 0) {
+            int e = table[slot] - 1;
+            values[e] = txOut.value;
+            addressIds[e] = id;
+            return;
+        }
+        if (size == indexes.length)
+            growEntries();
+        if (2 * (size + 1) > table.length)
+            growTable();
+        int e = size++;
+        int base = e * HASH_LONGS;
+        for (int w = 0; w < HASH_LONGS; w++)
+            hashes[base + w] = h.word(w);
+        indexes[e] = index;
+        values[e] = txOut.value;
+        addressIds[e] = id;
+        insert(e);
+    }
+
+    public Transaction.Output remove(UTXO utxo) {
+        Hash256 h = utxo.getTxHashId();
+        if (h.length() != HASH_BYTES)
+            return others.remove(utxo);
+        int slot = find(h, utxo.getIndex());
+        if (slot < 0)
+            return null;
+        int e = table[slot] - 1;
+        Transaction.Output removed = outputAt(e);
+        deleteSlot(slot);
+        // Keep entries dense by moving the last one into the freed position.
+        int last = --size;
+        if (e != last) {
+            table[slotOfEntry(last)] = e + 1;
+            System.arraycopy(hashes, last * HASH_LONGS, hashes, e * HASH_LONGS, HASH_LONGS);
+            indexes[e] = indexes[last];
+            values[e] = values[last];
+            addressIds[e] = addressIds[last];
+        }
+        return removed;
+    }
+
+    public int size() {
+        return size + others.size();
+    }
+
+    public Iterator<UTXO> iterator() {
+        final Iterator<UTXO> rest = others.keySet().iterator();
+        return new Iterator<UTXO>() {
+            private int e;
+
+            public boolean hasNext() {
+                return e < size || rest.hasNext();
+            }
+
+            public UTXO next() {
+                if (e >= size)
+                    return rest.next();
+                int base = e * HASH_LONGS;
+                Hash256 h = new Hash256(hashes[base], hashes[base + 1], hashes[base + 2],
+                        hashes[base + 3]);
+                return new UTXO(h, indexes[e++]);
+            }
+        };
+    }
+
+    public UTXOStore fork() {
+        return new CompactUTXOStore(this);
+    }
+
+    public void freeze() {
+        // Forking copies and iterating reads, so a store no one writes is already safe to share.
+    }
+
+    private Transaction.Output outputAt(int e) {
+        return OWNER.new Output(values[e], addresses.get(addressIds[e]));
+    }
+
+    /** @return the table slot of ({@code h}, {@code index}), or -1 */
+    private int find(Hash256 h, int index) {
+        long w0 = h.word(0), w1 = h.word(1), w2 = h.word(2), w3 = h.word(3);
+        int slot = slotOf(w0, w1, w2, w3, index);
+        while (table[slot] != 0) {
+            int e = table[slot] - 1;
+            int base = e * HASH_LONGS;
+            if (indexes[e] == index && hashes[base] == w0 && hashes[base + 1] == w1
+                    && hashes[base + 2] == w2 && hashes[base + 3] == w3)
+                return slot;
+            slot = (slot + 1) & mask;
+        }
+        return -1;
+    }
+
+    /** @return the table slot pointing at entry {@code e} */
+    private int slotOfEntry(int e) {
+        int slot = homeOf(e);
+        while (table[slot] != e + 1)
+            slot = (slot + 1) & mask;
+        return slot;
+    }
+
+    private void insert(int e) {
+        int slot = homeOf(e);
+        while (table[slot] != 0)
+            slot = (slot + 1) & mask;
+        table[slot] = e + 1;
+    }
+
+    /** Backward-shift deletion: pull later members of the probe run into the hole */
+    private void deleteSlot(int slot) {
+        int hole = slot;
+        int next = (hole + 1) & mask;
+        while (table[next] != 0) {
+            int home = homeOf(table[next] - 1);
+            if (((next - home) & mask) >= ((next - hole) & mask)) {
+                table[hole] = table[next];
+                hole = next;
+            }
+            next = (next + 1) & mask;
+        }
+        table[hole] = 0;
+    }
+
+    private void growEntries() {
+        int capacity = indexes.length + (indexes.length >> 1);
+        hashes = Arrays.copyOf(hashes, capacity * HASH_LONGS);
+        indexes = Arrays.copyOf(indexes, capacity);
+        values = Arrays.copyOf(values, capacity);
+        addressIds = Arrays.copyOf(addressIds, capacity);
+    }
+
+    private void growTable() {
+        table = new int[table.length * 2];
+        mask = table.length - 1;
+        for (int e = 0; e < size; e++)
+            insert(e);
+    }
+
+    private int homeOf(int e) {
+        int base = e * HASH_LONGS;
+        return slotOf(hashes[base], hashes[base + 1], hashes[base + 2], hashes[base + 3],
+                indexes[e]);
+    }
+
+    private int slotOf(long w0, long w1, long w2, long w3, int index) {
+        long h = w0 * 0x9E3779B97F4A7C15L;
+        h = (h ^ w1) * 0x9E3779B97F4A7C15L;
+        h = (h ^ w2) * 0x9E3779B97F4A7C15L;
+        h = (h ^ w3 ^ index) * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32)) & mask;
+    }
+
+    /** Append-only table of distinct addresses, shared by a store and its forks */
+    private static final class AddressTable {
+        private final ArrayList<Address> keys = new ArrayList<Address>();
+        private final HashMap<Address, Integer> ids = new HashMap<Address, Integer>();
+
+        synchronized int idOf(Address key) {
+            Integer id = ids.get(key);
+            if (id == null) {
+                id = keys.size();
+                keys.add(key);
+                ids.put(key, id);
+            }
+            return id;
+        }
+
+        synchronized Address get(int id) {
+            return keys.get(id);
+        }
+    }
+}
@@ -3,9 +3,32 @@ import java.security.NoSuchAlgorithmException;
 import java.security.PublicKey;
 import java.security.Signature;
 import java.security.SignatureException;
+import java.util.BitSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.stream.IntStream;
 
 public class Crypto {
 
+    /** Number of keys each thread keeps an initialized verifier for */
+    static final int VERIFIERS_PER_THREAD = 32;
+
+    /**
+     * Per-thread verifiers, each already initialized with its key. {@code Signature.verify} leaves
+     * the engine initialized with the same key, so a verifier can be reused without repeating the
+     * provider lookup or the key setup.
+     */
+    private static final ThreadLocal<LinkedHashMap<PublicKey, Signature>> VERIFIERS =
+            new ThreadLocal<LinkedHashMap<PublicKey, Signature>>() {
+                protected LinkedHashMap<PublicKey, Signature> initialValue() {
+                    return new LinkedHashMap<PublicKey, Signature>(16, 0.75f, true) {
+                        protected boolean removeEldestEntry(Map.Entry<PublicKey, Signature> e) {
+                            return size() > VERIFIERS_PER_THREAD;
+                        }
+                    };
+                }
+            };
+
     /**
      * @return true is {@code signature} is a valid digital signature of {@code message} under the
      *         key {@code pubKey}. Internally, this uses RSA signature, but the student does not
@@ -13,24 +36,55 @@ public class Crypto {
      *         algorithm
      */
     public static boolean verifySignature(PublicKey pubKey, byte[] message, byte[] signature) {
-        Signature sig = null;
-        try {
-            sig = Signature.getInstance("SHA256withRSA");
-        } catch (NoSuchAlgorithmException e) {
-            e.printStackTrace();
-        }
-        try {
-            sig.initVerify(pubKey);
-        } catch (InvalidKeyException e) {
-            e.printStackTrace();
+        LinkedHashMap<PublicKey, Signature> verifiers = VERIFIERS.get();
+        Signature sig = verifiers.remove(pubKey);
+        if (sig == null) {
+            try {
+                sig = Signature.getInstance("SHA256withRSA");
+                sig.initVerify(pubKey);
+            } catch (NoSuchAlgorithmException e) {
+                e.printStackTrace();
+                return false;
+            } catch (InvalidKeyException e) {
+                e.printStackTrace();
+                return false;
+            }
         }
+        boolean valid;
         try {
             sig.update(message);
-            return sig.verify(signature);
+            valid = sig.verify(signature);
         } catch (SignatureException e) {
+            // The engine may be left mid-operation, so it is not reused.
             e.printStackTrace();
+            return false;
         }
-        return false;
+        verifiers.put(pubKey, sig);
+        return valid;
+    }
 
+    /**
+     * Verifies {@code signatures[i]} over {@code messages[i]} under {@code pubKeys[i]} for every
+     * {@code i}, spreading the work over the common fork-join pool.
+     *
+     * @return a set with bit {@code i} set iff signature {@code i} is valid
+     * @throws RuntimeException what {@link #verifySignature} throws for any triple, as if the
+     *         triples were verified one by one
+     */
+    public static BitSet verifySignatures(PublicKey[] pubKeys, byte[][] messages,
+            byte[][] signatures) {
+        int n = pubKeys.length;
+        if (messages.length != n || signatures.length != n)
+            throw new IllegalArgumentException("keys, messages and signatures differ in length");
+        final boolean[] valid = new boolean[n];
+        IntStream range = IntStream.range(0, n);
+        if (n > 1)
+            range = range.parallel();
+        range.forEach(i -> valid[i] = verifySignature(pubKeys[i], messages[i], signatures[i]));
+        BitSet result = new BitSet(n);
+        for (int i = 0; i < n; i++)
+            if (valid[i])
+                result.set(i);
+        return result;
     }
 }
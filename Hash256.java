@@ -0,0 +1,135 @@
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+/**
+ * An immutable 32-byte hash, such as a transaction or block hash, held as four big-endian longs
+ * with its hash code computed once, so it is cheap to build, compare and use as a map key.
+ * Hashes of any other length are kept as a copy and compared byte by byte, so they still work as
+ * keys, only slower.
+ */
+public final class Hash256 implements Comparable<Hash256> {
+
+    public static final int BYTES = 32;
+
+    private static final VarHandle LONGS =
+            MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.BIG_ENDIAN);
+    /** flips the sign bit of every byte, so unsigned long order is signed byte order */
+    private static final long SIGN_BITS = 0x8080808080808080L;
+
+    private final long w0, w1, w2, w3;
+    /** the bytes of a hash that is not 32 bytes long, otherwise null */
+    private final byte[] other;
+    private final int hash;
+
+    /**
+     * the hash whose big-endian bytes are those of {@code w0}, then {@code w1}, {@code w2},
+     * {@code w3}
+     */
+    public Hash256(long w0, long w1, long w2, long w3) {
+        this.w0 = w0;
+        this.w1 = w1;
+        this.w2 = w2;
+        this.w3 = w3;
+        this.other = null;
+        long h = ((w0 * 31 + w1) * 31 + w2) * 31 + w3;
+        this.hash = (int) (h ^ (h >>> 32));
+    }
+
+    private Hash256(byte[] other) {
+        this.w0 = this.w1 = this.w2 = this.w3 = 0;
+        this.other = other;
+        this.hash = Arrays.hashCode(other);
+    }
+
+    /** @return the hash with the bytes of {@code h}, which is not kept */
+    public static Hash256 of(byte[] h) {
+        if (h.length != BYTES)
+            return new Hash256(h.clone());
+        return new Hash256((long) LONGS.get(h, 0), (long) LONGS.get(h, 8), (long) LONGS.get(h, 16),
+                (long) LONGS.get(h, 24));
+    }
+
+    /**
+     * @return the number of bytes in this hash, {@link #BYTES} unless it was made from another
+     *         length
+     */
+    public int length() {
+        return other == null ? BYTES : other.length;
+    }
+
+    /**
+     * @return bytes {@code 8 * w} to {@code 8 * w + 7} as a big-endian long; only for 32-byte
+     *         hashes
+     */
+    public long word(int w) {
+        switch (w) {
+        case 0:
+            return w0;
+        case 1:
+            return w1;
+        case 2:
+            return w2;
+        case 3:
+            return w3;
+        default:
+            throw new IndexOutOfBoundsException(String.valueOf(w));
+        }
+    }
+
+    /** @return a new array with the bytes of this hash */
+    public byte[] toBytes() {
+        if (other != null)
+            return other.clone();
+        byte[] h = new byte[BYTES];
+        LONGS.set(h, 0, w0);
+        LONGS.set(h, 8, w1);
+        LONGS.set(h, 16, w2);
+        LONGS.set(h, 24, w3);
+        return h;
+    }
+
+    public boolean equals(Object o) {
+        if (this == o)
+            return true;
+        if (!(o instanceof Hash256))
+            return false;
+        Hash256 h = (Hash256) o;
+        return hash == h.hash && w0 == h.w0 && w1 == h.w1 && w2 == h.w2 && w3 == h.w3
+                && Arrays.equals(other, h.other);
+    }
+
+    public int hashCode() {
+        return hash;
+    }
+
+    /** Orders shorter hashes first, then by comparing the bytes as signed values */
+    public int compareTo(Hash256 h) {
+        int len = length(), hLen = h.length();
+        if (len != hLen)
+            return len < hLen ? -1 : 1;
+        if (other == null) {
+            int c = Long.compareUnsigned(w0 ^ SIGN_BITS, h.w0 ^ SIGN_BITS);
+            if (c == 0)
+                c = Long.compareUnsigned(w1 ^ SIGN_BITS, h.w1 ^ SIGN_BITS);
+            if (c == 0)
+                c = Long.compareUnsigned(w2 ^ SIGN_BITS, h.w2 ^ SIGN_BITS);
+            if (c == 0)
+                c = Long.compareUnsigned(w3 ^ SIGN_BITS, h.w3 ^ SIGN_BITS);
+            return c;
+        }
+        for (int i = 0; i < len; i++)
+            if (other[i] != h.other[i])
+                return other[i] < h.other[i] ? -1 : 1;
+        return 0;
+    }
+
+    public String toString() {
+        StringBuilder sb = new StringBuilder(2 * length());
+        for (byte b : toBytes())
+            sb.append(Character.forDigit((b >> 4) & 0xf, 16))
+                    .append(Character.forDigit(b & 0xf, 16));
+        return sb.toString();
+    }
+}
@@ -0,0 +1,48 @@
+import java.util.HashMap;
+import java.util.Iterator;
+
+/** {@link UTXOStore} over a plain {@code HashMap}; forking copies the whole map. */
+class HashUTXOStore implements UTXOStore {
+
+    private final HashMap<UTXO, Transaction.Output> H;
+
+    public HashUTXOStore() {
+        H = new HashMap<UTXO, Transaction.Output>();
+    }
+
+    private HashUTXOStore(HashUTXOStore store) {
+        H = new HashMap<UTXO, Transaction.Output>(store.H);
+    }
+
+    public Transaction.Output get(UTXO utxo) {
+        return H.get(utxo);
+    }
+
+    public boolean contains(UTXO utxo) {
+        return H.containsKey(utxo);
+    }
+
+    public void put(UTXO utxo, Transaction.Output txOut) {
+        H.put(utxo, txOut);
+    }
+
+    public Transaction.Output remove(UTXO utxo) {
+        return H.remove(utxo);
+    }
+
+    public int size() {
+        return H.size();
+    }
+
+    public Iterator<UTXO> iterator() {
+        return H.keySet().iterator();
+    }
+
+    public UTXOStore fork() {
+        return new HashUTXOStore(this);
+    }
+
+    public void freeze() {
+        // Forking copies and iterating reads, so a store no one writes is already safe to share.
+    }
+}
@@ -0,0 +1,580 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.KeyFactory;
+import java.security.NoSuchAlgorithmException;
+import java.security.spec.InvalidKeySpecException;
+import java.security.spec.X509EncodedKeySpec;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * The committed UTXO set, kept in a memory-mapped file so it can be larger than the heap. Pools
+ * do not use this class directly: each pool is an {@link OverlayUTXOStore} holding its changes
+ * since the last commit in memory, and {@link #apply} writes a batch of those changes into the
+ * file.
+ *
+ * The file {@code utxo.dat} in the store's directory is an open-addressing table of 64-byte
+ * records (hash, output index, address id, value) behind a 64-byte header; lookups read the
+ * mapping directly and make no system calls. Distinct addresses are appended to
+ * {@code addresses.dat} and kept in memory. Read outputs are kept in a bounded cache that evicts
+ * the least recently used entry of the stripe it adds to.
+ *
+ * Lookups take a shared read lock, so validation threads read the mapping concurrently;
+ * {@link #apply} takes the write lock. Each batch is bracketed by a commit marker in the header:
+ * the header is marked dirty and forced, the changes are written, {@code addresses.dat} is
+ * forced before the records that refer to its addresses, which are forced only in the segments
+ * the batch wrote, and the marker is cleared and forced
+ * last. There is no journal, so a store whose marker is still set was interrupted mid-batch and
+ * is refused on open.
+ */
+class MappedUTXOStore {
+
+    public static final int DEFAULT_CACHE_SIZE = 100000;
+
+    private static final long MAGIC = 0x5554584f53455431L;
+    private static final int HEADER = 64;
+    private static final int RECORD = 64;
+    private static final int SEGMENT_BITS = 30;
+    private static final long SEGMENT = 1L << SEGMENT_BITS;
+    private static final int HASH_BYTES = 32;
+    private static final long INITIAL_SLOTS = 1 << 16;
+    /** header offset of the commit marker: 0 when the last batch completed */
+    private static final int OFF_DIRTY = 24;
+
+    private static final int OFF_INDEX = 32;
+    private static final int OFF_ADDRESS = 36;
+    private static final int OFF_VALUE = 40;
+
+    /** enclosing instance for rebuilt {@code Transaction.Output}s */
+    private static final Transaction OWNER = new Transaction();
+
+    private final Path dir;
+    private FileChannel channel;
+    private MappedByteBuffer[] segments;
+    /** the segments written since they were last forced */
+    private boolean[] written;
+    private long slots;
+    private long size;
+    /** true while a batch is being written */
+    private boolean dirty;
+
+    private final ArrayList<Address> addresses = new ArrayList<Address>();
+    private final HashMap<Address, Integer> addressIds = new HashMap<Address, Integer>();
+    private final FileChannel addressFile;
+
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private final OutputCache cache;
+    private final LongAdder cacheHits = new LongAdder();
+    private final LongAdder cacheMisses = new LongAdder();
+
+    /** Opens the store in {@code dir}, creating it if it does not exist */
+    public MappedUTXOStore(Path dir, int cacheSize) throws IOException {
+        this(dir, cacheSize, false);
+    }
+
+    /**
+     * Creates a new, empty store in {@code dir}
+     *
+     * @throws FileAlreadyExistsException if {@code dir} already holds a store
+     */
+    public static MappedUTXOStore create(Path dir, int cacheSize) throws IOException {
+        return new MappedUTXOStore(dir, cacheSize, true);
+    }
+
+    private MappedUTXOStore(Path dir, int cacheSize, boolean create) throws IOException {
+        this.dir = dir;
+        Files.createDirectories(dir);
+        cache = new OutputCache(cacheSize);
+        Path data = dir.resolve("utxo.dat");
+        Path addressData = dir.resolve("addresses.dat");
+        if (create && Files.exists(data))
+            throw new FileAlreadyExistsException(data.toString());
+        addressFile = FileChannel.open(addressData,
+                create ? StandardOpenOption.CREATE_NEW : StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        loadAddresses();
+
+        boolean exists = Files.exists(data) && Files.size(data) >= HEADER;
+        channel = FileChannel.open(data,
+                create ? StandardOpenOption.CREATE_NEW : StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        if (exists) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER);
+            channel.read(header, 0);
+            header.flip();
+            if (header.getLong() != MAGIC)
+                throw new IOException(data + " is not a UTXO store");
+            slots = header.getLong();
+            size = header.getLong();
+            if (header.getLong() != 0)
+                throw new IOException(data + " was left in the middle of a commit");
+            segments = map(channel, slots);
+            written = new boolean[segments.length];
+        } else {
+            slots = INITIAL_SLOTS;
+            segments = map(channel, slots);
+            written = new boolean[segments.length];
+            writeHeader();
+            segments[0].force(0, HEADER);
+        }
+    }
+
+    public long size() {
+        lock.readLock().lock();
+        try {
+            return size;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public long getCacheHits() {
+        return cacheHits.sum();
+    }
+
+    public long getCacheMisses() {
+        return cacheMisses.sum();
+    }
+
+    /** @return the committed output for {@code utxo}, or null */
+    public Transaction.Output get(UTXO utxo) {
+        Transaction.Output out = cache.get(utxo);
+        if (out != null) {
+            cacheHits.increment();
+            return out;
+        }
+        cacheMisses.increment();
+        Hash256 h = utxo.getTxHashId();
+        if (h.length() != HASH_BYTES)
+            return null;
+        lock.readLock().lock();
+        try {
+            long slot = find(h, utxo.getIndex());
+            if (slot < 0)
+                return null;
+            long pos = position(slot);
+            Address address = addresses.get(getInt(pos + OFF_ADDRESS) - 1);
+            out = OWNER.new Output(getDouble(pos + OFF_VALUE), address);
+            // Cached under the read lock, so apply cannot invalidate the entry before it is in.
+            cache.put(utxo, out);
+            return out;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public boolean contains(UTXO utxo) {
+        if (cache.containsKey(utxo))
+            return true;
+        Hash256 h = utxo.getTxHashId();
+        if (h.length() != HASH_BYTES)
+            return false;
+        lock.readLock().lock();
+        try {
+            return find(h, utxo.getIndex()) >= 0;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /** @return true if {@code utxo} can be written to this store */
+    public static boolean isStorable(UTXO utxo) {
+        return utxo.getTxHashId().length() == HASH_BYTES;
+    }
+
+    /**
+     * Writes one batch of changes: every entry whose value is an output is added, every entry
+     * whose value is {@code removed} is deleted. Keys must be {@link #isStorable storable}.
+     */
+    public void apply(Iterable<Map.Entry<UTXO, Object>> changes, Object removed)
+            throws IOException {
+        lock.writeLock().lock();
+        try {
+            dirty = true;
+            writeHeader();
+            segments[0].force(0, HEADER);
+            write(changes, removed);
+            // Addresses before the records that refer to them, and the records before the marker.
+            addressFile.force(false);
+            forceWritten();
+            dirty = false;
+            writeHeader();
+            segments[0].force(0, HEADER);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private void write(Iterable<Map.Entry<UTXO, Object>> changes, Object removed)
+            throws IOException {
+        for (Map.Entry<UTXO, Object> change : changes) {
+            UTXO utxo = change.getKey();
+            Hash256 h = utxo.getTxHashId();
+            long slot = find(h, utxo.getIndex());
+            if (change.getValue() == removed) {
+                cache.remove(utxo);
+                if (slot >= 0) {
+                    deleteSlot(slot);
+                    size--;
+                }
+                continue;
+            }
+            Transaction.Output out = (Transaction.Output) change.getValue();
+            int id = addressId(out.getAddressEntry());
+            if (slot < 0) {
+                if (2 * (size + 1) > slots)
+                    grow();
+                slot = home(h, utxo.getIndex());
+                while (getInt(position(slot) + OFF_ADDRESS) != 0)
+                    slot = (slot + 1) & (slots - 1);
+                long pos = position(slot);
+                for (int w = 0; w < HASH_BYTES / 8; w++)
+                    putLong(pos + 8 * w, h.word(w));
+                putInt(pos + OFF_INDEX, utxo.getIndex());
+                size++;
+            }
+            long pos = position(slot);
+            putDouble(pos + OFF_VALUE, out.value);
+            putInt(pos + OFF_ADDRESS, id + 1);
+            cache.remove(utxo);
+        }
+        writeHeader();
+    }
+
+    /** Forces all committed changes to disk */
+    public void flush() throws IOException {
+        lock.writeLock().lock();
+        try {
+            addressFile.force(false);
+            forceWritten();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public void close() throws IOException {
+        lock.writeLock().lock();
+        try {
+            flush();
+            channel.close();
+            addressFile.close();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private void forceWritten() {
+        for (int i = 0; i < segments.length; i++) {
+            if (written[i]) {
+                segments[i].force();
+                written[i] = false;
+            }
+        }
+    }
+
+    /** Iterates over the committed UTXOs; the store must not be changed meanwhile */
+    public Iterator<UTXO> iterator() {
+        return new Iterator<UTXO>() {
+            private long slot = advance(0);
+
+            private long advance(long from) {
+                lock.readLock().lock();
+                try {
+                    while (from < slots && getInt(position(from) + OFF_ADDRESS) == 0)
+                        from++;
+                    return from;
+                } finally {
+                    lock.readLock().unlock();
+                }
+            }
+
+            public boolean hasNext() {
+                return slot < slots;
+            }
+
+            public UTXO next() {
+                if (!hasNext())
+                    throw new NoSuchElementException();
+                UTXO utxo;
+                lock.readLock().lock();
+                try {
+                    long pos = position(slot);
+                    Hash256 h = new Hash256(getLong(pos), getLong(pos + 8), getLong(pos + 16),
+                            getLong(pos + 24));
+                    utxo = new UTXO(h, getInt(pos + OFF_INDEX));
+                } finally {
+                    lock.readLock().unlock();
+                }
+                slot = advance(slot + 1);
+                return utxo;
+            }
+        };
+    }
+
+    private long find(Hash256 h, int index) {
+        long mask = slots - 1;
+        long slot = home(h, index);
+        while (true) {
+            long pos = position(slot);
+            if (getInt(pos + OFF_ADDRESS) == 0)
+                return -1;
+            if (getInt(pos + OFF_INDEX) == index && hashEquals(pos, h))
+                return slot;
+            slot = (slot + 1) & mask;
+        }
+    }
+
+    private boolean hashEquals(long pos, Hash256 h) {
+        for (int w = 0; w < HASH_BYTES / 8; w++)
+            if (getLong(pos + 8 * w) != h.word(w))
+                return false;
+        return true;
+    }
+
+    /** Backward-shift deletion: pull later members of the probe run into the hole */
+    private void deleteSlot(long slot) {
+        long mask = slots - 1;
+        long hole = slot;
+        long next = (hole + 1) & mask;
+        while (getInt(position(next) + OFF_ADDRESS) != 0) {
+            long home = homeOfRecord(next);
+            if (((next - home) & mask) >= ((next - hole) & mask)) {
+                copyRecord(position(next), position(hole));
+                hole = next;
+            }
+            next = (next + 1) & mask;
+        }
+        putInt(position(hole) + OFF_ADDRESS, 0);
+    }
+
+    /** Rehashes into a table twice the size, written to a new file that replaces the old one */
+    private void grow() throws IOException {
+        Path data = dir.resolve("utxo.dat");
+        Path tmp = dir.resolve("utxo.dat.tmp");
+        Files.deleteIfExists(tmp);
+        FileChannel newChannel = FileChannel.open(tmp, StandardOpenOption.CREATE_NEW,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        long newSlots = slots * 2;
+        MappedByteBuffer[] newSegments = map(newChannel, newSlots);
+        for (long s = 0; s < slots; s++) {
+            long from = position(s);
+            if (getInt(from + OFF_ADDRESS) == 0)
+                continue;
+            long slot = mix(getLong(from), getLong(from + 8), getLong(from + 16),
+                    getLong(from + 24), getInt(from + OFF_INDEX), newSlots - 1);
+            while (true) {
+                long pos = position(slot);
+                if (newSegments[segment(pos)].getInt(offset(pos) + OFF_ADDRESS) == 0)
+                    break;
+                slot = (slot + 1) & (newSlots - 1);
+            }
+            long to = position(slot);
+            for (int i = 0; i < RECORD; i += 8)
+                newSegments[segment(to)].putLong(offset(to) + i, getLong(from + i));
+        }
+        segments = newSegments;
+        written = new boolean[segments.length];
+        slots = newSlots;
+        writeHeader();
+        for (MappedByteBuffer segment : segments)
+            segment.force();
+        Files.move(tmp, data, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        channel.close();
+        channel = newChannel;
+    }
+
+    /** Writes the header, which callers force on their own rather than marking segment 0 written */
+    private void writeHeader() {
+        MappedByteBuffer header = segments[0];
+        header.putLong(0, MAGIC);
+        header.putLong(8, slots);
+        header.putLong(16, size);
+        header.putLong(OFF_DIRTY, dirty ? 1 : 0);
+    }
+
+    private int addressId(Address key) throws IOException {
+        Integer id = addressIds.get(key);
+        if (id != null)
+            return id;
+        byte[] encoded = key.key.getEncoded();
+        ByteBuffer b = ByteBuffer.allocate(4 + encoded.length);
+        b.putInt(encoded.length).put(encoded).flip();
+        long end = addressFile.size();
+        while (b.hasRemaining())
+            end += addressFile.write(b, end);
+        id = addresses.size();
+        addresses.add(key);
+        addressIds.put(key, id);
+        return id;
+    }
+
+    private void loadAddresses() throws IOException {
+        long length = addressFile.size();
+        if (length == 0)
+            return;
+        ByteBuffer b = addressFile.map(FileChannel.MapMode.READ_ONLY, 0, length);
+        try {
+            KeyFactory factory = KeyFactory.getInstance("RSA");
+            while (b.remaining() >= 4) {
+                int n = b.getInt();
+                if (n < 0 || n > b.remaining())
+                    throw new IOException(dir.resolve("addresses.dat") + " is truncated");
+                byte[] encoded = new byte[n];
+                b.get(encoded);
+                Address key = Address.of(factory.generatePublic(new X509EncodedKeySpec(encoded)));
+                addressIds.put(key, addresses.size());
+                addresses.add(key);
+            }
+        } catch (NoSuchAlgorithmException | InvalidKeySpecException e) {
+            throw new IOException("cannot read " + dir.resolve("addresses.dat"), e);
+        }
+    }
+
+    private static MappedByteBuffer[] map(FileChannel ch, long slots) throws IOException {
+        long length = HEADER + slots * RECORD;
+        int n = (int) ((length + SEGMENT - 1) >>> SEGMENT_BITS);
+        MappedByteBuffer[] segments = new MappedByteBuffer[n];
+        for (int i = 0; i < n; i++) {
+            long start = (long) i << SEGMENT_BITS;
+            segments[i] = ch.map(FileChannel.MapMode.READ_WRITE, start,
+                    Math.min(SEGMENT, length - start));
+        }
+        return segments;
+    }
+
+    private long home(Hash256 h, int index) {
+        return mix(h.word(0), h.word(1), h.word(2), h.word(3), index, slots - 1);
+    }
+
+    private long homeOfRecord(long slot) {
+        long pos = position(slot);
+        return mix(getLong(pos), getLong(pos + 8), getLong(pos + 16), getLong(pos + 24),
+                getInt(pos + OFF_INDEX), slots - 1);
+    }
+
+    private static long mix(long w0, long w1, long w2, long w3, int index, long mask) {
+        long h = w0 * 0x9E3779B97F4A7C15L;
+        h = (h ^ w1) * 0x9E3779B97F4A7C15L;
+        h = (h ^ w2) * 0x9E3779B97F4A7C15L;
+        h = (h ^ w3 ^ index) * 0x9E3779B97F4A7C15L;
+        return (h ^ (h >>> 32)) & mask;
+    }
+
+    private static long position(long slot) {
+        return HEADER + slot * RECORD;
+    }
+
+    private void copyRecord(long from, long to) {
+        for (int i = 0; i < RECORD; i += 8)
+            putLong(to + i, getLong(from + i));
+    }
+
+    // Records never straddle segments: both HEADER and RECORD divide SEGMENT.
+
+    private static int segment(long pos) {
+        return (int) (pos >>> SEGMENT_BITS);
+    }
+
+    private static int offset(long pos) {
+        return (int) (pos & (SEGMENT - 1));
+    }
+
+    private int getInt(long pos) {
+        return segments[segment(pos)].getInt(offset(pos));
+    }
+
+    private long getLong(long pos) {
+        return segments[segment(pos)].getLong(offset(pos));
+    }
+
+    private double getDouble(long pos) {
+        return segments[segment(pos)].getDouble(offset(pos));
+    }
+
+    private void putInt(long pos, int v) {
+        written[segment(pos)] = true;
+        segments[segment(pos)].putInt(offset(pos), v);
+    }
+
+    private void putLong(long pos, long v) {
+        written[segment(pos)] = true;
+        segments[segment(pos)].putLong(offset(pos), v);
+    }
+
+    private void putDouble(long pos, double v) {
+        written[segment(pos)] = true;
+        segments[segment(pos)].putDouble(offset(pos), v);
+    }
+
+    /**
+     * Bounded cache of committed outputs, split into stripes by key hash. Each stripe is an
+     * access-ordered map under its own lock that drops its least recently used entry when full,
+     * so validation threads reading different UTXOs seldom wait for each other.
+     */
+    private static final class OutputCache {
+
+        private static final int STRIPES = 16;
+        /** the fewest entries a stripe holds, so small caches still evict by recency */
+        private static final int MIN_STRIPE = 64;
+
+        private final LinkedHashMap<UTXO, Transaction.Output>[] stripes;
+
+        @SuppressWarnings("unchecked")
+        OutputCache(int capacity) {
+            int n = Math.max(1, Math.min(STRIPES, capacity / MIN_STRIPE));
+            final int perStripe = Math.max(0, (capacity + n - 1) / n);
+            stripes = new LinkedHashMap[n];
+            for (int i = 0; i < n; i++) {
+                stripes[i] = new LinkedHashMap<UTXO, Transaction.Output>(16, 0.75f, true) {
+                    protected boolean removeEldestEntry(
+                            Map.Entry<UTXO, Transaction.Output> eldest) {
+                        return size() > perStripe;
+                    }
+                };
+            }
+        }
+
+        private LinkedHashMap<UTXO, Transaction.Output> stripe(UTXO utxo) {
+            int h = utxo.hashCode() * 0x9E3779B9;
+            return stripes[(h >>> 16) % stripes.length];
+        }
+
+        Transaction.Output get(UTXO utxo) {
+            LinkedHashMap<UTXO, Transaction.Output> stripe = stripe(utxo);
+            synchronized (stripe) {
+                return stripe.get(utxo);
+            }
+        }
+
+        boolean containsKey(UTXO utxo) {
+            return get(utxo) != null;
+        }
+
+        void put(UTXO utxo, Transaction.Output out) {
+            LinkedHashMap<UTXO, Transaction.Output> stripe = stripe(utxo);
+            synchronized (stripe) {
+                stripe.put(utxo, out);
+            }
+        }
+
+        void remove(UTXO utxo) {
+            LinkedHashMap<UTXO, Transaction.Output> stripe = stripe(utxo);
+            synchronized (stripe) {
+                stripe.remove(utxo);
+            }
+        }
+    }
+}
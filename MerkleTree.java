@@ -0,0 +1,196 @@
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.IntStream;
+
+/**
+ * Binary SHA-256 hash tree over transaction hashes. A leaf's node is the hash of a 0x00 byte and
+ * the leaf, and a parent is the hash of a 0x01 byte and its two children, so a parent can never
+ * pass for a leaf. A node without a right sibling moves up a level unchanged rather than being
+ * paired with itself, so no two lists of leaves give the same root. Appending a leaf rehashes
+ * only the path from that leaf to the root; building many leaves at once hashes each level in
+ * parallel.
+ */
+public class MerkleTree {
+
+    /** Root of a tree with no leaves */
+    public static final byte[] EMPTY_ROOT = new byte[32];
+
+    /** Minimum number of leaves to (re)build before levels are hashed in parallel */
+    static final int PARALLEL_THRESHOLD = 1024;
+
+    private static final ThreadLocal<MessageDigest> SHA256 = new ThreadLocal<MessageDigest>() {
+        protected MessageDigest initialValue() {
+            try {
+                return MessageDigest.getInstance("SHA-256");
+            } catch (NoSuchAlgorithmException x) {
+                throw new IllegalStateException(x);
+            }
+        }
+    };
+
+    private static final byte LEAF = 0;
+    private static final byte NODE = 1;
+
+    /** the leaves, as they were added */
+    private final ArrayList<byte[]> leaves = new ArrayList<byte[]>();
+    /** levels.get(0) holds the nodes of the leaves, the last level holds only the root */
+    private final ArrayList<ArrayList<byte[]>> levels = new ArrayList<ArrayList<byte[]>>();
+
+    public MerkleTree() {
+        levels.add(new ArrayList<byte[]>());
+    }
+
+    public int size() {
+        return leaves.size();
+    }
+
+    /** @return the leaf at {@code index}, as it was added */
+    public byte[] getLeaf(int index) {
+        return leaves.get(index);
+    }
+
+    public byte[] getRoot() {
+        if (size() == 0)
+            return EMPTY_ROOT.clone();
+        ArrayList<byte[]> top = levels.get(levels.size() - 1);
+        return top.get(0).clone();
+    }
+
+    /** Appends {@code leaf} and rehashes its path to the root */
+    public void add(byte[] leaf) {
+        leaves.add(leaf);
+        levels.get(0).add(hash(LEAF, leaf, null));
+        int index = leaves.size() - 1;
+        for (int level = 0; levels.get(level).size() > 1; level++) {
+            index >>= 1;
+            if (level + 1 == levels.size())
+                levels.add(new ArrayList<byte[]>());
+            setNode(level + 1, index, hashChildren(levels.get(level), index));
+        }
+    }
+
+    /** Appends every leaf in {@code leaves}, hashing in parallel when there are many */
+    public void addAll(List<byte[]> leaves) {
+        if (leaves.size() < PARALLEL_THRESHOLD) {
+            for (byte[] leaf : leaves)
+                add(leaf);
+            return;
+        }
+        this.leaves.addAll(leaves);
+        byte[][] added = new byte[leaves.size()][];
+        IntStream.range(0, added.length).parallel()
+                .forEach(i -> added[i] = hash(LEAF, leaves.get(i), null));
+        ArrayList<byte[]> nodes = new ArrayList<byte[]>(levels.get(0));
+        nodes.addAll(Arrays.asList(added));
+        rebuild(nodes);
+    }
+
+    /** Drops every leaf from {@code size} on and fixes up the right edge of the tree */
+    public void truncate(int size) {
+        if (size >= size())
+            return;
+        leaves.subList(size, leaves.size()).clear();
+        int n = size;
+        for (int level = 0; level < levels.size(); level++) {
+            ArrayList<byte[]> nodes = levels.get(level);
+            nodes.subList(n, nodes.size()).clear();
+            if (level > 0 && n > 0)
+                nodes.set(n - 1, hashChildren(levels.get(level - 1), n - 1));
+            if (n <= 1) {
+                levels.subList(level + 1, levels.size()).clear();
+                break;
+            }
+            n = (n + 1) / 2;
+        }
+    }
+
+    /**
+     * @return the sibling hashes from leaf {@code index} up to the root, for use with
+     *         {@link #verifyProof}; a level where the node has no sibling adds none
+     */
+    public ArrayList<byte[]> getProof(int index) {
+        if (index < 0 || index >= size())
+            throw new IndexOutOfBoundsException("no leaf " + index);
+        ArrayList<byte[]> proof = new ArrayList<byte[]>();
+        for (int level = 0; level < levels.size() - 1; level++) {
+            ArrayList<byte[]> nodes = levels.get(level);
+            int sibling = index ^ 1;
+            if (sibling < nodes.size())
+                proof.add(nodes.get(sibling));
+            index >>= 1;
+        }
+        return proof;
+    }
+
+    /**
+     * @return true if {@code leaf} at position {@code index} of a tree of {@code size} leaves
+     *         hashes up to {@code root} through {@code proof}, which must have exactly one hash
+     *         per level where the path has a sibling
+     */
+    public static boolean verifyProof(byte[] leaf, int index, int size, List<byte[]> proof,
+            byte[] root) {
+        if (index < 0 || index >= size)
+            return false;
+        byte[] h = hash(LEAF, leaf, null);
+        int used = 0;
+        for (int n = size; n > 1; n = (n + 1) / 2) {
+            if ((index ^ 1) < n) {
+                if (used == proof.size())
+                    return false;
+                byte[] sibling = proof.get(used++);
+                h = (index & 1) == 0 ? hash(NODE, h, sibling) : hash(NODE, sibling, h);
+            }
+            index >>= 1;
+        }
+        return used == proof.size() && Arrays.equals(h, root);
+    }
+
+    /** Rebuilds every level above {@code nodes}, the nodes of all the leaves */
+    private void rebuild(ArrayList<byte[]> nodes) {
+        levels.clear();
+        levels.add(nodes);
+        ArrayList<byte[]> current = nodes;
+        while (current.size() > 1) {
+            final ArrayList<byte[]> children = current;
+            byte[][] parents = new byte[(children.size() + 1) / 2][];
+            IntStream range = IntStream.range(0, parents.length);
+            if (parents.length >= PARALLEL_THRESHOLD / 2)
+                range = range.parallel();
+            range.forEach(i -> parents[i] = hashChildren(children, i));
+            current = new ArrayList<byte[]>(Arrays.asList(parents));
+            levels.add(current);
+        }
+    }
+
+    private void setNode(int level, int index, byte[] node) {
+        ArrayList<byte[]> nodes = levels.get(level);
+        if (index == nodes.size())
+            nodes.add(node);
+        else
+            nodes.set(index, node);
+    }
+
+    /**
+     * @return node {@code parent} of the level above {@code children}: the hash of its two
+     *         children, or its only child
+     */
+    private static byte[] hashChildren(ArrayList<byte[]> children, int parent) {
+        byte[] left = children.get(2 * parent);
+        if (2 * parent + 1 == children.size())
+            return left;
+        return hash(NODE, left, children.get(2 * parent + 1));
+    }
+
+    private static byte[] hash(byte prefix, byte[] left, byte[] right) {
+        MessageDigest md = SHA256.get();
+        md.reset();
+        md.update(prefix);
+        md.update(left);
+        if (right != null)
+            md.update(right);
+        return md.digest();
+    }
+}
@@ -0,0 +1,301 @@
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import jdk.jfr.Category;
+import jdk.jfr.Event;
+import jdk.jfr.EventType;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+/**
+ * Latency histograms, transaction counters and gauges for block and transaction processing, and
+ * the JDK Flight Recorder events that go with them. Hand one to {@link BlockChain#setMetrics} and
+ * to any {@link TxHandler} of interest; without one, nothing is measured. Recording is lock-free
+ * and allocates nothing, so it can stay on in production. Read the numbers with the getters, or
+ * pass them all to a {@link MetricsExporter} with {@link #export}.
+ *
+ * <p>
+ * A histogram has {@link #BUCKETS} buckets of nanoseconds: bucket 0 counts zero-length
+ * durations and bucket {@code i} the durations in {@code [2^(i-1), 2^i)}.
+ */
+public final class Metrics {
+
+    public static final int BUCKETS = 64;
+
+    /** The timed parts of block and transaction processing */
+    public enum Stage {
+        /** one {@link BlockChain#addBlock} call, orphans it connects included */
+        ADD_BLOCK,
+        /** one {@link TxHandler#handleTxs} call */
+        HANDLE_TXS,
+        /** one {@link BlockHandler#createBlock} call, adding the block to the chain included */
+        CREATE_BLOCK,
+        /** hashing a block built by {@link BlockHandler#createBlock} */
+        HASH,
+        /** one input signature checked on its own, or one batch checked ahead of time */
+        SIGNATURE_VERIFY,
+        /** building a block's parent UTXO pool, its delta and its own pool */
+        UTXO_APPLY,
+        /** dropping blocks below the cut-off and committing the oldest deltas */
+        PRUNE
+    }
+
+    /** Why a transaction was rejected, one per check of {@link TxHandler#isValidTx} */
+    public enum Rejection {
+        MISSING_INPUT,
+        DUPLICATE_INPUT,
+        INVALID_SIGNATURE,
+        NEGATIVE_OUTPUT,
+        INSUFFICIENT_INPUT,
+        /** spends an output already spent by another transaction of the batch */
+        CONFLICT
+    }
+
+    /** Why {@link TransactionPool} dropped a transaction, along with its pooled descendants */
+    public enum Eviction {
+        /** paid the lowest fee rate while the pool was over its byte budget */
+        SIZE_LIMIT,
+        /** stayed in the pool longer than its maximum age */
+        EXPIRED,
+        /**
+         * spends an outpoint a block joining the chain spends, or an output of a block leaving it
+         */
+        CONFLICT
+    }
+
+    public enum Gauge {
+        /** UTXOs in the max height block's pool */
+        UTXO_POOL_SIZE,
+        /** transactions in the transaction pool */
+        MEMPOOL_SIZE,
+        /** bytes of {@code getRawTx()} of the transactions in the transaction pool */
+        MEMPOOL_BYTES,
+        /** blocks the chain keeps in memory */
+        BLOCK_MODELS
+    }
+
+    private static final EventType CONNECT_EVENT = EventType.getEventType(BlockConnectEvent.class);
+    private static final EventType CREATE_EVENT = EventType.getEventType(BlockCreateEvent.class);
+    private static final EventType REJECT_EVENT = EventType.getEventType(TxRejectedEvent.class);
+
+    private final AtomicLongArray buckets = new AtomicLongArray(Stage.values().length * BUCKETS);
+    private final AtomicLongArray sums = new AtomicLongArray(Stage.values().length);
+    private final AtomicLongArray rejected = new AtomicLongArray(Rejection.values().length);
+    private final AtomicLongArray evictedTxs = new AtomicLongArray(Eviction.values().length);
+    private final AtomicLongArray evictedBytes = new AtomicLongArray(Eviction.values().length);
+    private final AtomicLongArray gauges = new AtomicLongArray(Gauge.values().length);
+    private final AtomicLongArray accepted = new AtomicLongArray(1);
+    private final AtomicLongArray storeFailures = new AtomicLongArray(1);
+
+    /**
+     * Records that {@code stage} ran from {@code startNanos}, a {@link System#nanoTime} value,
+     * until now
+     */
+    public void record(Stage stage, long startNanos) {
+        recordNanos(stage, System.nanoTime() - startNanos);
+    }
+
+    /** Records that {@code stage} took {@code nanos} nanoseconds */
+    public void recordNanos(Stage stage, long nanos) {
+        nanos = Math.max(0, nanos);
+        int bucket = BUCKETS - Long.numberOfLeadingZeros(nanos);
+        buckets.incrementAndGet(stage.ordinal() * BUCKETS + bucket);
+        sums.addAndGet(stage.ordinal(), nanos);
+    }
+
+    void accepted() {
+        accepted.incrementAndGet(0);
+    }
+
+    void rejected(Rejection reason, Transaction tx) {
+        rejected.incrementAndGet(reason.ordinal());
+        if (REJECT_EVENT.isEnabled()) {
+            TxRejectedEvent event = new TxRejectedEvent();
+            event.reason = reason.name();
+            event.txHash = tx.getHash() == null ? null : hex(tx.getHash());
+            event.commit();
+        }
+    }
+
+    void evicted(Eviction reason, int txs, long bytes) {
+        evictedTxs.addAndGet(reason.ordinal(), txs);
+        evictedBytes.addAndGet(reason.ordinal(), bytes);
+    }
+
+    void storeFailed() {
+        storeFailures.incrementAndGet(0);
+    }
+
+    void setGauge(Gauge gauge, long value) {
+        gauges.set(gauge.ordinal(), value);
+    }
+
+    /** Emits a {@link BlockConnectEvent} if a recording wants it */
+    void blockConnected(Block block, int height, boolean added, long startNanos) {
+        if (!CONNECT_EVENT.isEnabled())
+            return;
+        BlockConnectEvent event = new BlockConnectEvent();
+        event.blockHash = block == null || block.getHash() == null ? null : hex(block.getHash());
+        event.height = height;
+        event.transactions = block == null ? 0 : block.getTransactions().size();
+        event.added = added;
+        event.nanos = System.nanoTime() - startNanos;
+        event.commit();
+    }
+
+    /** Emits a {@link BlockCreateEvent} if a recording wants it */
+    void blockCreated(Block block, boolean added, long startNanos) {
+        if (!CREATE_EVENT.isEnabled())
+            return;
+        BlockCreateEvent event = new BlockCreateEvent();
+        event.blockHash = block.getHash() == null ? null : hex(block.getHash());
+        event.transactions = block.getTransactions().size();
+        event.added = added;
+        event.nanos = System.nanoTime() - startNanos;
+        event.commit();
+    }
+
+    /** @return how many times {@code stage} was recorded */
+    public long getCount(Stage stage) {
+        long n = 0;
+        for (int i = 0; i < BUCKETS; i++)
+            n += buckets.get(stage.ordinal() * BUCKETS + i);
+        return n;
+    }
+
+    /** @return the total nanoseconds recorded for {@code stage} */
+    public long getTotalNanos(Stage stage) {
+        return sums.get(stage.ordinal());
+    }
+
+    /** @return the number of recorded durations of {@code stage} in bucket {@code bucket} */
+    public long getBucketCount(Stage stage, int bucket) {
+        return buckets.get(stage.ordinal() * BUCKETS + bucket);
+    }
+
+    /**
+     * @return an upper bound, within a factor of two, on the {@code quantile} (0 to 1) of the
+     *         durations recorded for {@code stage}, in nanoseconds; 0 if none were recorded
+     */
+    public long getQuantileNanos(Stage stage, double quantile) {
+        long count = getCount(stage);
+        if (count == 0)
+            return 0;
+        long rank = Math.max(1, (long) Math.ceil(quantile * count));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += getBucketCount(stage, i);
+            if (seen >= rank)
+                return i == 0 ? 0 : (1L << i) - 1;
+        }
+        return Long.MAX_VALUE;
+    }
+
+    /**
+     * @return the number of transactions {@link TxHandler#handleTxs} accepted; for a
+     *         {@link BlockChain}, those of the blocks it validated
+     */
+    public long getAcceptedCount() {
+        return accepted.get(0);
+    }
+
+    /** @return the number of transactions rejected for {@code reason} */
+    public long getRejectedCount(Rejection reason) {
+        return rejected.get(reason.ordinal());
+    }
+
+    /** @return the number of transactions evicted for {@code reason} */
+    public long getEvictedCount(Eviction reason) {
+        return evictedTxs.get(reason.ordinal());
+    }
+
+    /** @return the bytes of {@code getRawTx()} of the transactions evicted for {@code reason} */
+    public long getEvictedBytes(Eviction reason) {
+        return evictedBytes.get(reason.ordinal());
+    }
+
+    /** @return the number of times writing a disk-backed UTXO set failed */
+    public long getStoreFailureCount() {
+        return storeFailures.get(0);
+    }
+
+    public long getGauge(Gauge gauge) {
+        return gauges.get(gauge.ordinal());
+    }
+
+    /** Passes every counter, gauge and histogram to {@code exporter}, named in lower case */
+    public void export(MetricsExporter exporter) {
+        exporter.counter("txs.accepted", getAcceptedCount());
+        for (Rejection r : Rejection.values())
+            exporter.counter("txs.rejected." + r.name().toLowerCase(Locale.ROOT),
+                    getRejectedCount(r));
+        for (Eviction e : Eviction.values()) {
+            String name = e.name().toLowerCase(Locale.ROOT);
+            exporter.counter("txs.evicted." + name, getEvictedCount(e));
+            exporter.counter("bytes.evicted." + name, getEvictedBytes(e));
+        }
+        exporter.counter("store.failures", getStoreFailureCount());
+        for (Gauge g : Gauge.values())
+            exporter.gauge(g.name().toLowerCase(Locale.ROOT), getGauge(g));
+        for (Stage s : Stage.values()) {
+            long[] counts = new long[BUCKETS];
+            for (int i = 0; i < BUCKETS; i++)
+                counts[i] = getBucketCount(s, i);
+            exporter.histogram(s.name().toLowerCase(Locale.ROOT), counts, getTotalNanos(s));
+        }
+    }
+
+    private static String hex(byte[] bytes) {
+        StringBuilder sb = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes)
+            sb.append(Character.forDigit((b >> 4) & 0xf, 16))
+                    .append(Character.forDigit(b & 0xf, 16));
+        return sb.toString();
+    }
+
+    @Name("blockchain.BlockConnect")
+    @Label("Block Connect")
+    @Category("Block Chain")
+    @StackTrace(false)
+    static class BlockConnectEvent extends Event {
+        @Label("Block Hash")
+        String blockHash;
+        @Label("Height")
+        int height;
+        @Label("Transactions")
+        int transactions;
+        @Label("Added")
+        boolean added;
+        @Label("Duration")
+        @Timespan(Timespan.NANOSECONDS)
+        long nanos;
+    }
+
+    @Name("blockchain.BlockCreate")
+    @Label("Block Create")
+    @Category("Block Chain")
+    @StackTrace(false)
+    static class BlockCreateEvent extends Event {
+        @Label("Block Hash")
+        String blockHash;
+        @Label("Transactions")
+        int transactions;
+        @Label("Added")
+        boolean added;
+        @Label("Duration")
+        @Timespan(Timespan.NANOSECONDS)
+        long nanos;
+    }
+
+    @Name("blockchain.TxRejected")
+    @Label("Transaction Rejected")
+    @Category("Block Chain")
+    static class TxRejectedEvent extends Event {
+        @Label("Reason")
+        String reason;
+        @Label("Transaction Hash")
+        String txHash;
+    }
+}
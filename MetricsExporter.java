@@ -0,0 +1,16 @@
+/**
+ * Receives the numbers of a {@link Metrics} from {@link Metrics#export}, to send them to a
+ * monitoring system. Counters only grow; take differences between exports for rates.
+ */
+public interface MetricsExporter {
+
+    void counter(String name, long value);
+
+    void gauge(String name, long value);
+
+    /**
+     * @param bucketCounts the number of durations in each bucket, as described in {@link Metrics}
+     * @param totalNanos   the sum of all the durations
+     */
+    void histogram(String name, long[] bucketCounts, long totalNanos);
+}
@@ -0,0 +1,137 @@
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * Bounded buffer for blocks whose parent {@link BlockChain} has not seen yet, indexed by the hash
+ * of the missing parent. When the pool is full the oldest orphan is evicted, and orphans older
+ * than the maximum age are dropped whenever a new one is added. All methods synchronize on the
+ * pool.
+ */
+public class OrphanBlockPool {
+
+    public static final int DEFAULT_CAPACITY = 100;
+    public static final long DEFAULT_MAX_AGE_MILLIS = 20 * 60 * 1000L;
+
+    private final int capacity;
+    private final long maxAgeNanos;
+    /** oldest first */
+    private final LinkedHashMap<Hash256, Orphan> byHash = new LinkedHashMap<Hash256, Orphan>();
+    private final HashMap<Hash256, ArrayList<Orphan>> byPrevHash =
+            new HashMap<Hash256, ArrayList<Orphan>>();
+    private long added;
+    private long resolved;
+    private long evicted;
+
+    private static class Orphan {
+        final Block block;
+        final Hash256 hash;
+        final Hash256 prevHash;
+        final long arrival;
+
+        Orphan(Block block, long arrival) {
+            this.block = block;
+            this.hash = block.getHashId();
+            this.prevHash = Hash256.of(block.getPrevBlockHash());
+            this.arrival = arrival;
+        }
+    }
+
+    public OrphanBlockPool() {
+        this(DEFAULT_CAPACITY, DEFAULT_MAX_AGE_MILLIS);
+    }
+
+    public OrphanBlockPool(int capacity, long maxAgeMillis) {
+        if (capacity < 1 || maxAgeMillis <= 0)
+            throw new IllegalArgumentException("capacity and maximum age must be positive");
+        this.capacity = capacity;
+        this.maxAgeNanos = maxAgeMillis * 1000000L;
+    }
+
+    /**
+     * Buffers {@code block} until its parent connects, evicting expired orphans and, if still
+     * full, the oldest one.
+     *
+     * @return false if the block is already buffered or has no parent hash
+     */
+    public synchronized boolean add(Block block) {
+        if (block.getHash() == null || block.getPrevBlockHash() == null)
+            return false;
+        long now = System.nanoTime();
+        Orphan orphan = new Orphan(block, now);
+        if (byHash.containsKey(orphan.hash))
+            return false;
+        Iterator<Orphan> it = byHash.values().iterator();
+        while (it.hasNext()) {
+            Orphan oldest = it.next();
+            if (byHash.size() < capacity && now - oldest.arrival <= maxAgeNanos)
+                break;
+            it.remove();
+            unindex(oldest);
+            evicted++;
+        }
+        byHash.put(orphan.hash, orphan);
+        ArrayList<Orphan> siblings = byPrevHash.get(orphan.prevHash);
+        if (siblings == null) {
+            siblings = new ArrayList<Orphan>(1);
+            byPrevHash.put(orphan.prevHash, siblings);
+        }
+        siblings.add(orphan);
+        added++;
+        return true;
+    }
+
+    /** Removes and returns the buffered blocks whose parent is {@code parentHash}, oldest first */
+    public synchronized ArrayList<Block> removeChildren(byte[] parentHash) {
+        ArrayList<Block> blocks = new ArrayList<Block>();
+        ArrayList<Orphan> children = byPrevHash.remove(Hash256.of(parentHash));
+        if (children == null)
+            return blocks;
+        for (Orphan orphan : children) {
+            byHash.remove(orphan.hash);
+            blocks.add(orphan.block);
+        }
+        resolved += children.size();
+        return blocks;
+    }
+
+    public synchronized boolean contains(byte[] blockHash) {
+        return byHash.containsKey(Hash256.of(blockHash));
+    }
+
+    /** @return the number of blocks buffered now */
+    public synchronized int size() {
+        return byHash.size();
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /** @return the number of blocks ever buffered */
+    public synchronized long getAddedCount() {
+        return added;
+    }
+
+    /** @return the number of buffered blocks whose parent later connected */
+    public synchronized long getResolvedCount() {
+        return resolved;
+    }
+
+    /** @return the number of buffered blocks dropped for age or lack of room */
+    public synchronized long getEvictedCount() {
+        return evicted;
+    }
+
+    public synchronized void clear() {
+        byHash.clear();
+        byPrevHash.clear();
+    }
+
+    private void unindex(Orphan orphan) {
+        ArrayList<Orphan> siblings = byPrevHash.get(orphan.prevHash);
+        if (siblings != null && siblings.remove(orphan) && siblings.isEmpty())
+            byPrevHash.remove(orphan.prevHash);
+    }
+}
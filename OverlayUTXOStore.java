@@ -0,0 +1,204 @@
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+/**
+ * {@link UTXOStore} made of the changes since the last commit, held in a
+ * {@link PersistentHashMap}, over a shared {@link MappedUTXOStore} holding the committed set.
+ * Forking shares the base and forks the change map in O(1).
+ *
+ * The committed set must stay an ancestor state of every overlay over it: {@link #commit} may
+ * only write changes that every live overlay on the same base already holds. An overlay keeps a
+ * marker for every UTXO it spends, so overlays remain correct across a commit whether or not they
+ * drop what it wrote. An overlay whose state a commit does not lead to must have its
+ * {@link Lineage} expired before that commit; reading the base through it then throws
+ * {@link IllegalStateException} instead of mixing the two states.
+ */
+class OverlayUTXOStore implements UTXOStore {
+
+    /** marks a committed UTXO that this overlay has spent */
+    private static final Object REMOVED = new Object();
+
+    private final MappedUTXOStore base;
+    private volatile PersistentHashMap<UTXO, Object> changes;
+    private int size;
+    /** set by {@link #freeze}; a commit then freezes the change map it swaps in */
+    private boolean frozen;
+    private Lineage lineage = new Lineage();
+
+    /**
+     * Shared by an overlay and its forks until one of them starts its own. Once expired, the base
+     * may have been committed past their state, and reading the base through them throws.
+     */
+    static final class Lineage {
+        private volatile boolean expired;
+
+        void expire() {
+            expired = true;
+        }
+    }
+
+    public OverlayUTXOStore(MappedUTXOStore base) {
+        this.base = base;
+        this.changes = new PersistentHashMap<UTXO, Object>();
+        this.size = (int) base.size();
+    }
+
+    private OverlayUTXOStore(OverlayUTXOStore store) {
+        base = store.base;
+        changes = store.changes.fork();
+        size = store.size;
+        lineage = store.lineage;
+    }
+
+    MappedUTXOStore getBase() {
+        return base;
+    }
+
+    /** Gives this overlay, and the forks made of it from now on, a lineage of their own */
+    Lineage startLineage() {
+        lineage = new Lineage();
+        return lineage;
+    }
+
+    /**
+     * Throws if this overlay's lineage has expired. Checked after reading the base: a commit
+     * expires the lineage before it writes, so a read that saw the write also sees the expiry.
+     */
+    private void checkLineage() {
+        if (lineage.expired)
+            throw new IllegalStateException("UTXO pool is older than the committed UTXO set");
+    }
+
+    public Transaction.Output get(UTXO utxo) {
+        Object change = changes.get(utxo);
+        if (change == REMOVED)
+            return null;
+        if (change != null)
+            return (Transaction.Output) change;
+        Transaction.Output out = base.get(utxo);
+        checkLineage();
+        return out;
+    }
+
+    public boolean contains(UTXO utxo) {
+        Object change = changes.get(utxo);
+        if (change != null)
+            return change != REMOVED;
+        boolean found = base.contains(utxo);
+        checkLineage();
+        return found;
+    }
+
+    public void put(UTXO utxo, Transaction.Output txOut) {
+        if (!contains(utxo))
+            size++;
+        changes.put(utxo, txOut);
+    }
+
+    public Transaction.Output remove(UTXO utxo) {
+        Transaction.Output old = get(utxo);
+        if (old == null)
+            return null;
+        size--;
+        // Always leave a marker, even if the base lacks the UTXO: a commit from an ancestor
+        // overlay may add it to the base later.
+        changes.put(utxo, REMOVED);
+        return old;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public Iterator<UTXO> iterator() {
+        final Iterator<Map.Entry<UTXO, Object>> added = changes.iterator();
+        final Iterator<UTXO> committed = base.iterator();
+        return new Iterator<UTXO>() {
+            private UTXO next = advance();
+
+            private UTXO advance() {
+                while (added.hasNext()) {
+                    Map.Entry<UTXO, Object> e = added.next();
+                    if (e.getValue() != REMOVED)
+                        return e.getKey();
+                }
+                while (committed.hasNext()) {
+                    UTXO u = committed.next();
+                    checkLineage();
+                    if (changes.get(u) == null)
+                        return u;
+                }
+                return null;
+            }
+
+            public boolean hasNext() {
+                return next != null;
+            }
+
+            public UTXO next() {
+                if (next == null)
+                    throw new NoSuchElementException();
+                UTXO u = next;
+                next = advance();
+                return u;
+            }
+        };
+    }
+
+    public UTXOStore fork() {
+        return new OverlayUTXOStore(this);
+    }
+
+    public void freeze() {
+        frozen = true;
+        changes.freeze();
+    }
+
+    /**
+     * Writes {@code deltas}, which in order take the committed set to an ancestor state of this
+     * overlay, to the base as one batch. This overlay then drops each change the base now agrees
+     * with. Other overlays on the same base keep theirs, which agree with the base.
+     */
+    void commit(List<UTXODelta> deltas) throws IOException {
+        // Only the last change to each UTXO matters. Identical coinbase transactions share a
+        // hash, so a UTXO may be created, spent and created again along the way.
+        LinkedHashMap<UTXO, Object> net = new LinkedHashMap<UTXO, Object>();
+        for (UTXODelta delta : deltas) {
+            for (UTXO utxo : delta.spent)
+                net.put(utxo, REMOVED);
+            for (int i = 0; i < delta.created.size(); i++)
+                net.put(delta.created.get(i), delta.createdOutputs.get(i));
+        }
+        ArrayList<Map.Entry<UTXO, Object>> batch =
+                new ArrayList<Map.Entry<UTXO, Object>>(net.size());
+        for (Map.Entry<UTXO, Object> e : net.entrySet())
+            if (MappedUTXOStore.isStorable(e.getKey()))
+                batch.add(e);
+        Transaction.Output[] current = new Transaction.Output[batch.size()];
+        for (int i = 0; i < current.length; i++)
+            current[i] = get(batch.get(i).getKey());
+        base.apply(batch, REMOVED);
+
+        // Keep a change only where this overlay's state differs from the base's. A spent marker
+        // cannot be matched to the spend that left it, so compare states, not markers. Strip a
+        // fork and swap it in, so a thread reading this overlay meanwhile sees one map or the
+        // other.
+        PersistentHashMap<UTXO, Object> stripped = changes.fork();
+        for (int i = 0; i < current.length; i++) {
+            UTXO utxo = batch.get(i).getKey();
+            Object written = batch.get(i).getValue();
+            if (current[i] == null ? written == REMOVED : written == current[i])
+                stripped.remove(utxo);
+            else
+                stripped.put(utxo, current[i] == null ? REMOVED : current[i]);
+        }
+        if (frozen)
+            stripped.freeze();
+        changes = stripped;
+    }
+}
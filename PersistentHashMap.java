@@ -0,0 +1,397 @@
+import java.util.AbstractMap;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+/**
+ * A hash array mapped trie with copy-on-write structural sharing. {@link #fork()} is O(1): the
+ * returned map shares every node with this one, and each side copies only the path it touches on
+ * the next write. Nodes created since the last fork are owned by the map that created them and are
+ * updated in place, so a run of writes between forks does not re-copy the same path.
+ *
+ * Keys and values must not be null.
+ */
+class PersistentHashMap<K, V> implements Iterable<Map.Entry<K, V>> {
+
+    private static final int BITS = 5;
+    private static final int MASK = (1 << BITS) - 1;
+
+    private Node root;
+    private int size;
+    /** ownership token for nodes this map may mutate in place, or null once frozen */
+    private Object edit;
+
+    public PersistentHashMap() {
+        edit = new Object();
+    }
+
+    private PersistentHashMap(Node root, int size) {
+        this.root = root;
+        this.size = size;
+        this.edit = new Object();
+    }
+
+    /** @return a map with the same contents that shares all structure with this one */
+    public PersistentHashMap<K, V> fork() {
+        // Both sides must stop mutating the nodes they now share.
+        if (edit != null)
+            edit = new Object();
+        return share();
+    }
+
+    /**
+     * Like {@link #fork()}, but leaves this map's ownership of its nodes alone, so it writes
+     * nothing. Only for a map that is never written again, such as one another map has forked.
+     */
+    PersistentHashMap<K, V> share() {
+        return new PersistentHashMap<K, V>(root, size);
+    }
+
+    /**
+     * Makes this map read-only. {@link #fork()} and {@link #iterator()} then write nothing to it,
+     * so any number of threads may use a frozen map at once.
+     */
+    public void freeze() {
+        edit = null;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    @SuppressWarnings("unchecked")
+    public V get(K key) {
+        if (root == null)
+            return null;
+        return (V) root.find(spread(key.hashCode()), 0, key);
+    }
+
+    public boolean containsKey(K key) {
+        return get(key) != null;
+    }
+
+    /** @return the previous value mapped to {@code key}, or null */
+    @SuppressWarnings("unchecked")
+    public V put(K key, V value) {
+        if (value == null)
+            throw new NullPointerException("null values are not supported");
+        checkWritable();
+        Box old = new Box();
+        Node r = root == null ? BitmapNode.EMPTY : root;
+        root = r.put(edit, spread(key.hashCode()), 0, key, value, old);
+        if (!old.found)
+            size++;
+        return (V) old.value;
+    }
+
+    /** @return the value that was mapped to {@code key}, or null */
+    @SuppressWarnings("unchecked")
+    public V remove(K key) {
+        checkWritable();
+        if (root == null)
+            return null;
+        Box old = new Box();
+        root = root.remove(edit, spread(key.hashCode()), 0, key, old);
+        if (old.found)
+            size--;
+        return (V) old.value;
+    }
+
+    /** Iterates over a snapshot; writes made after this call are not observed. */
+    public Iterator<Map.Entry<K, V>> iterator() {
+        if (edit != null)
+            edit = new Object();
+        return sharedIterator();
+    }
+
+    /** Like {@link #iterator()}, but writes nothing; only for a map that is never written again */
+    Iterator<Map.Entry<K, V>> sharedIterator() {
+        return new EntryIterator<K, V>(root);
+    }
+
+    private void checkWritable() {
+        if (edit == null)
+            throw new IllegalStateException("map is frozen");
+    }
+
+    private static int spread(int h) {
+        h *= 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    private static final class Box {
+        boolean found;
+        Object value;
+    }
+
+    private abstract static class Node {
+        final Object edit;
+
+        Node(Object edit) {
+            this.edit = edit;
+        }
+
+        abstract Object find(int hash, int shift, Object key);
+
+        abstract Node put(Object edit, int hash, int shift, Object key, Object value, Box old);
+
+        /** @return the updated node, or null if it became empty */
+        abstract Node remove(Object edit, int hash, int shift, Object key, Box old);
+    }
+
+    /**
+     * Interior node. {@code array} holds key/value pairs for the set bits of {@code bitmap}; a null
+     * key means the value slot holds a child node.
+     */
+    private static final class BitmapNode extends Node {
+        static final BitmapNode EMPTY = new BitmapNode(null, 0, new Object[0]);
+
+        int bitmap;
+        Object[] array;
+
+        BitmapNode(Object edit, int bitmap, Object[] array) {
+            super(edit);
+            this.bitmap = bitmap;
+            this.array = array;
+        }
+
+        private int index(int bit) {
+            return Integer.bitCount(bitmap & (bit - 1));
+        }
+
+        Object find(int hash, int shift, Object key) {
+            int bit = 1 << ((hash >>> shift) & MASK);
+            if ((bitmap & bit) == 0)
+                return null;
+            int idx = index(bit);
+            Object k = array[2 * idx];
+            Object v = array[2 * idx + 1];
+            if (k == null)
+                return ((Node) v).find(hash, shift + BITS, key);
+            if (key.equals(k))
+                return v;
+            return null;
+        }
+
+        Node put(Object edit, int hash, int shift, Object key, Object value, Box old) {
+            int bit = 1 << ((hash >>> shift) & MASK);
+            int idx = index(bit);
+            if ((bitmap & bit) != 0) {
+                Object k = array[2 * idx];
+                Object v = array[2 * idx + 1];
+                if (k == null) {
+                    Node child = (Node) v;
+                    Node n = child.put(edit, hash, shift + BITS, key, value, old);
+                    if (n == child)
+                        return this;
+                    return editAndSet(edit, 2 * idx + 1, n);
+                }
+                if (key.equals(k)) {
+                    old.found = true;
+                    old.value = v;
+                    if (v == value)
+                        return this;
+                    return editAndSet(edit, 2 * idx + 1, value);
+                }
+                Node child = createNode(edit, shift + BITS, k, v, hash, key, value);
+                BitmapNode n = ensureEditable(edit);
+                n.array[2 * idx] = null;
+                n.array[2 * idx + 1] = child;
+                return n;
+            }
+            Object[] a = new Object[array.length + 2];
+            System.arraycopy(array, 0, a, 0, 2 * idx);
+            a[2 * idx] = key;
+            a[2 * idx + 1] = value;
+            System.arraycopy(array, 2 * idx, a, 2 * idx + 2, array.length - 2 * idx);
+            if (this.edit == edit && this != EMPTY) {
+                bitmap |= bit;
+                array = a;
+                return this;
+            }
+            return new BitmapNode(edit, bitmap | bit, a);
+        }
+
+        Node remove(Object edit, int hash, int shift, Object key, Box old) {
+            int bit = 1 << ((hash >>> shift) & MASK);
+            if ((bitmap & bit) == 0)
+                return this;
+            int idx = index(bit);
+            Object k = array[2 * idx];
+            Object v = array[2 * idx + 1];
+            if (k == null) {
+                Node child = (Node) v;
+                Node n = child.remove(edit, hash, shift + BITS, key, old);
+                if (n == child)
+                    return this;
+                if (n != null)
+                    return editAndSet(edit, 2 * idx + 1, n);
+            } else if (key.equals(k)) {
+                old.found = true;
+                old.value = v;
+            } else {
+                return this;
+            }
+            if (bitmap == bit)
+                return null;
+            Object[] a = new Object[array.length - 2];
+            System.arraycopy(array, 0, a, 0, 2 * idx);
+            System.arraycopy(array, 2 * idx + 2, a, 2 * idx, a.length - 2 * idx);
+            if (this.edit == edit) {
+                bitmap ^= bit;
+                array = a;
+                return this;
+            }
+            return new BitmapNode(edit, bitmap ^ bit, a);
+        }
+
+        private BitmapNode ensureEditable(Object edit) {
+            if (this.edit == edit)
+                return this;
+            return new BitmapNode(edit, bitmap, array.clone());
+        }
+
+        private BitmapNode editAndSet(Object edit, int i, Object o) {
+            BitmapNode n = ensureEditable(edit);
+            n.array[i] = o;
+            return n;
+        }
+
+        private static Node createNode(Object edit, int shift, Object k1, Object v1, int h2,
+                Object k2, Object v2) {
+            int h1 = spread(k1.hashCode());
+            if (h1 == h2)
+                return new CollisionNode(edit, h1, new Object[] { k1, v1, k2, v2 });
+            Box unused = new Box();
+            return EMPTY.put(edit, h1, shift, k1, v1, unused).put(edit, h2, shift, k2, v2, unused);
+        }
+    }
+
+    /** Leaf holding keys whose spread hashes are identical. */
+    private static final class CollisionNode extends Node {
+        final int hash;
+        Object[] array;
+
+        CollisionNode(Object edit, int hash, Object[] array) {
+            super(edit);
+            this.hash = hash;
+            this.array = array;
+        }
+
+        private int indexOf(Object key) {
+            for (int i = 0; i < array.length; i += 2)
+                if (key.equals(array[i]))
+                    return i;
+            return -1;
+        }
+
+        Object find(int hash, int shift, Object key) {
+            int i = indexOf(key);
+            return i < 0 ? null : array[i + 1];
+        }
+
+        Node put(Object edit, int hash, int shift, Object key, Object value, Box old) {
+            if (hash != this.hash) {
+                Node n = new BitmapNode(edit, 1 << ((this.hash >>> shift) & MASK),
+                        new Object[] { null, this });
+                return n.put(edit, hash, shift, key, value, old);
+            }
+            int i = indexOf(key);
+            Object[] a;
+            if (i >= 0) {
+                old.found = true;
+                old.value = array[i + 1];
+                if (array[i + 1] == value)
+                    return this;
+                a = array.clone();
+                a[i + 1] = value;
+            } else {
+                a = new Object[array.length + 2];
+                System.arraycopy(array, 0, a, 0, array.length);
+                a[array.length] = key;
+                a[array.length + 1] = value;
+            }
+            if (this.edit == edit) {
+                array = a;
+                return this;
+            }
+            return new CollisionNode(edit, hash, a);
+        }
+
+        Node remove(Object edit, int hash, int shift, Object key, Box old) {
+            int i = indexOf(key);
+            if (i < 0)
+                return this;
+            old.found = true;
+            old.value = array[i + 1];
+            if (array.length == 2)
+                return null;
+            Object[] a = new Object[array.length - 2];
+            System.arraycopy(array, 0, a, 0, i);
+            System.arraycopy(array, i + 2, a, i, a.length - i);
+            if (this.edit == edit) {
+                array = a;
+                return this;
+            }
+            return new CollisionNode(edit, hash, a);
+        }
+    }
+
+    /** Depth-first walk over the trie. */
+    private static final class EntryIterator<K, V> implements Iterator<Map.Entry<K, V>> {
+        private final ArrayDeque<Object[]> arrays = new ArrayDeque<Object[]>();
+        private final ArrayDeque<Integer> positions = new ArrayDeque<Integer>();
+        private Object[] current;
+        private int pos;
+        private Map.Entry<K, V> next;
+
+        EntryIterator(Node root) {
+            if (root != null)
+                current = arrayOf(root);
+            advance();
+        }
+
+        private static Object[] arrayOf(Node n) {
+            if (n instanceof BitmapNode)
+                return ((BitmapNode) n).array;
+            return ((CollisionNode) n).array;
+        }
+
+        @SuppressWarnings("unchecked")
+        private void advance() {
+            next = null;
+            while (current != null) {
+                if (pos >= current.length) {
+                    current = arrays.poll();
+                    pos = current == null ? 0 : positions.pop();
+                    continue;
+                }
+                Object k = current[pos];
+                Object v = current[pos + 1];
+                pos += 2;
+                if (k == null) {
+                    arrays.push(current);
+                    positions.push(pos);
+                    current = arrayOf((Node) v);
+                    pos = 0;
+                } else {
+                    next = new AbstractMap.SimpleImmutableEntry<K, V>((K) k, (V) v);
+                    return;
+                }
+            }
+        }
+
+        public boolean hasNext() {
+            return next != null;
+        }
+
+        public Map.Entry<K, V> next() {
+            if (next == null)
+                throw new NoSuchElementException();
+            Map.Entry<K, V> e = next;
+            advance();
+            return e;
+        }
+    }
+}
@@ -0,0 +1,60 @@
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Default {@link UTXOStore}. Forking is O(1) and a forked store shares every unchanged node of
+ * the trie with its parent, so per-block pools cost only the outputs that block touched.
+ */
+class PersistentUTXOStore implements UTXOStore {
+
+    private final PersistentHashMap<UTXO, Transaction.Output> map;
+
+    public PersistentUTXOStore() {
+        map = new PersistentHashMap<UTXO, Transaction.Output>();
+    }
+
+    private PersistentUTXOStore(PersistentHashMap<UTXO, Transaction.Output> map) {
+        this.map = map;
+    }
+
+    public Transaction.Output get(UTXO utxo) {
+        return map.get(utxo);
+    }
+
+    public boolean contains(UTXO utxo) {
+        return map.containsKey(utxo);
+    }
+
+    public void put(UTXO utxo, Transaction.Output txOut) {
+        map.put(utxo, txOut);
+    }
+
+    public Transaction.Output remove(UTXO utxo) {
+        return map.remove(utxo);
+    }
+
+    public int size() {
+        return map.size();
+    }
+
+    public Iterator<UTXO> iterator() {
+        final Iterator<Map.Entry<UTXO, Transaction.Output>> it = map.iterator();
+        return new Iterator<UTXO>() {
+            public boolean hasNext() {
+                return it.hasNext();
+            }
+
+            public UTXO next() {
+                return it.next().getKey();
+            }
+        };
+    }
+
+    public UTXOStore fork() {
+        return new PersistentUTXOStore(map.fork());
+    }
+
+    public void freeze() {
+        map.freeze();
+    }
+}
@@ -0,0 +1,177 @@
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Produces the raw encodings of {@link Transaction} and {@link Block} (the bytes returned by
+ * {@code getRawTx}, {@code getRawDataToSign} and {@code getRawBlock}) without boxing each byte or
+ * allocating per field. Bytes are written either into a reusable buffer or straight into a
+ * SHA-256 digest. Each thread has its own encoder; see {@link #local()}.
+ */
+final class RawEncoder {
+
+    private static final ThreadLocal<RawEncoder> LOCAL = new ThreadLocal<RawEncoder>() {
+        protected RawEncoder initialValue() {
+            return new RawEncoder();
+        }
+    };
+
+    private byte[] buf = new byte[1024];
+    private int len;
+    /** when non-null, bytes go to this digest instead of {@code buf} */
+    private MessageDigest digest;
+    private MessageDigest sha256;
+    private final byte[] scratch = new byte[8];
+
+    private RawEncoder() {
+    }
+
+    /** @return the encoder owned by the calling thread */
+    static RawEncoder local() {
+        return LOCAL.get();
+    }
+
+    byte[] rawTx(Transaction tx) {
+        startBuffer();
+        writeTx(tx);
+        return Arrays.copyOf(buf, len);
+    }
+
+    /** @return the bytes signed by input {@code index}, or null if there is no such input */
+    byte[] rawDataToSign(Transaction tx, int index) {
+        ArrayList<Transaction.Input> inputs = tx.getInputs();
+        if (index > inputs.size())
+            return null;
+        Transaction.Input in = inputs.get(index);
+        startBuffer();
+        if (in.prevTxHash != null)
+            write(in.prevTxHash);
+        writeInt(in.outputIndex);
+        for (Transaction.Output op : tx.getOutputs())
+            writeOutput(op);
+        return Arrays.copyOf(buf, len);
+    }
+
+    /**
+     * @return the SHA-256 of {@code tx.getRawDataToSign(index)}, or null if there is no such
+     *         input
+     */
+    byte[] hashDataToSign(Transaction tx, int index) throws NoSuchAlgorithmException {
+        ArrayList<Transaction.Input> inputs = tx.getInputs();
+        if (index >= inputs.size())
+            return null;
+        Transaction.Input in = inputs.get(index);
+        startDigest();
+        if (in.prevTxHash != null)
+            write(in.prevTxHash);
+        writeInt(in.outputIndex);
+        for (Transaction.Output op : tx.getOutputs())
+            writeOutput(op);
+        return digest.digest();
+    }
+
+    byte[] rawBlock(Block block) {
+        startBuffer();
+        writeBlock(block);
+        return Arrays.copyOf(buf, len);
+    }
+
+    /** @return the length of {@code tx.getRawTx()}, computed without encoding */
+    static int rawTxSize(Transaction tx) {
+        int n = 0;
+        for (Transaction.Input in : tx.getInputs()) {
+            if (in.prevTxHash != null)
+                n += in.prevTxHash.length;
+            n += 4;
+            if (in.signature != null)
+                n += in.signature.length;
+        }
+        for (Transaction.Output op : tx.getOutputs())
+            n += 8 + op.getAddressExponentBytes().length + op.getAddressModulusBytes().length;
+        return n;
+    }
+
+    /** @return the SHA-256 of {@code tx.getRawTx()} */
+    byte[] hashTx(Transaction tx) throws NoSuchAlgorithmException {
+        startDigest();
+        writeTx(tx);
+        return digest.digest();
+    }
+
+    /** @return the SHA-256 of {@code block.getRawBlock()} */
+    byte[] hashBlock(Block block) throws NoSuchAlgorithmException {
+        startDigest();
+        writeBlock(block);
+        return digest.digest();
+    }
+
+    private void startBuffer() {
+        digest = null;
+        len = 0;
+    }
+
+    private void startDigest() throws NoSuchAlgorithmException {
+        if (sha256 == null)
+            sha256 = MessageDigest.getInstance("SHA-256");
+        sha256.reset();
+        digest = sha256;
+    }
+
+    private void writeBlock(Block block) {
+        byte[] prevBlockHash = block.getPrevBlockHash();
+        if (prevBlockHash != null)
+            write(prevBlockHash);
+        for (Transaction tx : block.getTransactions())
+            writeTx(tx);
+    }
+
+    private void writeTx(Transaction tx) {
+        for (Transaction.Input in : tx.getInputs()) {
+            if (in.prevTxHash != null)
+                write(in.prevTxHash);
+            writeInt(in.outputIndex);
+            if (in.signature != null)
+                write(in.signature);
+        }
+        for (Transaction.Output op : tx.getOutputs())
+            writeOutput(op);
+    }
+
+    private void writeOutput(Transaction.Output op) {
+        writeLong(Double.doubleToRawLongBits(op.value));
+        write(op.getAddressExponentBytes());
+        write(op.getAddressModulusBytes());
+    }
+
+    private void writeInt(int v) {
+        scratch[0] = (byte) (v >>> 24);
+        scratch[1] = (byte) (v >>> 16);
+        scratch[2] = (byte) (v >>> 8);
+        scratch[3] = (byte) v;
+        write(scratch, 4);
+    }
+
+    private void writeLong(long v) {
+        for (int i = 7; i >= 0; i--) {
+            scratch[i] = (byte) v;
+            v >>>= 8;
+        }
+        write(scratch, 8);
+    }
+
+    private void write(byte[] b) {
+        write(b, b.length);
+    }
+
+    private void write(byte[] b, int n) {
+        if (digest != null) {
+            digest.update(b, 0, n);
+            return;
+        }
+        if (len + n > buf.length)
+            buf = Arrays.copyOf(buf, Math.max(buf.length * 2, len + n));
+        System.arraycopy(b, 0, buf, len, n);
+        len += n;
+    }
+}
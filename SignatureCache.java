@@ -0,0 +1,129 @@
+import java.security.NoSuchAlgorithmException;
+import java.security.PublicKey;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A bounded, least-recently-used set of input signatures that are known to be valid. An entry is
+ * keyed by the SHA-256 of the signed bytes ({@code getRawDataToSign}), the signature and the
+ * address of the output being spent, so a hit means exactly the same check already succeeded.
+ * The signed bytes are hashed on every lookup rather than trusting the transaction's claimed
+ * hash, which a forged transaction could copy. Only successful checks are cached. Safe for use
+ * from several threads.
+ */
+public class SignatureCache {
+
+    public static final int DEFAULT_CAPACITY = 50000;
+
+    private final int capacity;
+    private final LinkedHashMap<Key, Boolean> entries;
+    private long hits;
+    private long misses;
+
+    public SignatureCache() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    public SignatureCache(int capacity) {
+        if (capacity <= 0)
+            throw new IllegalArgumentException("capacity must be positive");
+        this.capacity = capacity;
+        entries = new LinkedHashMap<Key, Boolean>(16, 0.75f, true) {
+            protected boolean removeEldestEntry(Map.Entry<Key, Boolean> eldest) {
+                return size() > SignatureCache.this.capacity;
+            }
+        };
+    }
+
+    /**
+     * @return true if the signature on input {@code index} of {@code tx} has already been found
+     *         valid against {@code spent}
+     */
+    public boolean contains(Transaction tx, int index, Transaction.Output spent) {
+        Key key = keyOf(tx, index, spent);
+        synchronized (this) {
+            if (key != null && entries.get(key) != null) {
+                hits++;
+                return true;
+            }
+            misses++;
+            return false;
+        }
+    }
+
+    /**
+     * Records that the signature on input {@code index} of {@code tx} is valid for {@code spent}
+     */
+    public void add(Transaction tx, int index, Transaction.Output spent) {
+        Key key = keyOf(tx, index, spent);
+        if (key != null) {
+            synchronized (this) {
+                entries.put(key, Boolean.TRUE);
+            }
+        }
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+    }
+
+    private static Key keyOf(Transaction tx, int index, Transaction.Output spent) {
+        byte[] signature = tx.getInput(index).signature;
+        if (signature == null)
+            return null;
+        byte[] signed;
+        try {
+            signed = RawEncoder.local().hashDataToSign(tx, index);
+        } catch (NoSuchAlgorithmException x) {
+            throw new IllegalStateException(x);
+        }
+        if (signed == null)
+            return null;
+        return new Key(signed, signature, spent.address);
+    }
+
+    private static class Key {
+        private final byte[] signed;
+        private final byte[] signature;
+        private final PublicKey address;
+        private final int hash;
+
+        Key(byte[] signed, byte[] signature, PublicKey address) {
+            this.signed = signed;
+            this.signature = signature.clone();
+            this.address = address;
+            int h = Arrays.hashCode(signed);
+            h = h * 31 + Arrays.hashCode(signature);
+            this.hash = h;
+        }
+
+        public boolean equals(Object other) {
+            if (other == null || getClass() != other.getClass())
+                return false;
+            Key k = (Key) other;
+            return hash == k.hash && Arrays.equals(signed, k.signed)
+                    && Arrays.equals(signature, k.signature) && address.equals(k.address);
+        }
+
+        public int hashCode() {
+            return hash;
+        }
+    }
+}
@@ -1,9 +1,6 @@
 
-import java.nio.ByteBuffer;
-import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.security.PublicKey;
-import java.security.interfaces.RSAPublicKey;
 import java.util.ArrayList;
 import java.util.Arrays;
 
@@ -74,9 +71,51 @@ public class Transaction {
         /** the address or public key of the recipient */
         public PublicKey address;
 
+        /** the interned entry for {@code address} */
+        private Address entry;
+
+        /**
+         * Creates an output paying {@code addr}. {@code address} is set to the key of the
+         * interned {@link Address} entry, which is an earlier key equal to {@code addr} if one is
+         * still in use: it equals {@code addr} but may be another instance, so compare addresses
+         * with {@code equals}, not {@code ==}. {@link #getAddressEntry} relies on the identity to
+         * notice when {@code address} is reassigned.
+         */
         public Output(double v, PublicKey addr) {
             value = v;
-            address = addr;
+            if (addr == null) {
+                address = null;
+                return;
+            }
+            entry = Address.of(addr);
+            address = entry.key;
+        }
+
+        Output(double v, Address entry) {
+            value = v;
+            this.entry = entry;
+            address = entry.key;
+        }
+
+        /** @return the big-endian bytes of the address's public exponent; do not modify */
+        byte[] getAddressExponentBytes() {
+            return getAddressEntry().exponent;
+        }
+
+        /** @return the big-endian bytes of the address's modulus; do not modify */
+        byte[] getAddressModulusBytes() {
+            return getAddressEntry().modulus;
+        }
+
+        /** @return the interned entry for {@code address}, looked up again if it was reassigned */
+        Address getAddressEntry() {
+            Address e = entry;
+            PublicKey addr = address;
+            if (e == null || e.key != addr) {
+                e = Address.of(addr);
+                entry = e;
+            }
+            return e;
         }
 
         public boolean equals(Object other) {
@@ -91,26 +130,21 @@ public class Transaction {
 
             if (value != op.value)
                 return false;
-            if (!((RSAPublicKey) address).getPublicExponent().equals(
-                    ((RSAPublicKey) op.address).getPublicExponent()))
-                return false;
-            if (!((RSAPublicKey) address).getModulus().equals(
-                    ((RSAPublicKey) op.address).getModulus()))
-                return false;
-            return true;
+            return getAddressEntry() == op.getAddressEntry();
         }
 
         public int hashCode() {
             int hash = 1;
             hash = hash * 17 + (int) value * 10000;
-            hash = hash * 31 + ((RSAPublicKey) address).getPublicExponent().hashCode();
-            hash = hash * 31 + ((RSAPublicKey) address).getModulus().hashCode();
+            hash = hash * 31 + getAddressEntry().hashCode();
             return hash;
         }
     }
 
     /** hash of the transaction, its unique id */
     private byte[] hash;
+    /** {@code hash} as a map key, made on first use */
+    private Hash256 hashId;
     private ArrayList<Input> inputs;
     private ArrayList<Output> outputs;
     private boolean coinbase;
@@ -168,37 +202,7 @@ public class Transaction {
 
     public byte[] getRawDataToSign(int index) {
         // ith input and all outputs
-        ArrayList<Byte> sigData = new ArrayList<Byte>();
-        if (index > inputs.size())
-            return null;
-        Input in = inputs.get(index);
-        byte[] prevTxHash = in.prevTxHash;
-        ByteBuffer b = ByteBuffer.allocate(Integer.SIZE / 8);
-        b.putInt(in.outputIndex);
-        byte[] outputIndex = b.array();
-        if (prevTxHash != null)
-            for (int i = 0; i < prevTxHash.length; i++)
-                sigData.add(prevTxHash[i]);
-        for (int i = 0; i < outputIndex.length; i++)
-            sigData.add(outputIndex[i]);
-        for (Output op : outputs) {
-            ByteBuffer bo = ByteBuffer.allocate(Double.SIZE / 8);
-            bo.putDouble(op.value);
-            byte[] value = bo.array();
-            byte[] addressExponent = ((RSAPublicKey) op.address).getPublicExponent().toByteArray();
-            byte[] addressModulus = ((RSAPublicKey) op.address).getModulus().toByteArray();
-            for (int i = 0; i < value.length; i++)
-                sigData.add(value[i]);
-            for (int i = 0; i < addressExponent.length; i++)
-                sigData.add(addressExponent[i]);
-            for (int i = 0; i < addressModulus.length; i++)
-                sigData.add(addressModulus[i]);
-        }
-        byte[] sigD = new byte[sigData.size()];
-        int i = 0;
-        for (Byte sb : sigData)
-            sigD[i++] = sb;
-        return sigD;
+        return RawEncoder.local().rawDataToSign(this, index);
     }
 
     public void addSignature(byte[] signature, int index) {
@@ -206,47 +210,13 @@ public class Transaction {
     }
 
     public byte[] getRawTx() {
-        ArrayList<Byte> rawTx = new ArrayList<Byte>();
-        for (Input in : inputs) {
-            byte[] prevTxHash = in.prevTxHash;
-            ByteBuffer b = ByteBuffer.allocate(Integer.SIZE / 8);
-            b.putInt(in.outputIndex);
-            byte[] outputIndex = b.array();
-            byte[] signature = in.signature;
-            if (prevTxHash != null)
-                for (int i = 0; i < prevTxHash.length; i++)
-                    rawTx.add(prevTxHash[i]);
-            for (int i = 0; i < outputIndex.length; i++)
-                rawTx.add(outputIndex[i]);
-            if (signature != null)
-                for (int i = 0; i < signature.length; i++)
-                    rawTx.add(signature[i]);
-        }
-        for (Output op : outputs) {
-            ByteBuffer b = ByteBuffer.allocate(Double.SIZE / 8);
-            b.putDouble(op.value);
-            byte[] value = b.array();
-            byte[] addressExponent = ((RSAPublicKey) op.address).getPublicExponent().toByteArray();
-            byte[] addressModulus = ((RSAPublicKey) op.address).getModulus().toByteArray();
-            for (int i = 0; i < value.length; i++)
-                rawTx.add(value[i]);
-            for (int i = 0; i < addressExponent.length; i++)
-                rawTx.add(addressExponent[i]);
-            for (int i = 0; i < addressModulus.length; i++)
-                rawTx.add(addressModulus[i]);
-        }
-        byte[] tx = new byte[rawTx.size()];
-        int i = 0;
-        for (Byte b : rawTx)
-            tx[i++] = b;
-        return tx;
+        return RawEncoder.local().rawTx(this);
     }
 
     public void finalize() {
         try {
-            MessageDigest md = MessageDigest.getInstance("SHA-256");
-            md.update(getRawTx());
-            hash = md.digest();
+            hash = RawEncoder.local().hashTx(this);
+            hashId = null;
         } catch (NoSuchAlgorithmException x) {
             x.printStackTrace(System.err);
         }
@@ -254,12 +224,21 @@ public class Transaction {
 
     public void setHash(byte[] h) {
         hash = h;
+        hashId = null;
     }
 
     public byte[] getHash() {
         return hash;
     }
 
+    /** @return the hash of this transaction as a {@link Hash256}, or null before it is finalized */
+    public Hash256 getHashId() {
+        Hash256 id = hashId;
+        if (id == null && hash != null)
+            hashId = id = Hash256.of(hash);
+        return id;
+    }
+
     public ArrayList<Input> getInputs() {
         return inputs;
     }
@@ -1,38 +1,752 @@
-
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.PriorityQueue;
+import java.util.TreeSet;
 
+/**
+ * Pool of transactions waiting to be mined, indexed by fee rate. A transaction's fee is the value
+ * of its inputs minus that of its outputs, taken from the tip UTXO pool or from the pooled
+ * transactions it spends, and its fee rate is that fee divided by the length of
+ * {@code getRawTx()}. Transactions are ranked by the fee rate of their ancestor package: the
+ * transaction plus every pooled transaction it depends on, which must be mined with it.
+ *
+ * A transaction whose inputs cannot all be resolved yet is kept unpriced and is priced once its
+ * parents arrive or the tip changes (see {@link #updateTip}).
+ *
+ * The pool can be bounded (see {@link #setMaxBytes} and {@link #setMaxAge}). Whenever a
+ * transaction is added, those pooled longer than the maximum age are evicted, oldest first; then,
+ * while the pooled transactions take more bytes than the budget, the unpriced ones go, oldest
+ * first, followed by the one with the lowest descendant score: the fee rate of the transaction
+ * plus its priced pooled descendants, which leave with it. A transaction is always evicted along
+ * with its pooled descendants, so a parent that a child pays for is kept as long as the package
+ * is worth it.
+ *
+ * All methods synchronize on the pool.
+ */
 public class TransactionPool {
 
-    private HashMap<ByteArrayWrapper, Transaction> H;
+    /** oldest first, which expiry relies on */
+    private LinkedHashMap<Hash256, Entry> H;
+    /** pooled transactions spending each outpoint */
+    private HashMap<UTXO, ArrayList<Entry>> spenders;
+    /** priced transactions, best ancestor package fee rate first */
+    private TreeSet<Entry> byFeeRate;
+    /** priced transactions, best descendant score first */
+    private TreeSet<Entry> byDescendantScore;
+    /** unpriced transactions, oldest first */
+    private TreeSet<Entry> unpriced;
+    private long sequence;
+    /** the sum of the pooled entries' sizes */
+    private long bytes;
+    private long maxBytes = Long.MAX_VALUE;
+    private long maxAgeNanos = Long.MAX_VALUE;
+    /** where evictions are counted, or null */
+    private Metrics metrics;
+
+    private static final Comparator<Entry> BY_PACKAGE_FEE_RATE = new Comparator<Entry>() {
+        public int compare(Entry a, Entry b) {
+            int c = Double.compare(b.getPackageFeeRate(), a.getPackageFeeRate());
+            return c != 0 ? c : Long.compare(a.sequence, b.sequence);
+        }
+    };
+
+    private static final Comparator<Entry> BY_DESCENDANT_SCORE = new Comparator<Entry>() {
+        public int compare(Entry a, Entry b) {
+            int c = Double.compare(b.getDescendantScore(), a.getDescendantScore());
+            return c != 0 ? c : Long.compare(a.sequence, b.sequence);
+        }
+    };
+
+    private static final Comparator<Entry> BY_SEQUENCE = new Comparator<Entry>() {
+        public int compare(Entry a, Entry b) {
+            return Long.compare(a.sequence, b.sequence);
+        }
+    };
+
+    private static class Entry {
+        final Transaction tx;
+        final Hash256 hash;
+        final int size;
+        /** insertion order, to break ties */
+        final long sequence;
+        /** when it was added, a {@link System#nanoTime} value */
+        final long addedNanos;
+        /** NaN until priced */
+        double fee = Double.NaN;
+        /** fee and size of this transaction plus its pooled ancestors */
+        double packageFee;
+        int packageSize;
+        /** fee and size of this transaction plus its priced pooled descendants */
+        double descendantFee;
+        int descendantSize;
+        final ArrayList<Entry> parents = new ArrayList<Entry>();
+        final ArrayList<Entry> children = new ArrayList<Entry>();
+
+        Entry(Transaction tx, Hash256 hash, long sequence, long addedNanos) {
+            this.tx = tx;
+            this.hash = hash;
+            this.size = Math.max(1, RawEncoder.rawTxSize(tx));
+            this.sequence = sequence;
+            this.addedNanos = addedNanos;
+        }
+
+        boolean isPriced() {
+            return !Double.isNaN(fee);
+        }
+
+        double getPackageFeeRate() {
+            return packageFee / packageSize;
+        }
+
+        double getDescendantScore() {
+            return descendantFee / descendantSize;
+        }
+    }
+
+    /** an entry's package after some of its ancestors were put in the block being built */
+    private static class ModifiedPackage {
+        final Entry entry;
+        final double fee;
+        final int size;
+
+        ModifiedPackage(Entry entry, double fee, int size) {
+            this.entry = entry;
+            this.fee = fee;
+            this.size = size;
+        }
+
+        double getFeeRate() {
+            return fee / size;
+        }
+    }
 
     public TransactionPool() {
-        H = new HashMap<ByteArrayWrapper, Transaction>();
+        H = new LinkedHashMap<Hash256, Entry>();
+        spenders = new HashMap<UTXO, ArrayList<Entry>>();
+        byFeeRate = new TreeSet<Entry>(BY_PACKAGE_FEE_RATE);
+        byDescendantScore = new TreeSet<Entry>(BY_DESCENDANT_SCORE);
+        unpriced = new TreeSet<Entry>(BY_SEQUENCE);
     }
 
     public TransactionPool(TransactionPool txPool) {
-        H = new HashMap<ByteArrayWrapper, Transaction>(txPool.H);
+        this();
+        synchronized (txPool) {
+            copyFrom(txPool);
+        }
+    }
+
+    private void copyFrom(TransactionPool txPool) {
+        maxBytes = txPool.maxBytes;
+        maxAgeNanos = txPool.maxAgeNanos;
+        ArrayList<Entry> order = new ArrayList<Entry>(txPool.H.values());
+        Collections.sort(order, BY_SEQUENCE);
+        // Entries keep their age, so expiry is the same in the copy.
+        for (Entry e : order)
+            insert(e.tx, e.addedNanos);
+        IdentityHashMap<Entry, Boolean> seen = new IdentityHashMap<Entry, Boolean>();
+        ArrayList<Entry> parentsFirst = new ArrayList<Entry>();
+        for (Entry e : txPool.byFeeRate)
+            addPackage(e, new IdentityHashMap<Entry, Boolean>(), seen, parentsFirst);
+        for (Entry e : parentsFirst)
+            setFee(H.get(e.hash), e.fee);
     }
 
+    /** Adds {@code tx}, pricing it only if its inputs are all outputs of pooled transactions */
     public void addTransaction(Transaction tx) {
-        ByteArrayWrapper hash = new ByteArrayWrapper(tx.getHash());
-        H.put(hash, tx);
+        addTransaction(tx, null);
+    }
+
+    /** Adds {@code tx}, pricing its inputs against {@code tip} and the pooled transactions */
+    public synchronized void addTransaction(Transaction tx, UTXOPool tip) {
+        Entry e = insert(tx, System.nanoTime());
+        if (e != null) {
+            price(e, tip);
+            trim();
+        }
+    }
+
+    /**
+     * Adds {@code tx} only if it is valid against {@code tip} plus the outputs of the pooled
+     * transactions, as {@link TxHandler#isValidTx} decides, and spends no outpoint that a pooled
+     * transaction already spends. The first transaction to spend an outpoint wins. Checking for
+     * such a conflict takes O(inputs).
+     *
+     * @param cache signatures already found valid, or null
+     * @return true if {@code tx} was added and not evicted right away to bring the pool within
+     *         its bounds
+     */
+    public synchronized boolean admitTransaction(Transaction tx, UTXOPool tip,
+            SignatureCache cache) {
+        return admit(tx, tip, cache, true);
+    }
+
+    /** {@link #admitTransaction}, trusting the input signatures unless {@code verifySignatures} */
+    private boolean admit(Transaction tx, UTXOPool tip, SignatureCache cache,
+            boolean verifySignatures) {
+        Hash256 hash = tx.getHashId();
+        if (hash == null || H.containsKey(hash))
+            return false;
+        UTXOPool view = tip;
+        for (Transaction.Input in : tx.getInputs()) {
+            if (in.prevTxHash == null)
+                return false;
+            UTXO utxo = new UTXO(in.prevTxHash, in.outputIndex);
+            if (spenders.containsKey(utxo))
+                return false;
+            if (tip.contains(utxo))
+                continue;
+            Entry p = H.get(utxo.getTxHashId());
+            if (p == null || in.outputIndex < 0 || in.outputIndex >= p.tx.numOutputs())
+                continue;
+            // Spends an unconfirmed parent: validate against the tip plus that output.
+            if (view == tip)
+                view = new UTXOPool(tip);
+            view.addUTXO(utxo, p.tx.getOutput(in.outputIndex));
+        }
+        TxHandler handler = new TxHandler(view);
+        handler.setSignatureCache(cache);
+        handler.setSignaturesVerified(!verifySignatures);
+        if (!handler.isValidTx(tx))
+            return false;
+        price(insert(tx, System.nanoTime()), tip);
+        trim();
+        return H.containsKey(hash);
+    }
+
+    /**
+     * Updates the pool for {@code block} joining the chain that leads to the tip: removes the
+     * transactions of {@code block} and evicts, with their descendants, the pooled transactions
+     * that spend an outpoint one of them spends. Nothing else is revalidated.
+     */
+    public synchronized void confirmBlock(Block block) {
+        for (Transaction tx : block.getTransactions()) {
+            if (tx.getHashId() == null)
+                continue;
+            Entry e = H.get(tx.getHashId());
+            if (e != null)
+                remove(e);
+        }
+        for (Transaction tx : block.getTransactions()) {
+            for (Transaction.Input in : tx.getInputs()) {
+                if (in.prevTxHash == null)
+                    continue;
+                ArrayList<Entry> conflicts = spenders.get(new UTXO(in.prevTxHash, in.outputIndex));
+                if (conflicts != null)
+                    for (Entry c : new ArrayList<Entry>(conflicts))
+                        evict(c, Metrics.Eviction.CONFLICT);
+            }
+        }
+    }
+
+    /**
+     * Updates the pool for {@code block} leaving the chain that leads to the tip, whose UTXO pool
+     * is now {@code tip}: offers its transactions back through {@link #admitTransaction}, without
+     * verifying their signatures again, since they were verified when the block was connected.
+     * For each that is not taken, and for the block's coinbase, the pooled transactions spending
+     * an output of it that {@code tip} does not hold are evicted, with their descendants.
+     */
+    public synchronized void disconnectBlock(Block block, UTXOPool tip, SignatureCache cache) {
+        for (Transaction tx : block.getTransactions()) {
+            Hash256 hash = tx.getHashId();
+            if (hash == null || H.containsKey(hash) || admit(tx, tip, cache, false))
+                continue;
+            evictOrphanedSpenders(tx, tip);
+        }
+        if (block.getCoinbase().getHashId() != null)
+            evictOrphanedSpenders(block.getCoinbase(), tip);
+    }
+
+    /**
+     * Evicts the pooled transactions spending an output of {@code tx} that {@code tip} does not
+     * hold
+     */
+    private void evictOrphanedSpenders(Transaction tx, UTXOPool tip) {
+        for (int i = 0; i < tx.numOutputs(); i++) {
+            UTXO utxo = new UTXO(tx.getHashId(), i);
+            ArrayList<Entry> orphaned = spenders.get(utxo);
+            if (orphaned != null && !tip.contains(utxo))
+                for (Entry c : new ArrayList<Entry>(orphaned))
+                    evict(c, Metrics.Eviction.CONFLICT);
+        }
+    }
+
+    public synchronized void removeTransaction(byte[] txHash) {
+        Entry e = H.get(Hash256.of(txHash));
+        if (e != null)
+            remove(e);
+    }
+
+    /**
+     * Limits the pooled transactions to {@code maxBytes} bytes of {@code getRawTx()}, evicting
+     * as many as needed right away. {@code Long.MAX_VALUE}, the default, means no limit.
+     */
+    public synchronized void setMaxBytes(long maxBytes) {
+        this.maxBytes = maxBytes;
+        trim();
+    }
+
+    public synchronized long getMaxBytes() {
+        return maxBytes;
+    }
+
+    /**
+     * Evicts transactions once they have been pooled for longer than {@code millis}, the next
+     * time a transaction is added. {@code Long.MAX_VALUE}, the default, keeps them indefinitely.
+     */
+    public synchronized void setMaxAge(long millis) {
+        maxAgeNanos = millis >= Long.MAX_VALUE / 1000000 ? Long.MAX_VALUE : millis * 1000000;
+    }
+
+    /** Count evicted transactions and their bytes in {@code metrics}; null counts nothing */
+    public synchronized void setMetrics(Metrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * Evicts expired transactions, then the cheapest ones until the pool is within its byte
+     * budget
+     */
+    private void trim() {
+        if (maxAgeNanos != Long.MAX_VALUE) {
+            long now = System.nanoTime();
+            while (!H.isEmpty()) {
+                Entry oldest = H.values().iterator().next();
+                if (now - oldest.addedNanos <= maxAgeNanos)
+                    break;
+                evict(oldest, Metrics.Eviction.EXPIRED);
+            }
+        }
+        while (bytes > maxBytes && !H.isEmpty())
+            evict(unpriced.isEmpty() ? byDescendantScore.last() : unpriced.first(),
+                    Metrics.Eviction.SIZE_LIMIT);
+    }
+
+    /** Removes {@code e} and every pooled transaction that depends on it */
+    private void evict(Entry e, Metrics.Eviction reason) {
+        if (H.get(e.hash) != e)
+            return;
+        ArrayList<Entry> order = new ArrayList<Entry>();
+        IdentityHashMap<Entry, Boolean> seen = new IdentityHashMap<Entry, Boolean>();
+        ArrayList<Entry> stack = new ArrayList<Entry>();
+        stack.add(e);
+        while (!stack.isEmpty()) {
+            Entry d = stack.remove(stack.size() - 1);
+            if (seen.put(d, Boolean.TRUE) != null)
+                continue;
+            order.add(d);
+            stack.addAll(d.children);
+        }
+        // Descendants go first, so no package is re-scored for an ancestor about to leave.
+        long evicted = 0;
+        for (int i = order.size() - 1; i >= 0; i--) {
+            remove(order.get(i));
+            evicted += order.get(i).size;
+        }
+        if (metrics != null)
+            metrics.evicted(reason, order.size(), evicted);
+    }
+
+    private void remove(Entry e) {
+        H.remove(e.hash);
+        bytes -= e.size;
+        ArrayList<Entry> ancestors = null;
+        if (e.isPriced()) {
+            byFeeRate.remove(e);
+            byDescendantScore.remove(e);
+            ancestors = ancestors(e);
+            // Descendants no longer need e in their package.
+            IdentityHashMap<Entry, Boolean> seen = new IdentityHashMap<Entry, Boolean>();
+            ArrayList<Entry> stack = new ArrayList<Entry>(e.children);
+            while (!stack.isEmpty()) {
+                Entry d = stack.remove(stack.size() - 1);
+                if (seen.put(d, Boolean.TRUE) != null)
+                    continue;
+                if (d.isPriced()) {
+                    byFeeRate.remove(d);
+                    d.packageFee -= e.fee;
+                    d.packageSize -= e.size;
+                    byFeeRate.add(d);
+                }
+                stack.addAll(d.children);
+            }
+        } else {
+            unpriced.remove(e);
+        }
+        for (Transaction.Input in : e.tx.getInputs()) {
+            if (in.prevTxHash == null)
+                continue;
+            UTXO utxo = new UTXO(in.prevTxHash, in.outputIndex);
+            ArrayList<Entry> list = spenders.get(utxo);
+            if (list != null && list.remove(e) && list.isEmpty())
+                spenders.remove(utxo);
+        }
+        for (Entry p : e.parents)
+            p.children.remove(e);
+        for (Entry c : e.children)
+            c.parents.remove(e);
+        if (ancestors == null)
+            return;
+        // A leaf is simply taken out of its ancestors' descendant packages; otherwise some of
+        // its descendants may no longer descend from them.
+        for (Entry a : ancestors) {
+            if (!a.isPriced())
+                continue;
+            if (e.children.isEmpty())
+                setDescendantPackage(a, a.descendantFee - e.fee, a.descendantSize - e.size);
+            else
+                rescoreDescendants(a);
+        }
+    }
+
+    /** @return the pooled ancestors of {@code e}, which is not one of them */
+    private static ArrayList<Entry> ancestors(Entry e) {
+        ArrayList<Entry> ancestors = new ArrayList<Entry>();
+        IdentityHashMap<Entry, Boolean> seen = new IdentityHashMap<Entry, Boolean>();
+        ArrayList<Entry> stack = new ArrayList<Entry>(e.parents);
+        while (!stack.isEmpty()) {
+            Entry a = stack.remove(stack.size() - 1);
+            if (seen.put(a, Boolean.TRUE) != null)
+                continue;
+            ancestors.add(a);
+            stack.addAll(a.parents);
+        }
+        return ancestors;
+    }
+
+    /** Adds {@code fee} and {@code size} to the descendant packages of {@code e}'s ancestors */
+    private void addToAncestors(Entry e, double fee, int size) {
+        for (Entry a : ancestors(e))
+            if (a.isPriced())
+                setDescendantPackage(a, a.descendantFee + fee, a.descendantSize + size);
+    }
+
+    /** Recomputes the descendant package of {@code a} from its pooled descendants */
+    private void rescoreDescendants(Entry a) {
+        double fee = 0;
+        int size = 0;
+        IdentityHashMap<Entry, Boolean> seen = new IdentityHashMap<Entry, Boolean>();
+        ArrayList<Entry> stack = new ArrayList<Entry>();
+        stack.add(a);
+        while (!stack.isEmpty()) {
+            Entry d = stack.remove(stack.size() - 1);
+            if (seen.put(d, Boolean.TRUE) != null || !d.isPriced())
+                continue;
+            fee += d.fee;
+            size += d.size;
+            stack.addAll(d.children);
+        }
+        setDescendantPackage(a, fee, size);
     }
 
-    public void removeTransaction(byte[] txHash) {
-        ByteArrayWrapper hash = new ByteArrayWrapper(txHash);
-        H.remove(hash);
+    private void setDescendantPackage(Entry a, double fee, int size) {
+        byDescendantScore.remove(a);
+        a.descendantFee = fee;
+        a.descendantSize = size;
+        byDescendantScore.add(a);
     }
 
-    public Transaction getTransaction(byte[] txHash) {
-        ByteArrayWrapper hash = new ByteArrayWrapper(txHash);
-        return H.get(hash);
+    public synchronized Transaction getTransaction(byte[] txHash) {
+        Hash256 hash = Hash256.of(txHash);
+        Entry e = H.get(hash);
+        return e == null ? null : e.tx;
     }
 
-    public ArrayList<Transaction> getTransactions() {
+    public synchronized ArrayList<Transaction> getTransactions() {
         ArrayList<Transaction> T = new ArrayList<Transaction>();
-        for (Transaction tx : H.values())
-            T.add(tx);
+        for (Entry e : H.values())
+            T.add(e.tx);
         return T;
     }
+
+    public synchronized int size() {
+        return H.size();
+    }
+
+    /** @return the bytes of {@code getRawTx()} of the pooled transactions */
+    public synchronized long getBytes() {
+        return bytes;
+    }
+
+    /** @return the fee per byte of the pooled transaction {@code txHash}, or NaN if not priced */
+    public synchronized double getFeeRate(byte[] txHash) {
+        Entry e = H.get(Hash256.of(txHash));
+        return e == null ? Double.NaN : e.fee / e.size;
+    }
+
+    /**
+     * @return the fee per byte of the ancestor package of the pooled transaction {@code txHash},
+     *         or NaN if not priced
+     */
+    synchronized double getPackageFeeRate(byte[] txHash) {
+        Entry e = H.get(Hash256.of(txHash));
+        return e == null || !e.isPriced() ? Double.NaN : e.getPackageFeeRate();
+    }
+
+    /**
+     * @return the fee per byte of the pooled transaction {@code txHash} plus its priced pooled
+     *         descendants, or NaN if not priced
+     */
+    synchronized double getDescendantScore(byte[] txHash) {
+        Entry e = H.get(Hash256.of(txHash));
+        return e == null || !e.isPriced() ? Double.NaN : e.getDescendantScore();
+    }
+
+    /** Prices the transactions that could not be priced before {@code tip} became the tip */
+    public synchronized void updateTip(UTXOPool tip) {
+        for (Entry e : new ArrayList<Entry>(unpriced))
+            price(e, tip);
+    }
+
+    /**
+     * Picks up to {@code maxTxs} transactions for a block, best ancestor package fee rate first,
+     * validating each package with {@code handler} as it goes. A package's parents come before
+     * its children. Once a transaction is in, the packages of its descendants are re-scored
+     * without it. Transactions that could not be priced are offered last, one at a time, while
+     * room remains.
+     *
+     * @return the accepted transactions, in the order they must appear in the block
+     */
+    public synchronized ArrayList<Transaction> selectTransactions(TxHandler handler, int maxTxs) {
+        ArrayList<Transaction> selected = new ArrayList<Transaction>();
+        // TRUE once in the block, FALSE if rejected
+        IdentityHashMap<Entry, Boolean> done = new IdentityHashMap<Entry, Boolean>();
+        IdentityHashMap<Entry, ModifiedPackage> modified =
+                new IdentityHashMap<Entry, ModifiedPackage>();
+        PriorityQueue<ModifiedPackage> modifiedQueue = new PriorityQueue<ModifiedPackage>(11,
+                new Comparator<ModifiedPackage>() {
+                    public int compare(ModifiedPackage a, ModifiedPackage b) {
+                        int c = Double.compare(b.getFeeRate(), a.getFeeRate());
+                        return c != 0 ? c : Long.compare(a.entry.sequence, b.entry.sequence);
+                    }
+                });
+        Iterator<Entry> it = byFeeRate.iterator();
+        Entry next = null;
+        while (selected.size() < maxTxs) {
+            if (next != null && (done.containsKey(next) || modified.containsKey(next)))
+                next = null;
+            while (next == null && it.hasNext()) {
+                Entry e = it.next();
+                if (!done.containsKey(e) && !modified.containsKey(e))
+                    next = e;
+            }
+            ModifiedPackage m = modifiedQueue.peek();
+            while (m != null && (done.containsKey(m.entry) || modified.get(m.entry) != m)) {
+                modifiedQueue.poll();
+                m = modifiedQueue.peek();
+            }
+            Entry candidate;
+            if (m != null && (next == null || m.getFeeRate() > next.getPackageFeeRate())) {
+                candidate = m.entry;
+                modifiedQueue.poll();
+                modified.remove(candidate);
+            } else if (next != null) {
+                candidate = next;
+                next = null;
+            } else {
+                break;
+            }
+
+            ArrayList<Entry> pkg = new ArrayList<Entry>();
+            if (!addPackage(candidate, done, new IdentityHashMap<Entry, Boolean>(), pkg)
+                    || selected.size() + pkg.size() > maxTxs) {
+                done.put(candidate, Boolean.FALSE);
+                continue;
+            }
+            Transaction[] txs = new Transaction[pkg.size()];
+            for (int i = 0; i < txs.length; i++)
+                txs[i] = pkg.get(i).tx;
+            IdentityHashMap<Transaction, Boolean> accepted =
+                    new IdentityHashMap<Transaction, Boolean>();
+            for (Transaction tx : handler.handleTxs(txs))
+                accepted.put(tx, Boolean.TRUE);
+            for (Entry e : pkg) {
+                boolean in = accepted.containsKey(e.tx);
+                done.put(e, in);
+                if (!in)
+                    continue;
+                selected.add(e.tx);
+                IdentityHashMap<Entry, Boolean> seen = new IdentityHashMap<Entry, Boolean>();
+                ArrayList<Entry> stack = new ArrayList<Entry>(e.children);
+                while (!stack.isEmpty()) {
+                    Entry d = stack.remove(stack.size() - 1);
+                    if (seen.put(d, Boolean.TRUE) != null || done.containsKey(d))
+                        continue;
+                    ModifiedPackage old = modified.get(d);
+                    double fee = old == null ? d.packageFee : old.fee;
+                    int size = old == null ? d.packageSize : old.size;
+                    ModifiedPackage mp = new ModifiedPackage(d, fee - e.fee, size - e.size);
+                    modified.put(d, mp);
+                    modifiedQueue.add(mp);
+                    stack.addAll(d.children);
+                }
+            }
+        }
+
+        // One at a time, so the handler applies no more than fit; a child pooled before its
+        // parent gets another chance on the next pass.
+        ArrayList<Entry> rest = new ArrayList<Entry>(unpriced);
+        boolean progress = true;
+        while (progress && selected.size() < maxTxs) {
+            progress = false;
+            ArrayList<Entry> rejected = new ArrayList<Entry>();
+            for (Entry e : rest) {
+                if (selected.size() < maxTxs
+                        && handler.handleTxs(new Transaction[] { e.tx }).length == 1) {
+                    selected.add(e.tx);
+                    progress = true;
+                } else {
+                    rejected.add(e);
+                }
+            }
+            rest = rejected;
+        }
+        return selected;
+    }
+
+    /**
+     * Adds {@code tx} unpriced and links it to the pooled transactions it spends or that spend it
+     */
+    private Entry insert(Transaction tx, long addedNanos) {
+        Hash256 hash = tx.getHashId();
+        if (H.containsKey(hash))
+            return null;
+        Entry e = new Entry(tx, hash, sequence++, addedNanos);
+        H.put(hash, e);
+        bytes += e.size;
+        unpriced.add(e);
+        for (Transaction.Input in : tx.getInputs()) {
+            if (in.prevTxHash == null)
+                continue;
+            UTXO utxo = new UTXO(in.prevTxHash, in.outputIndex);
+            ArrayList<Entry> list = spenders.get(utxo);
+            if (list == null) {
+                list = new ArrayList<Entry>(1);
+                spenders.put(utxo, list);
+            }
+            list.add(e);
+            Entry p = H.get(Hash256.of(in.prevTxHash));
+            if (p != null && p != e && !e.parents.contains(p)) {
+                e.parents.add(p);
+                p.children.add(e);
+            }
+        }
+        for (int i = 0; i < tx.numOutputs(); i++) {
+            ArrayList<Entry> list = spenders.get(new UTXO(tx.getHashId(), i));
+            if (list == null)
+                continue;
+            for (Entry c : list) {
+                if (c.parents.contains(e))
+                    continue;
+                // A child priced against the tip must now count e in its package. It leaves
+                // the descendant packages of its ancestors before e's are linked above it.
+                unprice(c);
+                c.parents.add(e);
+                e.children.add(c);
+            }
+        }
+        return e;
+    }
+
+    private void unprice(Entry e) {
+        ArrayList<Entry> stack = new ArrayList<Entry>();
+        stack.add(e);
+        while (!stack.isEmpty()) {
+            Entry d = stack.remove(stack.size() - 1);
+            if (!d.isPriced())
+                continue;
+            byFeeRate.remove(d);
+            byDescendantScore.remove(d);
+            addToAncestors(d, -d.fee, -d.size);
+            d.fee = Double.NaN;
+            unpriced.add(d);
+            stack.addAll(d.children);
+        }
+    }
+
+    /** Prices {@code e} if it can be, then any of its descendants that become priceable */
+    private void price(Entry e, UTXOPool tip) {
+        ArrayList<Entry> stack = new ArrayList<Entry>();
+        stack.add(e);
+        while (!stack.isEmpty()) {
+            Entry d = stack.remove(stack.size() - 1);
+            if (d.isPriced())
+                continue;
+            double fee = computeFee(d, tip);
+            if (Double.isNaN(fee))
+                continue;
+            setFee(d, fee);
+            stack.addAll(d.children);
+        }
+    }
+
+    /** @return the fee of {@code e}, or NaN if an input or a pooled parent is not priced */
+    private double computeFee(Entry e, UTXOPool tip) {
+        for (Entry p : e.parents)
+            if (!p.isPriced())
+                return Double.NaN;
+        double fee = 0;
+        for (Transaction.Input in : e.tx.getInputs()) {
+            if (in.prevTxHash == null)
+                return Double.NaN;
+            Transaction.Output op = null;
+            if (tip != null)
+                op = tip.getTxOutput(new UTXO(in.prevTxHash, in.outputIndex));
+            if (op == null) {
+                Entry p = H.get(Hash256.of(in.prevTxHash));
+                if (p != null && in.outputIndex >= 0 && in.outputIndex < p.tx.numOutputs())
+                    op = p.tx.getOutput(in.outputIndex);
+            }
+            if (op == null)
+                return Double.NaN;
+            fee += op.value;
+        }
+        for (Transaction.Output op : e.tx.getOutputs())
+            fee -= op.value;
+        return fee;
+    }
+
+    /** Prices {@code e}, whose pooled ancestors must all be priced, and indexes it */
+    private void setFee(Entry e, double fee) {
+        e.fee = fee;
+        ArrayList<Entry> pkg = new ArrayList<Entry>();
+        addPackage(e, new IdentityHashMap<Entry, Boolean>(), new IdentityHashMap<Entry, Boolean>(),
+                pkg);
+        e.packageFee = 0;
+        e.packageSize = 0;
+        for (Entry a : pkg) {
+            e.packageFee += a.fee;
+            e.packageSize += a.size;
+        }
+        unpriced.remove(e);
+        byFeeRate.add(e);
+        // Descendants are priced after e, so only e itself is in its descendant package yet.
+        e.descendantFee = fee;
+        e.descendantSize = e.size;
+        byDescendantScore.add(e);
+        addToAncestors(e, fee, e.size);
+    }
+
+    /**
+     * Appends {@code e} and its ancestors not yet in {@code done}, parents first, to {@code out}.
+     *
+     * @return false if {@code e} or an ancestor was rejected
+     */
+    private static boolean addPackage(Entry e, IdentityHashMap<Entry, Boolean> done,
+            IdentityHashMap<Entry, Boolean> seen, ArrayList<Entry> out) {
+        Boolean d = done.get(e);
+        if (d != null)
+            return d;
+        if (seen.put(e, Boolean.TRUE) != null)
+            return true;
+        for (Entry p : e.parents)
+            if (!addPackage(p, done, seen, out))
+                return false;
+        out.add(e);
+        return true;
+    }
 }
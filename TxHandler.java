@@ -1,12 +1,24 @@
 import java.security.PublicKey;
 import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
 
 public class TxHandler {
 
     private UTXOPool uPool;
     private UTXOPool spentPool;
+    private boolean parallelVerification;
+    private boolean dependencyOrdering;
+    private SignatureCache signatureCache;
+    private Metrics metrics;
+    /** signature results computed ahead of the sequential pass in {@link #handleTxs} */
+    private IdentityHashMap<Transaction.Input, SignatureCheck> preverified;
+    /** true to take every input signature as valid */
+    private boolean signaturesVerified;
     //private ArrayList<UTXO> spentUTXOs;
     /**
      * Creates a public ledger whose current UTXOPool (collection of unspent transaction outputs) is
@@ -20,6 +32,51 @@ public class TxHandler {
         //spentUTXOs = new ArrayList<UTXO>();
     }
 
+    /**
+     * When enabled, {@link #handleTxs} verifies every input signature of the batch up front on the
+     * common fork-join pool, then makes the same sequential accept/reject decisions as the serial
+     * path using those results.
+     */
+    public void setParallelVerification(boolean parallel) {
+        parallelVerification = parallel;
+    }
+
+    /**
+     * When enabled, {@link #handleTxs} first orders the batch so that every transaction comes after
+     * the transactions in the batch whose outputs it spends, then makes its single pass in that
+     * order. A child listed before its parent is then accepted along with it, without calling
+     * {@code handleTxs} again. Transactions that do not depend on each other keep their relative
+     * order, so of two transactions spending the same output the earlier one still wins.
+     */
+    public void setDependencyOrdering(boolean ordering) {
+        dependencyOrdering = ordering;
+    }
+
+    /**
+     * Consult {@code cache} before verifying an input signature and record every signature found
+     * valid, so a transaction checked once is not checked again by another handler sharing the
+     * cache.
+     */
+    public void setSignatureCache(SignatureCache cache) {
+        signatureCache = cache;
+    }
+
+    /**
+     * Take every input signature as valid, for transactions whose signatures were checked
+     * already, such as those of a block leaving the chain. All other checks still apply.
+     */
+    void setSignaturesVerified(boolean verified) {
+        signaturesVerified = verified;
+    }
+
+    /**
+     * Record in {@code metrics} the time spent in {@link #handleTxs} and on signatures, the
+     * transactions accepted and the reason for each rejection. Null, the default, records nothing.
+     */
+    public void setMetrics(Metrics metrics) {
+        this.metrics = metrics;
+    }
+
     /**
      * @return true if:
      * (1) all outputs claimed by {@code tx} are in the current UTXO pool, 
@@ -46,18 +103,16 @@ public class TxHandler {
             if (uPool.contains(utxo)) {
                 utxoOutput = uPool.getTxOutput(utxo);
             } else {
-                return false;
+                return reject(tx, Metrics.Rejection.MISSING_INPUT);
             }
 
             // If the UTXO is present either in local or global pool, see if it's already spent or not.
             if (isSpentInCurrentTx(currentTxSpentUTXOs, utxo))
-                return false;
+                return reject(tx, Metrics.Rejection.DUPLICATE_INPUT);
 
             // Verify the signature on this input
-            PublicKey inputPublicKey = utxoOutput.address;
-            byte[] rawData = tx.getRawDataToSign(i);
-            if (!Crypto.verifySignature(inputPublicKey, rawData, in.signature))
-                return false;
+            if (!verifyInputSignature(tx, i, utxoOutput))
+                return reject(tx, Metrics.Rejection.INVALID_SIGNATURE);
 
             // Add the utxo to spent UTXOs list for current transaction
             currentTxSpentUTXOs.add(utxo);
@@ -68,17 +123,150 @@ public class TxHandler {
             Transaction.Output op = tx.getOutput(i);
             if (op.value >= 0) {
                 outputSum += op.value;
-                UTXO utxo = new UTXO(tx.getHash(), i);
+                UTXO utxo = new UTXO(tx.getHashId(), i);
                 pool.addUTXO(utxo, op);
             } else {
-                return false;
+                return reject(tx, Metrics.Rejection.NEGATIVE_OUTPUT);
             }
         }
 
         if (inputSum >= outputSum) {
             return true;
         } else {
-            return false;
+            return reject(tx, Metrics.Rejection.INSUFFICIENT_INPUT);
+        }
+    }
+
+    private boolean reject(Transaction tx, Metrics.Rejection reason) {
+        if (metrics != null)
+            metrics.rejected(reason, tx);
+        return false;
+    }
+
+    private boolean verifyInputSignature(Transaction tx, int index, Transaction.Output utxoOutput) {
+        if (signaturesVerified)
+            return true;
+        Transaction.Input in = tx.getInput(index);
+        if (preverified != null) {
+            SignatureCheck check = preverified.get(in);
+            // Only trust the precomputed result if it was made against an equal output; stores
+            // that rebuild outputs on lookup return a new instance each time.
+            if (check != null && check.signature == in.signature && check.output.equals(utxoOutput))
+                return check.valid;
+        }
+        return checkSignature(tx, index, utxoOutput);
+    }
+
+    private boolean checkSignature(Transaction tx, int index, Transaction.Output utxoOutput) {
+        if (signatureCache != null && signatureCache.contains(tx, index, utxoOutput))
+            return true;
+        Metrics m = metrics;
+        long start = m != null ? System.nanoTime() : 0;
+        PublicKey inputPublicKey = utxoOutput.address;
+        byte[] rawData = tx.getRawDataToSign(index);
+        boolean valid =
+                Crypto.verifySignature(inputPublicKey, rawData, tx.getInput(index).signature);
+        if (valid && signatureCache != null)
+            signatureCache.add(tx, index, utxoOutput);
+        if (m != null)
+            m.record(Metrics.Stage.SIGNATURE_VERIFY, start);
+        return valid;
+    }
+
+    /**
+     * Verifies, as one {@link Crypto#verifySignatures} batch, every input of {@code txs} whose
+     * spent output can be resolved either from the current pool, from another transaction in the
+     * batch or from {@code others}, which may be null.
+     */
+    private IdentityHashMap<Transaction.Input, SignatureCheck> verifySignatures(Transaction[] txs,
+            Map<Hash256, Transaction> others) {
+        HashMap<Hash256, Transaction> batch = new HashMap<Hash256, Transaction>();
+        for (Transaction tx : txs)
+            if (tx.getHash() != null)
+                batch.put(tx.getHashId(), tx);
+
+        List<SignatureCheck> checks = new ArrayList<SignatureCheck>();
+        for (Transaction tx : txs) {
+            for (int i = 0; i < tx.numInputs(); i++) {
+                Transaction.Input in = tx.getInput(i);
+                if (in.prevTxHash == null)
+                    continue;
+                Transaction.Output out = uPool.getTxOutput(new UTXO(in.prevTxHash, in.outputIndex));
+                if (out == null) {
+                    Hash256 prevHash = Hash256.of(in.prevTxHash);
+                    Transaction parent = batch.get(prevHash);
+                    if (parent == null && others != null)
+                        parent = others.get(prevHash);
+                    if (parent != null && in.outputIndex >= 0
+                            && in.outputIndex < parent.numOutputs())
+                        out = parent.getOutput(in.outputIndex);
+                }
+                // A missing signature makes the serial path throw; leave that to it.
+                if (out != null && in.signature != null)
+                    checks.add(new SignatureCheck(tx, i, out));
+            }
+        }
+
+        // Cache hits need no work; everything else goes to Crypto as one batch.
+        ArrayList<SignatureCheck> pending = new ArrayList<SignatureCheck>();
+        for (SignatureCheck check : checks) {
+            if (signatureCache != null
+                    && signatureCache.contains(check.tx, check.index, check.output))
+                check.valid = true;
+            else
+                pending.add(check);
+        }
+        int n = pending.size();
+        long start = metrics != null && n > 0 ? System.nanoTime() : 0;
+        PublicKey[] keys = new PublicKey[n];
+        byte[][] messages = new byte[n][];
+        byte[][] signatures = new byte[n][];
+        for (int i = 0; i < n; i++) {
+            SignatureCheck check = pending.get(i);
+            keys[i] = check.output.address;
+            messages[i] = check.tx.getRawDataToSign(check.index);
+            signatures[i] = check.signature;
+        }
+        BitSet valid = Crypto.verifySignatures(keys, messages, signatures);
+        for (int i = 0; i < n; i++) {
+            SignatureCheck check = pending.get(i);
+            check.valid = valid.get(i);
+            if (check.valid && signatureCache != null)
+                signatureCache.add(check.tx, check.index, check.output);
+        }
+        if (metrics != null && n > 0)
+            metrics.record(Metrics.Stage.SIGNATURE_VERIFY, start);
+
+        IdentityHashMap<Transaction.Input, SignatureCheck> results =
+                new IdentityHashMap<Transaction.Input, SignatureCheck>();
+        for (SignatureCheck check : checks)
+            results.put(check.tx.getInput(check.index), check);
+        return results;
+    }
+
+    /**
+     * Verifies the input signatures of {@code txs} as one batch and records the valid ones in the
+     * signature cache, without validating or applying anything else. Spent outputs are looked up
+     * in the current pool, in {@code txs} and in {@code others}; inputs whose output is not found
+     * are skipped. Does nothing without a signature cache.
+     */
+    void prewarmSignatures(Transaction[] txs, Map<Hash256, Transaction> others) {
+        if (signatureCache != null)
+            verifySignatures(txs, others);
+    }
+
+    private static class SignatureCheck {
+        final Transaction tx;
+        final int index;
+        final Transaction.Output output;
+        final byte[] signature;
+        boolean valid;
+
+        SignatureCheck(Transaction tx, int index, Transaction.Output output) {
+            this.tx = tx;
+            this.index = index;
+            this.output = output;
+            this.signature = tx.getInput(index).signature;
         }
     }
 
@@ -112,30 +300,101 @@ public class TxHandler {
 
     void addAllOutputsAsUTXOs(Transaction tx) {
         for(int i = 0; i < tx.getOutputs().size(); i++) {
-            UTXO utxo = new UTXO(tx.getHash(), i);
+            UTXO utxo = new UTXO(tx.getHashId(), i);
             uPool.addUTXO(utxo, tx.getOutput(i));
         }
     }
 
+    /**
+     * Kahn's algorithm, with the transactions whose parents are all placed kept in a priority
+     * queue by position, so the one listed first goes next and the order is the original one
+     * wherever dependencies allow. The queue makes it O(n log n + inputs) rather than O(n +
+     * inputs).
+     *
+     * @return {@code txs} reordered so that each transaction follows the transactions of the batch
+     *         it spends from. Transactions caught in a cycle, which valid hashes cannot form, are
+     *         left at the end in their original order.
+     */
+    private static Transaction[] orderByDependencies(Transaction[] txs) {
+        int n = txs.length;
+        HashMap<Hash256, Integer> byHash = new HashMap<Hash256, Integer>();
+        for (int i = 0; i < n; i++)
+            if (txs[i].getHash() != null)
+                byHash.putIfAbsent(txs[i].getHashId(), i);
+
+        // children[j] lists the transactions spending an output of txs[j], one entry per input
+        ArrayList<ArrayList<Integer>> children = new ArrayList<ArrayList<Integer>>(n);
+        int[] waitingOn = new int[n];
+        for (int i = 0; i < n; i++)
+            children.add(null);
+        for (int i = 0; i < n; i++) {
+            for (Transaction.Input in : txs[i].getInputs()) {
+                if (in.prevTxHash == null)
+                    continue;
+                Integer parent = byHash.get(Hash256.of(in.prevTxHash));
+                if (parent == null || parent == i)
+                    continue;
+                if (children.get(parent) == null)
+                    children.set(parent, new ArrayList<Integer>());
+                children.get(parent).add(i);
+                waitingOn[i]++;
+            }
+        }
+
+        Transaction[] ordered = new Transaction[n];
+        boolean[] placed = new boolean[n];
+        int count = 0;
+        PriorityQueue<Integer> ready = new PriorityQueue<Integer>();
+        for (int i = 0; i < n; i++)
+            if (waitingOn[i] == 0)
+                ready.add(i);
+        while (!ready.isEmpty()) {
+            int i = ready.poll();
+            ordered[count++] = txs[i];
+            placed[i] = true;
+            if (children.get(i) == null)
+                continue;
+            for (int c : children.get(i))
+                if (--waitingOn[c] == 0)
+                    ready.add(c);
+        }
+        for (int i = 0; i < n; i++)
+            if (!placed[i])
+                ordered[count++] = txs[i];
+        return ordered;
+    }
+
     /**
      * Handles each epoch by receiving an unordered array of proposed transactions, checking each
      * transaction for correctness, returning a mutually valid array of accepted transactions, and
-     * updating the current UTXO pool as appropriate.
+     * updating the current UTXO pool as appropriate. Accepted transactions are returned in the
+     * order they were applied.
      */
     public Transaction[] handleTxs(Transaction[] possibleTxs) {
         // IMPLEMENT THIS
+        long start = metrics != null ? System.nanoTime() : 0;
         ArrayList<Transaction> txList = new ArrayList<Transaction>();
+        if (dependencyOrdering)
+            possibleTxs = orderByDependencies(possibleTxs);
+        if (parallelVerification)
+            preverified = verifySignatures(possibleTxs, null);
         for(int i = 0; i < possibleTxs.length; i++) {
             Transaction tx = possibleTxs[i];
             if(isValidTx(tx)) {
                 if(isTxInputSpentInOtherTransactionsInBlock(tx)) {
+                    reject(tx, Metrics.Rejection.CONFLICT);
                     continue;
                 }
                 txList.add(tx);
+                if (metrics != null)
+                    metrics.accepted();
                 markAllUTXOsSpent(tx);
                 addAllOutputsAsUTXOs(tx);
             }
         }
+        preverified = null;
+        if (metrics != null)
+            metrics.record(Metrics.Stage.HANDLE_TXS, start);
 
         Transaction[] txArray = txList.toArray(new Transaction[txList.size()]);
         return txArray;
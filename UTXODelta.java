@@ -0,0 +1,84 @@
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The change a block makes to the UTXO set: the outputs it creates and the UTXOs it spends, with
+ * the outputs they held so the change can be undone. An output created and spent within the same
+ * block appears in neither list. Identical coinbase transactions have the same hash, so a block
+ * may create a UTXO that is already in the set; the output it replaces is kept for undoing too.
+ */
+class UTXODelta {
+
+    final ArrayList<UTXO> created = new ArrayList<UTXO>();
+    final ArrayList<Transaction.Output> createdOutputs = new ArrayList<Transaction.Output>();
+    /** for each created UTXO, the output it replaced, or null */
+    final ArrayList<Transaction.Output> replacedOutputs = new ArrayList<Transaction.Output>();
+    final ArrayList<UTXO> spent = new ArrayList<UTXO>();
+    final ArrayList<Transaction.Output> spentOutputs = new ArrayList<Transaction.Output>();
+
+    /**
+     * Records the change a block makes to {@code before}, the UTXO pool of its parent, by applying
+     * {@code txs}, valid in that order, and then adding the outputs of {@code coinbase}.
+     */
+    UTXODelta(Transaction[] txs, Transaction coinbase, UTXOPool before) {
+        LinkedHashMap<UTXO, Transaction.Output> outputs =
+                new LinkedHashMap<UTXO, Transaction.Output>();
+        for (Transaction tx : txs) {
+            for (Transaction.Input in : tx.getInputs()) {
+                UTXO utxo = new UTXO(in.prevTxHash, in.outputIndex);
+                if (outputs.remove(utxo) != null)
+                    continue;
+                spent.add(utxo);
+                spentOutputs.add(before.getTxOutput(utxo));
+            }
+            addOutputs(outputs, tx);
+        }
+        addOutputs(outputs, coinbase);
+        HashSet<UTXO> spentSet = new HashSet<UTXO>(spent);
+        for (Map.Entry<UTXO, Transaction.Output> e : outputs.entrySet()) {
+            created.add(e.getKey());
+            createdOutputs.add(e.getValue());
+            UTXO utxo = e.getKey();
+            replacedOutputs.add(spentSet.contains(utxo) ? null : before.getTxOutput(utxo));
+        }
+    }
+
+    /**
+     * Records the change made by a genesis block, whose only transaction counted is its coinbase
+     */
+    UTXODelta(Transaction coinbase) {
+        for (int i = 0; i < coinbase.numOutputs(); i++) {
+            created.add(new UTXO(coinbase.getHashId(), i));
+            createdOutputs.add(coinbase.getOutput(i));
+            replacedOutputs.add(null);
+        }
+    }
+
+    /** Applies this change to {@code pool}, which must hold the parent block's UTXO set */
+    void applyTo(UTXOPool pool) {
+        for (UTXO utxo : spent)
+            pool.removeUTXO(utxo);
+        for (int i = 0; i < created.size(); i++)
+            pool.addUTXO(created.get(i), createdOutputs.get(i));
+    }
+
+    /** Undoes this change on {@code pool}, which must hold the block's UTXO set */
+    void undo(UTXOPool pool) {
+        for (int i = 0; i < created.size(); i++) {
+            if (replacedOutputs.get(i) != null)
+                pool.addUTXO(created.get(i), replacedOutputs.get(i));
+            else
+                pool.removeUTXO(created.get(i));
+        }
+        for (int i = 0; i < spent.size(); i++)
+            pool.addUTXO(spent.get(i), spentOutputs.get(i));
+    }
+
+    private static void addOutputs(LinkedHashMap<UTXO, Transaction.Output> outputs,
+            Transaction tx) {
+        for (int i = 0; i < tx.numOutputs(); i++)
+            outputs.put(new UTXO(tx.getHashId(), i), tx.getOutput(i));
+    }
+}
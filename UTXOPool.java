@@ -1,32 +1,165 @@
+import java.io.IOException;
+import java.nio.file.Path;
+import java.security.PublicKey;
 import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.Set;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
 
-public class UTXOPool {
+public class UTXOPool implements Iterable<UTXO> {
 
     /**
      * The current collection of UTXOs, with each one mapped to its corresponding transaction output
      */
-    private HashMap<UTXO, Transaction.Output> H;
+    private UTXOStore H;
+    /** the UTXOs of {@code H} by address, or null if not indexed */
+    private AddressIndex index;
+    /** set by {@link #freeze}: the pool is read-only */
+    private boolean frozen;
 
     /** Creates a new empty UTXOPool */
     public UTXOPool() {
-        H = new HashMap<UTXO, Transaction.Output>();
+        H = new PersistentUTXOStore();
     }
 
-    /** Creates a new UTXOPool that is a copy of {@code uPool} */
+    /**
+     * Creates a new UTXOPool that is a copy of {@code uPool}. The copy shares structure with
+     * {@code uPool} and takes O(1) time; later changes to either pool are not seen by the other.
+     * The copy can be changed even if {@code uPool} is read-only.
+     */
     public UTXOPool(UTXOPool uPool) {
-        H = new HashMap<UTXO, Transaction.Output>(uPool.H);
+        H = uPool.H.fork();
+        if (uPool.index != null)
+            index = uPool.index.fork();
+    }
+
+    /**
+     * Creates a new empty UTXOPool that packs its entries into primitive arrays instead of
+     * allocating objects per entry. Copies of it are full copies of those arrays.
+     */
+    public static UTXOPool compact(int expectedSize) {
+        return new UTXOPool(new CompactUTXOStore(expectedSize));
+    }
+
+    /**
+     * Creates a new, empty UTXOPool over a memory-mapped UTXO set in directory {@code dir}.
+     * Changes are held in memory, shared between copies, until {@link #commit} writes them to the
+     * mapped file.
+     *
+     * @throws java.nio.file.FileAlreadyExistsException if {@code dir} already holds a UTXO set
+     */
+    public static UTXOPool mapped(Path dir) throws IOException {
+        MappedUTXOStore base = MappedUTXOStore.create(dir, MappedUTXOStore.DEFAULT_CACHE_SIZE);
+        return new UTXOPool(new OverlayUTXOStore(base));
+    }
+
+    /** Creates a UTXOPool backed by {@code store} */
+    UTXOPool(UTXOStore store) {
+        H = store;
     }
 
     /** Adds a mapping from UTXO {@code utxo} to transaction output @code{txOut} to the pool */
     public void addUTXO(UTXO utxo, Transaction.Output txOut) {
+        checkWritable();
+        if (index != null) {
+            Transaction.Output old = H.get(utxo);
+            if (old != null)
+                index.remove(utxo, old);
+            index.add(utxo, txOut);
+        }
         H.put(utxo, txOut);
     }
 
     /** Removes the UTXO {@code utxo} from the pool */
     public void removeUTXO(UTXO utxo) {
-        H.remove(utxo);
+        checkWritable();
+        Transaction.Output removed = H.remove(utxo);
+        if (index != null && removed != null)
+            index.remove(utxo, removed);
+    }
+
+    /**
+     * Index the UTXOs of this pool by address, so {@link #getUTXOs} and {@link #getBalance} take
+     * time proportional to the number of outputs of the address asked for. Building the index
+     * takes one pass over the pool. The index is then kept up to date by every change, and copies
+     * of this pool share it the way they share the pool itself. It is held in memory, also for a
+     * {@link #mapped} pool.
+     */
+    public void enableAddressIndex() {
+        if (index != null)
+            return;
+        checkWritable();
+        AddressIndex built = new AddressIndex();
+        for (UTXO utxo : this)
+            built.add(utxo, H.get(utxo));
+        index = built;
+    }
+
+    /**
+     * Makes this pool read-only: changing it then throws {@link IllegalStateException}, and any
+     * number of threads may read and copy it at once.
+     */
+    void freeze() {
+        H.freeze();
+        if (index != null)
+            index.freeze();
+        frozen = true;
+    }
+
+    /** @return true if this pool is read-only; copies of it are not */
+    public boolean isReadOnly() {
+        return frozen;
+    }
+
+    private void checkWritable() {
+        if (frozen)
+            throw new IllegalStateException("UTXO pool is read-only");
+    }
+
+    /** @return true if this pool keeps an index by address */
+    public boolean hasAddressIndex() {
+        return index != null;
+    }
+
+    /**
+     * @return the UTXOs paying {@code address}, in no particular order. Without an address index
+     *         this scans the whole pool.
+     */
+    public ArrayList<UTXO> getUTXOs(PublicKey address) {
+        ArrayList<UTXO> utxos = new ArrayList<UTXO>();
+        Address entry = Address.of(address);
+        if (index != null) {
+            utxos.ensureCapacity(index.count(entry));
+            Iterator<Map.Entry<UTXO, Transaction.Output>> it = index.outputs(entry);
+            while (it.hasNext())
+                utxos.add(it.next().getKey());
+            return utxos;
+        }
+        for (UTXO utxo : this)
+            if (H.get(utxo).getAddressEntry() == entry)
+                utxos.add(utxo);
+        return utxos;
+    }
+
+    /**
+     * @return the total value of the UTXOs paying {@code address}. Without an address index this
+     *         scans the whole pool.
+     */
+    public double getBalance(PublicKey address) {
+        double balance = 0;
+        Address entry = Address.of(address);
+        if (index != null) {
+            Iterator<Map.Entry<UTXO, Transaction.Output>> it = index.outputs(entry);
+            while (it.hasNext())
+                balance += it.next().getValue().value;
+            return balance;
+        }
+        for (UTXO utxo : this) {
+            Transaction.Output out = H.get(utxo);
+            if (out.getAddressEntry() == entry)
+                balance += out.value;
+        }
+        return balance;
     }
 
     /**
@@ -39,16 +172,67 @@ public class UTXOPool {
 
     /** @return true if UTXO {@code utxo} is in the pool and false otherwise */
     public boolean contains(UTXO utxo) {
-        return H.containsKey(utxo);
+        return H.contains(utxo);
     }
 
-    /** Returns an {@code ArrayList} of all UTXOs in the pool */
+    /**
+     * For a pool created by {@link #mapped}, writes {@code deltas} to disk as one batch and drops
+     * them from this pool's in-memory changes. Applied in order to the state on disk, the deltas
+     * must give an ancestor state of this pool and of every other live pool over the same file
+     * whose lineage, see {@link #startLineage}, has not expired.
+     * Does nothing for other pools.
+     */
+    void commit(List<UTXODelta> deltas) throws IOException {
+        if (H instanceof OverlayUTXOStore)
+            ((OverlayUTXOStore) H).commit(deltas);
+    }
+
+    /**
+     * For a pool created by {@link #mapped}, gives this pool and the copies made of it from now on
+     * a lineage of their own, which is expired before a commit their state does not lead to.
+     *
+     * @return the lineage, or null for other pools
+     */
+    OverlayUTXOStore.Lineage startLineage() {
+        if (H instanceof OverlayUTXOStore)
+            return ((OverlayUTXOStore) H).startLineage();
+        return null;
+    }
+
+    /** For a pool created by {@link #mapped}, forces what {@link #commit} wrote to disk */
+    void flush() throws IOException {
+        if (H instanceof OverlayUTXOStore)
+            ((OverlayUTXOStore) H).getBase().flush();
+    }
+
+    /**
+     * For a pool created by {@link #mapped}, closes the files; no pool over them may be used
+     * after
+     */
+    void close() throws IOException {
+        if (H instanceof OverlayUTXOStore)
+            ((OverlayUTXOStore) H).getBase().close();
+    }
+
+    /** @return the number of UTXOs in the pool */
+    public int size() {
+        return H.size();
+    }
+
+    /**
+     * Iterates over the UTXOs of the pool without copying them. The pool must not be changed
+     * meanwhile; for the default pool the iteration sees the pool as of this call.
+     */
+    public Iterator<UTXO> iterator() {
+        return H.iterator();
+    }
+
+    /** Returns an {@code ArrayList} of all UTXOs in the pool; {@link #iterator} avoids the copy */
     public ArrayList<UTXO> getAllUTXO() {
-        Set<UTXO> setUTXO = H.keySet();
-        ArrayList<UTXO> allUTXO = new ArrayList<UTXO>();
-        for (UTXO ut : setUTXO) {
-            allUTXO.add(ut);
-        }
+        ArrayList<UTXO> allUTXO = new ArrayList<UTXO>(H.size());
+        Iterator<UTXO> it = H.iterator();
+        while (it.hasNext())
+            allUTXO.add(it.next());
         return allUTXO;
     }
 }
@@ -0,0 +1,28 @@
+import java.util.Iterator;
+
+/** Storage backend behind a {@link UTXOPool} */
+interface UTXOStore {
+
+    /** @return the output for {@code utxo}, or null if it is not in the store */
+    Transaction.Output get(UTXO utxo);
+
+    boolean contains(UTXO utxo);
+
+    void put(UTXO utxo, Transaction.Output txOut);
+
+    /** @return the output that was removed, or null if {@code utxo} was not in the store */
+    Transaction.Output remove(UTXO utxo);
+
+    int size();
+
+    Iterator<UTXO> iterator();
+
+    /** @return an independent store with the same contents */
+    UTXOStore fork();
+
+    /**
+     * Promises that this store is never written again. Its forks and iterators then write nothing
+     * to it either, so any number of threads may read and fork it at once.
+     */
+    void freeze();
+}
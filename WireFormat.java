@@ -0,0 +1,602 @@
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.PublicKey;
+import java.security.spec.InvalidKeySpecException;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Length-prefixed binary encoding of {@link Transaction} and {@link Block} that, unlike
+ * {@code getRawTx} and {@code getRawBlock}, can be decoded again. All integers are big-endian. A
+ * byte array is written as its length followed by its bytes, with length -1 for null.
+ *
+ * <pre>
+ * transaction := hash flags(byte, 1 = coinbase) count(int) input* count(int) output*
+ * input       := prevTxHash outputIndex(int) signature
+ * output      := value(double) exponent modulus
+ * block       := hash prevBlockHash flags(byte, 1 = Merkle root hash) coinbase
+ *                count(int) transaction*
+ * </pre>
+ *
+ * {@code exponent} and {@code modulus} are the address's {@code BigInteger.toByteArray()} bytes,
+ * the same bytes {@code getRawTx} writes. The fields {@code getRawTx} hashes therefore appear in
+ * the encoding in the same order, separated only by length prefixes, so a {@link TxView} can
+ * compute a transaction's hash straight from the encoded bytes.
+ *
+ * <p>
+ * {@link #readTransaction} and {@link #readBlock} decode everything up front, RSA keys included,
+ * and check every carried hash against the one computed from the contents. {@link #viewTransaction}
+ * and {@link #viewBlock} instead check the structure and record where each field starts, and
+ * decode a field only when it is asked for; their carried hashes are not to be trusted until
+ * {@code verifyHash} has been called.
+ */
+public class WireFormat {
+
+    static final int TX_COINBASE = 1;
+    static final int BLOCK_MERKLE = 1;
+
+    /** Thrown when bytes do not hold a well-formed encoding */
+    public static class FormatException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        public FormatException(String message) {
+            super(message);
+        }
+
+        public FormatException(String message, Throwable cause) {
+            super(message, cause);
+        }
+    }
+
+    public static byte[] encode(Transaction tx) {
+        ByteBuffer b = ByteBuffer.allocate(encodedSize(tx));
+        write(b, tx);
+        return b.array();
+    }
+
+    public static byte[] encode(Block block) {
+        ByteBuffer b = ByteBuffer.allocate(encodedSize(block));
+        write(b, block);
+        return b.array();
+    }
+
+    /** @return the number of bytes {@link #encode(Transaction)} produces for {@code tx} */
+    public static int encodedSize(Transaction tx) {
+        int n = sizeOf(tx.getHash()) + 1 + 4 + 4;
+        for (Transaction.Input in : tx.getInputs())
+            n += sizeOf(in.prevTxHash) + 4 + sizeOf(in.signature);
+        for (Transaction.Output op : tx.getOutputs())
+            n += 8 + sizeOf(op.getAddressExponentBytes()) + sizeOf(op.getAddressModulusBytes());
+        return n;
+    }
+
+    /** @return the number of bytes {@link #encode(Block)} produces for {@code block} */
+    public static int encodedSize(Block block) {
+        int n = sizeOf(block.getHash()) + sizeOf(block.getPrevBlockHash()) + 1;
+        n += encodedSize(block.getCoinbase()) + 4;
+        for (Transaction tx : block.getTransactions())
+            n += encodedSize(tx);
+        return n;
+    }
+
+    public static void write(ByteBuffer b, Transaction tx) {
+        putBytes(b, tx.getHash());
+        b.put((byte) (tx.isCoinbase() ? TX_COINBASE : 0));
+        b.putInt(tx.numInputs());
+        for (Transaction.Input in : tx.getInputs()) {
+            putBytes(b, in.prevTxHash);
+            b.putInt(in.outputIndex);
+            putBytes(b, in.signature);
+        }
+        b.putInt(tx.numOutputs());
+        for (Transaction.Output op : tx.getOutputs()) {
+            b.putDouble(op.value);
+            putBytes(b, op.getAddressExponentBytes());
+            putBytes(b, op.getAddressModulusBytes());
+        }
+    }
+
+    public static void write(ByteBuffer b, Block block) {
+        putBytes(b, block.getHash());
+        putBytes(b, block.getPrevBlockHash());
+        b.put((byte) (block.isMerkleRootHash() ? BLOCK_MERKLE : 0));
+        write(b, block.getCoinbase());
+        b.putInt(block.getTransactions().size());
+        for (Transaction tx : block.getTransactions())
+            write(b, tx);
+    }
+
+    /**
+     * Decodes a transaction from {@code b}, leaving its position just past the encoding
+     *
+     * @throws FormatException if the encoding is malformed or its hash is not the transaction's
+     */
+    public static Transaction readTransaction(ByteBuffer b) {
+        try {
+            byte[] hash = getBytes(b);
+            int flags = b.get();
+            Transaction tx = new Transaction();
+            int nIn = count(b);
+            for (int i = 0; i < nIn; i++) {
+                tx.addInput(getBytes(b), b.getInt());
+                tx.addSignature(getBytes(b), i);
+            }
+            int nOut = count(b);
+            for (int i = 0; i < nOut; i++)
+                tx.addOutput(b.getDouble(), readAddress(b));
+            if ((flags & TX_COINBASE) != 0) {
+                if (nIn != 0 || nOut != 1)
+                    throw new FormatException("malformed coinbase transaction");
+                Transaction.Output op = tx.getOutput(0);
+                tx = new Transaction(op.value, op.address);
+            }
+            if (hash == null) {
+                tx.setHash(null);
+                return tx;
+            }
+            tx.finalize();
+            if (!Arrays.equals(tx.getHash(), hash))
+                throw new FormatException("transaction hash does not match its contents");
+            return tx;
+        } catch (BufferUnderflowException e) {
+            throw new FormatException("truncated transaction", e);
+        }
+    }
+
+    /**
+     * Decodes a block from {@code b}, leaving its position just past the encoding
+     *
+     * @throws FormatException if the encoding is malformed or any hash in it does not match
+     */
+    public static Block readBlock(ByteBuffer b) {
+        try {
+            byte[] hash = getBytes(b);
+            byte[] prevBlockHash = getBytes(b);
+            int flags = b.get();
+            Transaction coinbase = readTransaction(b);
+            if (!coinbase.isCoinbase())
+                throw new FormatException("block does not start with a coinbase transaction");
+            Block block = new Block(prevBlockHash, coinbase.getOutput(0).address,
+                    (flags & BLOCK_MERKLE) != 0);
+            if (!Arrays.equals(block.getCoinbase().getHash(), coinbase.getHash()))
+                throw new FormatException("coinbase does not match the block's address");
+            int n = count(b);
+            for (int i = 0; i < n; i++)
+                block.addTransaction(readTransaction(b));
+            if (hash != null) {
+                block.finalize();
+                if (!Arrays.equals(block.getHash(), hash))
+                    throw new FormatException("block hash does not match its contents");
+            }
+            return block;
+        } catch (BufferUnderflowException e) {
+            throw new FormatException("truncated block", e);
+        }
+    }
+
+    /**
+     * Views the transaction encoded at the position of {@code b}, leaving its position just past
+     * the encoding. The view shares {@code b}'s bytes, which must not change while it is in use.
+     */
+    public static TxView viewTransaction(ByteBuffer b) {
+        TxView view = new TxView(b.slice());
+        b.position(b.position() + view.encodedLength());
+        return view;
+    }
+
+    /**
+     * Views the block encoded at the position of {@code b}, leaving its position just past the
+     * encoding. The view shares {@code b}'s bytes, which must not change while it is in use.
+     */
+    public static BlockView viewBlock(ByteBuffer b) {
+        BlockView view = new BlockView(b.slice());
+        b.position(b.position() + view.encodedLength());
+        return view;
+    }
+
+    /**
+     * An encoded transaction whose fields are read from the encoding on demand. Building one
+     * checks the structure and records the offset of every input and output, without copying or
+     * decoding anything. Not thread-safe.
+     */
+    public static final class TxView {
+        /** the encoding, from offset 0 */
+        private final ByteBuffer buf;
+        private final int length;
+        private final boolean coinbase;
+        /** offset of each input's prevTxHash, and of each output's value */
+        private final int[] inputs;
+        private final int[] outputs;
+        /** addresses decoded so far */
+        private PublicKey[] addresses;
+        /** the hash computed from the contents, once computed */
+        private byte[] computed;
+
+        TxView(ByteBuffer b) {
+            try {
+                int off = skipBytes(b, 0);
+                coinbase = (b.get(off) & TX_COINBASE) != 0;
+                off++;
+                inputs = new int[count(b, off)];
+                off += 4;
+                for (int i = 0; i < inputs.length; i++) {
+                    inputs[i] = off;
+                    off = skipBytes(b, skipBytes(b, off) + 4);
+                }
+                outputs = new int[count(b, off)];
+                off += 4;
+                for (int i = 0; i < outputs.length; i++) {
+                    outputs[i] = off;
+                    off = skipBytes(b, skipBytes(b, off + 8));
+                }
+                if (coinbase && (inputs.length != 0 || outputs.length != 1))
+                    throw new FormatException("malformed coinbase transaction");
+                length = off;
+            } catch (IndexOutOfBoundsException e) {
+                throw new FormatException("truncated transaction", e);
+            }
+            buf = b.slice(0, length).asReadOnlyBuffer();
+        }
+
+        public int encodedLength() {
+            return length;
+        }
+
+        /** @return the encoding, for relaying it as is */
+        public ByteBuffer getEncoded() {
+            return buf.duplicate();
+        }
+
+        /**
+         * @return a copy of the hash carried by the encoding, unchecked until {@link #verifyHash}
+         */
+        public byte[] getHash() {
+            return bytesAt(buf, 0);
+        }
+
+        /**
+         * @return the hash carried by the encoding, read without an intermediate copy if 32 bytes
+         *         long
+         */
+        public Hash256 getHashId() {
+            return hashAt(buf, 0);
+        }
+
+        /** @throws FormatException if the carried hash is not the one computed from the contents */
+        public void verifyHash() {
+            byte[] carried = getHash();
+            if (carried != null && !Arrays.equals(carried, hash()))
+                throw new FormatException("transaction hash does not match its contents");
+        }
+
+        public boolean isCoinbase() {
+            return coinbase;
+        }
+
+        public int numInputs() {
+            return inputs.length;
+        }
+
+        public int numOutputs() {
+            return outputs.length;
+        }
+
+        public byte[] getPrevTxHash(int index) {
+            return bytesAt(buf, inputs[index]);
+        }
+
+        /** @return the outpoint input {@code index} spends, or null if it names no transaction */
+        public UTXO getOutpoint(int index) {
+            Hash256 prev = hashAt(buf, inputs[index]);
+            return prev == null ? null : new UTXO(prev, getOutputIndex(index));
+        }
+
+        public int getOutputIndex(int index) {
+            return buf.getInt(skipBytes(buf, inputs[index]));
+        }
+
+        public byte[] getSignature(int index) {
+            return bytesAt(buf, skipBytes(buf, inputs[index]) + 4);
+        }
+
+        public double getOutputValue(int index) {
+            return buf.getDouble(outputs[index]);
+        }
+
+        /** @return the address output {@code index} pays, decoded on the first call */
+        public PublicKey getOutputAddress(int index) {
+            if (addresses == null)
+                addresses = new PublicKey[outputs.length];
+            PublicKey address = addresses[index];
+            if (address == null) {
+                ByteBuffer b = buf.duplicate();
+                b.position(outputs[index] + 8);
+                addresses[index] = address = readAddress(b);
+            }
+            return address;
+        }
+
+        /**
+         * @return the SHA-256 of the {@code getRawTx()} bytes held in the encoding, fed to the
+         *         digest straight from the buffer. Equal to the hash {@link Transaction#finalize}
+         *         computes for the decoded transaction.
+         */
+        public byte[] computeHash() {
+            return hash().clone();
+        }
+
+        private byte[] hash() {
+            if (computed == null) {
+                MessageDigest md = sha256();
+                digestRawTx(md);
+                computed = md.digest();
+            }
+            return computed;
+        }
+
+        /** Feeds the {@code getRawTx()} bytes held in the encoding to {@code md} */
+        void digestRawTx(MessageDigest md) {
+            for (int in : inputs) {
+                int off = digestBytes(md, buf, in);
+                md.update(buf.slice(off, 4));
+                digestBytes(md, buf, off + 4);
+            }
+            for (int op : outputs) {
+                md.update(buf.slice(op, 8));
+                digestBytes(md, buf, digestBytes(md, buf, op + 8));
+            }
+        }
+
+        /** @return the transaction, fully decoded */
+        public Transaction toTransaction() {
+            return readTransaction(buf.duplicate());
+        }
+    }
+
+    /**
+     * An encoded block whose header and transactions are read from the encoding on demand.
+     * Building one checks the structure of the whole block and records where each transaction
+     * starts; a transaction's {@link TxView} is made the first time it is asked for. Not
+     * thread-safe.
+     */
+    public static final class BlockView {
+        /** the encoding, from offset 0 */
+        private final ByteBuffer buf;
+        private final int length;
+        /** offset of the flags byte */
+        private final int flagsOffset;
+        private final TxView coinbase;
+        /** offset of each transaction after the coinbase, then the end of the last one */
+        private final int[] txOffsets;
+        private final TxView[] txs;
+
+        BlockView(ByteBuffer b) {
+            try {
+                flagsOffset = skipBytes(b, skipBytes(b, 0));
+                int off = flagsOffset + 1;
+                coinbase = new TxView(b.slice(off, b.limit() - off));
+                if (!coinbase.isCoinbase())
+                    throw new FormatException("block does not start with a coinbase transaction");
+                off += coinbase.encodedLength();
+                int n = count(b, off);
+                off += 4;
+                txOffsets = new int[n + 1];
+                for (int i = 0; i < n; i++) {
+                    txOffsets[i] = off;
+                    off = skipTransaction(b, off);
+                }
+                txOffsets[n] = off;
+                length = off;
+            } catch (IndexOutOfBoundsException e) {
+                throw new FormatException("truncated block", e);
+            }
+            buf = b.slice(0, length).asReadOnlyBuffer();
+            txs = new TxView[txOffsets.length - 1];
+        }
+
+        public int encodedLength() {
+            return length;
+        }
+
+        /** @return the encoding, for relaying it as is */
+        public ByteBuffer getEncoded() {
+            return buf.duplicate();
+        }
+
+        /**
+         * @return a copy of the hash carried by the encoding, unchecked until {@link #verifyHash}
+         */
+        public byte[] getHash() {
+            return bytesAt(buf, 0);
+        }
+
+        public Hash256 getHashId() {
+            return hashAt(buf, 0);
+        }
+
+        /**
+         * Checks the hash carried by every transaction, then the block's own
+         *
+         * @throws FormatException if a carried hash is not the one computed from the contents
+         */
+        public void verifyHash() {
+            coinbase.verifyHash();
+            for (int i = 0; i < txs.length; i++)
+                getTransaction(i).verifyHash();
+            byte[] carried = getHash();
+            if (carried != null && !Arrays.equals(carried, computeHash()))
+                throw new FormatException("block hash does not match its contents");
+        }
+
+        public byte[] getPrevBlockHash() {
+            return bytesAt(buf, skipBytes(buf, 0));
+        }
+
+        public boolean isMerkleRootHash() {
+            return (buf.get(flagsOffset) & BLOCK_MERKLE) != 0;
+        }
+
+        public TxView getCoinbase() {
+            return coinbase;
+        }
+
+        public int numTransactions() {
+            return txs.length;
+        }
+
+        public TxView getTransaction(int index) {
+            TxView tx = txs[index];
+            if (tx == null) {
+                int off = txOffsets[index];
+                txs[index] = tx = new TxView(buf.slice(off, txOffsets[index + 1] - off));
+            }
+            return tx;
+        }
+
+        /**
+         * @return the block hash, computed from the encoded transactions as {@link Block#finalize}
+         *         would: over the {@code getRawBlock()} bytes fed straight from the buffer or, in
+         *         Merkle mode, over the root of the transaction hashes recomputed the same way
+         */
+        public byte[] computeHash() {
+            MessageDigest md = sha256();
+            int prev = skipBytes(buf, 0);
+            if (isMerkleRootHash()) {
+                ArrayList<byte[]> leaves = new ArrayList<byte[]>(txs.length);
+                for (int i = 0; i < txs.length; i++)
+                    leaves.add(getTransaction(i).hash());
+                MerkleTree tree = new MerkleTree();
+                tree.addAll(leaves);
+                digestBytes(md, buf, prev);
+                md.update(tree.getRoot());
+                return md.digest();
+            }
+            digestBytes(md, buf, prev);
+            for (int i = 0; i < txs.length; i++)
+                getTransaction(i).digestRawTx(md);
+            return md.digest();
+        }
+
+        /** @return the block, fully decoded */
+        public Block toBlock() {
+            return readBlock(buf.duplicate());
+        }
+    }
+
+    /** @return the block hash at the start of an encoded block, without decoding the rest */
+    public static byte[] peekBlockHash(ByteBuffer b) {
+        return getBytes(b.duplicate());
+    }
+
+    private static PublicKey readAddress(ByteBuffer b) {
+        byte[] exponent = getBytes(b);
+        byte[] modulus = getBytes(b);
+        if (exponent == null || modulus == null)
+            throw new FormatException("missing output address");
+        try {
+            return Address.of(exponent, modulus).key;
+        } catch (InvalidKeySpecException e) {
+            throw new FormatException("bad output address", e);
+        }
+    }
+
+    /** @return the offset just past the transaction encoded at {@code off} */
+    private static int skipTransaction(ByteBuffer b, int off) {
+        off = skipBytes(b, off) + 1;
+        int nIn = count(b, off);
+        off += 4;
+        for (int i = 0; i < nIn; i++)
+            off = skipBytes(b, skipBytes(b, off) + 4);
+        int nOut = count(b, off);
+        off += 4;
+        for (int i = 0; i < nOut; i++)
+            off = skipBytes(b, skipBytes(b, off + 8));
+        return off;
+    }
+
+    /** @return the offset just past the byte array encoded at {@code off} */
+    private static int skipBytes(ByteBuffer b, int off) {
+        int n = b.getInt(off);
+        if (n == -1)
+            return off + 4;
+        if (n < 0 || n > b.limit() - off - 4)
+            throw new FormatException("bad length " + n);
+        return off + 4 + n;
+    }
+
+    private static byte[] bytesAt(ByteBuffer b, int off) {
+        int n = b.getInt(off);
+        if (n == -1)
+            return null;
+        byte[] a = new byte[n];
+        b.get(off + 4, a);
+        return a;
+    }
+
+    private static Hash256 hashAt(ByteBuffer b, int off) {
+        int n = b.getInt(off);
+        if (n == -1)
+            return null;
+        if (n != 32)
+            return Hash256.of(bytesAt(b, off));
+        return new Hash256(b.getLong(off + 4), b.getLong(off + 12), b.getLong(off + 20),
+                b.getLong(off + 28));
+    }
+
+    /** Feeds the byte array encoded at {@code off} to {@code md} and returns the offset past it */
+    private static int digestBytes(MessageDigest md, ByteBuffer b, int off) {
+        int n = b.getInt(off);
+        if (n == -1)
+            return off + 4;
+        md.update(b.slice(off + 4, n));
+        return off + 4 + n;
+    }
+
+    private static int count(ByteBuffer b, int off) {
+        int n = b.getInt(off);
+        if (n < 0 || n > b.limit() - off)
+            throw new FormatException("bad element count " + n);
+        return n;
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException x) {
+            throw new IllegalStateException(x);
+        }
+    }
+
+    private static int count(ByteBuffer b) {
+        int n = b.getInt();
+        if (n < 0 || n > b.remaining())
+            throw new FormatException("bad element count " + n);
+        return n;
+    }
+
+    private static int sizeOf(byte[] a) {
+        return 4 + (a == null ? 0 : a.length);
+    }
+
+    private static void putBytes(ByteBuffer b, byte[] a) {
+        if (a == null) {
+            b.putInt(-1);
+            return;
+        }
+        b.putInt(a.length);
+        b.put(a);
+    }
+
+    private static byte[] getBytes(ByteBuffer b) {
+        int n = b.getInt();
+        if (n == -1)
+            return null;
+        if (n < 0 || n > b.remaining())
+            throw new FormatException("bad length " + n);
+        byte[] a = new byte[n];
+        b.get(a);
+        return a;
+    }
+}
@@ -0,0 +1,90 @@
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.regex.Pattern;
+
+/**
+ * Minimal benchmark runner in the spirit of JMH: each benchmark is warmed up, then timed over
+ * several iterations, and reported as the mean time per unit with its standard deviation. An
+ * iteration repeats the operation until it has run for at least {@code bench.iterationMillis}.
+ * Results are written to a volatile sink so the JIT cannot drop the work.
+ *
+ * System properties: {@code bench.warmups} (default 5), {@code bench.iterations} (default 5),
+ * {@code bench.iterationMillis} (default 500).
+ */
+final class Bench {
+
+    static volatile Object sink;
+
+    private final Pattern filter;
+    private final int warmups = Integer.getInteger("bench.warmups", 5);
+    private final int iterations = Integer.getInteger("bench.iterations", 5);
+    private final long iterationNanos = Integer.getInteger("bench.iterationMillis", 500) * 1000000L;
+    /** the operations recorded instead of timed, by name, or null when timing */
+    private final LinkedHashMap<String, Callable<Object>> collected;
+
+    /** Runs only the benchmarks whose name contains a match for {@code filter}, or all if null */
+    Bench(String filter) {
+        this(filter, false);
+    }
+
+    /**
+     * With {@code collect}, {@link #run} records the operations for {@link #collected} instead of
+     * timing them
+     */
+    Bench(String filter, boolean collect) {
+        this.filter = filter == null ? null : Pattern.compile(filter);
+        this.collected = collect ? new LinkedHashMap<String, Callable<Object>>() : null;
+        if (!collect)
+            System.out.printf("%-48s %14s %12s%n", "benchmark", "ns/unit", "+-");
+    }
+
+    /** @return the operations recorded so far, by name, in the order they were run */
+    Map<String, Callable<Object>> collected() {
+        return collected;
+    }
+
+    boolean selected(String name) {
+        return filter == null || filter.matcher(name).find();
+    }
+
+    /** Times {@code op}, which does {@code units} units of work per call */
+    void run(String name, long units, Callable<Object> op) throws Exception {
+        if (!selected(name))
+            return;
+        if (collected != null) {
+            collected.put(name, op);
+            return;
+        }
+        for (int i = 0; i < warmups; i++)
+            iteration(op);
+        double[] perUnit = new double[iterations];
+        for (int i = 0; i < iterations; i++) {
+            long[] r = iteration(op);
+            perUnit[i] = (double) r[0] / (r[1] * units);
+        }
+        double mean = 0;
+        for (double v : perUnit)
+            mean += v;
+        mean /= iterations;
+        double var = 0;
+        for (double v : perUnit)
+            var += (v - mean) * (v - mean);
+        double sd = iterations > 1 ? Math.sqrt(var / (iterations - 1)) : 0;
+        System.out.println(String.format(Locale.ROOT, "%-48s %14.1f %12.1f", name, mean, sd));
+    }
+
+    /** @return the elapsed nanoseconds and the number of calls */
+    private long[] iteration(Callable<Object> op) throws Exception {
+        long calls = 0;
+        long start = System.nanoTime();
+        long elapsed;
+        do {
+            sink = op.call();
+            calls++;
+            elapsed = System.nanoTime() - start;
+        } while (elapsed < iterationNanos);
+        return new long[] { elapsed, calls };
+    }
+}
@@ -0,0 +1,140 @@
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.GeneralSecurityException;
+import java.security.PublicKey;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Objects;
+import java.util.Random;
+import java.util.function.Supplier;
+
+/**
+ * What the randomized differential checks in bench/ share: the seed and the number of steps,
+ * random keys and outputs, and the comparisons. A check compares an optimized structure with a
+ * plain reference and fails with an {@link AssertionError} on the first difference, whether or
+ * not assertions are enabled.
+ *
+ * System properties: {@code check.seed} (default 1) and {@code check.steps}, the number of random
+ * operations of each check (default 200000; checks of larger operations run a fraction of it).
+ */
+final class Checks {
+
+    /** One named check of a check program */
+    interface Check {
+        void run() throws Exception;
+    }
+
+    final long seed;
+    final int steps;
+    private final Fixtures fixtures;
+    private final Transaction owner = new Transaction();
+
+    Checks() throws GeneralSecurityException {
+        seed = Long.getLong("check.seed", 1);
+        steps = Integer.getInteger("check.steps", 200000);
+        fixtures = new Fixtures(seed, 4);
+    }
+
+    /** Runs {@code check} and prints how long it took */
+    static void run(String name, Check check) throws Exception {
+        long start = System.nanoTime();
+        check.run();
+        System.out.println(String.format("%-10s ok in %d ms", name,
+                (System.nanoTime() - start) / 1000000));
+    }
+
+    /**
+     * Compares stores made by {@code make}, and forks of them, with {@code HashMap}s under random
+     * put, remove, get and fork, starting from {@code initial}. With {@code shortHashes}, some
+     * UTXO hashes are 20 bytes long.
+     */
+    void storeAgainstMap(String name, Supplier<UTXOStore> make,
+            HashMap<UTXO, Transaction.Output> initial, boolean shortHashes) {
+        Random random = new Random(seed);
+        ArrayList<UTXOStore> stores = new ArrayList<UTXOStore>();
+        ArrayList<HashMap<UTXO, Transaction.Output>> refs =
+                new ArrayList<HashMap<UTXO, Transaction.Output>>();
+        stores.add(make.get());
+        refs.add(new HashMap<UTXO, Transaction.Output>(initial));
+        for (int step = 0; step < steps; step++) {
+            int s = random.nextInt(stores.size());
+            UTXOStore store = stores.get(s);
+            HashMap<UTXO, Transaction.Output> ref = refs.get(s);
+            // The same 300 hashes in every store, so puts and removes keep hitting present UTXOs.
+            UTXO utxo = new UTXO(hash(random.nextInt(300), !shortHashes), random.nextInt(4));
+            int op = random.nextInt(10);
+            if (op < 5) {
+                Transaction.Output out = output(random);
+                store.put(utxo, out);
+                ref.put(utxo, out);
+            } else if (op < 8) {
+                check(Objects.equals(store.remove(utxo), ref.remove(utxo)),
+                        name + " remove at step " + step);
+            } else if (op == 8 && stores.size() < 10) {
+                stores.add(store.fork());
+                refs.add(new HashMap<UTXO, Transaction.Output>(ref));
+            } else {
+                check(Objects.equals(store.get(utxo), ref.get(utxo)),
+                        name + " get at step " + step);
+                check(store.contains(utxo) == ref.containsKey(utxo),
+                        name + " contains at step " + step);
+            }
+            check(store.size() == ref.size(), name + " size at step " + step);
+        }
+        for (int i = 0; i < stores.size(); i++)
+            check(keys(stores.get(i).iterator()).equals(refs.get(i).keySet()),
+                    name + " iteration of fork " + i);
+    }
+
+    Transaction.Output output(Random random) {
+        return owner.new Output(random.nextInt(100), key(random));
+    }
+
+    PublicKey key(Random random) {
+        return fixtures.keys[random.nextInt(fixtures.keys.length)].getPublic();
+    }
+
+    /**
+     * @return hash number {@code i}, the same bytes on every call; if not {@code full}, some are 20
+     *         bytes long and some share their first bytes
+     */
+    static byte[] hash(int i, boolean full) {
+        Random r = new Random(i * 0x9E3779B97F4A7C15L);
+        byte[] hash = new byte[!full && i % 50 == 0 ? 20 : 32];
+        r.nextBytes(hash);
+        if (i % 7 == 0)
+            Arrays.fill(hash, 0, 8, (byte) 0);
+        return hash;
+    }
+
+    static HashMap<UTXO, Transaction.Output> contents(UTXOPool pool) {
+        HashMap<UTXO, Transaction.Output> contents = new HashMap<UTXO, Transaction.Output>();
+        for (UTXO utxo : pool)
+            check(contents.put(utxo, pool.getTxOutput(utxo)) == null, "pool iterates a UTXO twice");
+        return contents;
+    }
+
+    static HashSet<UTXO> keys(Iterator<UTXO> it) {
+        HashSet<UTXO> keys = new HashSet<UTXO>();
+        while (it.hasNext())
+            check(keys.add(it.next()), "store iterates a UTXO twice");
+        return keys;
+    }
+
+    static void delete(Path dir) throws IOException {
+        try (java.util.stream.Stream<Path> files = Files.list(dir)) {
+            for (Path f : (Iterable<Path>) files::iterator)
+                Files.delete(f);
+        }
+        Files.delete(dir);
+    }
+
+    static void check(boolean ok, String what) {
+        if (!ok)
+            throw new AssertionError(what);
+    }
+}
@@ -0,0 +1,19 @@
+import java.util.HashMap;
+
+/**
+ * Randomized check of {@link CompactUTXOStore} against {@code HashMap} under random put, remove,
+ * get and fork, with some 20-byte and some prefix-sharing hashes; see {@link Checks}.
+ *
+ * <pre>
+ * javac -d out *.java bench/*.java
+ * java -Dcheck.seed=7 -cp out CompactStoreCheck
+ * </pre>
+ */
+public class CompactStoreCheck {
+
+    public static void main(String[] args) throws Exception {
+        Checks c = new Checks();
+        Checks.run("compact", () -> c.storeAgainstMap("compact", CompactUTXOStore::new,
+                new HashMap<UTXO, Transaction.Output>(), true));
+    }
+}
@@ -0,0 +1,92 @@
+import java.security.KeyPair;
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Benchmarks {@link BlockHandler#createBlock} against the number of pooled transactions, with the
+ * block selected from the pool on every call and with a {@link BlockTemplate} kept up to date as
+ * transactions arrive. Each call mines a block of {@code bench.blockTxs} transactions on top of
+ * its own last block, so the pool shrinks by that many per call; the pool starts
+ * {@code (bench.warmupBlocks + bench.blocks) * bench.blockTxs} transactions above the size in
+ * the first column and ends at it. Transactions are validated as they are added, see
+ * {@link BlockChain#setMempoolValidation}, so their signatures are cached before any block is
+ * created; the time to add each one is reported too, since the template moves work there.
+ *
+ * <pre>
+ * javac -d out *.java bench/*.java
+ * java -Xmx8g -cp out CreateBlockBenchmark
+ * java -Xmx8g -Dbench.mempoolSizes=1000,10000,100000 -Dbench.blockTxs=1000 \
+ *     -cp out CreateBlockBenchmark
+ * </pre>
+ *
+ * System properties: {@code bench.mempoolSizes} (default 1000,4000,16000), {@code bench.blockTxs}
+ * (default 500), {@code bench.blocks} (default 20), {@code bench.warmupBlocks} (default 5).
+ */
+public class CreateBlockBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int blockTxs = Integer.getInteger("bench.blockTxs", 500);
+        int blocks = Integer.getInteger("bench.blocks", 20);
+        int warmups = Integer.getInteger("bench.warmupBlocks", 5);
+        Fixtures fx = new Fixtures(42, 8);
+        KeyPair owner = fx.keys[0];
+
+        System.out.printf("%-10s %10s %14s %14s %14s %14s%n", "mode", "mempool", "create us",
+                "p50 us", "max us", "addTx ns/tx");
+        for (String size : System.getProperty("bench.mempoolSizes", "1000,4000,16000").split(",")) {
+            int mempool = Integer.parseInt(size.trim());
+            int n = mempool + (warmups + blocks) * blockTxs;
+
+            // The genesis coinbase split into one output per transaction, and a signed spend of
+            // each paying a fee that varies from one transaction to the next.
+            Block genesis = new Block(null, owner.getPublic());
+            genesis.finalize();
+            Transaction source = fx.split(genesis.getCoinbase().getHash(), 0, owner,
+                    genesis.getCoinbase().getOutput(0).value * 0.999, n, owner.getPublic());
+            Transaction[] spends = new Transaction[n];
+            for (int i = 0; i < n; i++) {
+                double value = source.getOutput(i).value;
+                spends[i] = fx.split(source.getHash(), i, owner, value * (1 - (i % 17) / 100.0), 1,
+                        fx.keys[i % fx.keys.length].getPublic());
+            }
+
+            for (boolean template : new boolean[] { false, true }) {
+                BlockChain chain = new BlockChain(genesis);
+                Block first = new Block(genesis.getHash(), owner.getPublic());
+                first.addTransaction(source);
+                first.finalize();
+                chain.addBlock(first);
+                chain.setMempoolValidation(true);
+                BlockHandler handler = new BlockHandler(chain);
+                handler.setMaxBlockTransactions(blockTxs);
+                handler.setBlockTemplate(template);
+
+                long addStart = System.nanoTime();
+                for (Transaction tx : spends)
+                    chain.addTransaction(tx);
+                long addNanos = System.nanoTime() - addStart;
+
+                long[] nanos = new long[blocks];
+                for (int b = -warmups; b < blocks; b++) {
+                    long start = System.nanoTime();
+                    Block block = handler.createBlock(fx.keys[1].getPublic());
+                    long elapsed = System.nanoTime() - start;
+                    if (block == null || block.getTransactions().size() != blockTxs)
+                        throw new IllegalStateException("short block");
+                    if (b >= 0)
+                        nanos[b] = elapsed;
+                }
+                Arrays.sort(nanos);
+                double mean = 0;
+                for (long v : nanos)
+                    mean += v;
+                mean /= blocks;
+                System.out.println(String.format(Locale.ROOT,
+                        "%-10s %10d %14.1f %14.1f %14.1f %14.1f",
+                        template ? "template" : "select", mempool, mean / 1000,
+                        nanos[blocks / 2] / 1000.0, nanos[blocks - 1] / 1000.0,
+                        (double) addNanos / n));
+            }
+        }
+    }
+}
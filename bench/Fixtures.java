@@ -0,0 +1,120 @@
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.security.SecureRandom;
+import java.security.Signature;
+import java.util.ArrayList;
+import java.util.Random;
+
+/**
+ * Deterministic inputs for the benchmarks. RSA keys come from a {@code SHA1PRNG} seeded with a
+ * fixed value, so the same seed gives the same keys, transactions and blocks on every run of the
+ * same JDK.
+ */
+final class Fixtures {
+
+    final KeyPair[] keys;
+
+    Fixtures(long seed, int nKeys) throws GeneralSecurityException {
+        SecureRandom random = SecureRandom.getInstance("SHA1PRNG");
+        random.setSeed(seed);
+        KeyPairGenerator gen = KeyPairGenerator.getInstance("RSA");
+        gen.initialize(1024, random);
+        keys = new KeyPair[nKeys];
+        for (int i = 0; i < nKeys; i++)
+            keys[i] = gen.generateKeyPair();
+    }
+
+    static byte[] sign(PrivateKey key, byte[] message) throws GeneralSecurityException {
+        Signature sig = Signature.getInstance("SHA256withRSA");
+        sig.initSign(key);
+        sig.update(message);
+        return sig.sign();
+    }
+
+    /**
+     * @return a finalized transaction spending output {@code index} of {@code prevHash} into
+     *         {@code n} equal outputs
+     */
+    Transaction split(byte[] prevHash, int index, KeyPair owner, double value, int n, PublicKey to)
+            throws GeneralSecurityException {
+        Transaction tx = new Transaction();
+        tx.addInput(prevHash, index);
+        for (int i = 0; i < n; i++)
+            tx.addOutput(value / n, to);
+        tx.addSignature(sign(owner.getPrivate(), tx.getRawDataToSign(0)), 0);
+        tx.finalize();
+        return tx;
+    }
+
+    /** @return a pool of {@code n} UTXOs with random 32-byte hashes, and those UTXOs */
+    UTXO[] fillPool(UTXOPool pool, int n) {
+        Transaction owner = new Transaction();
+        Random random = new Random(n);
+        UTXO[] utxos = new UTXO[n];
+        for (int i = 0; i < n; i++) {
+            byte[] hash = new byte[32];
+            random.nextBytes(hash);
+            utxos[i] = new UTXO(hash, i & 3);
+            pool.addUTXO(utxos[i], owner.new Output(1, keys[i % keys.length].getPublic()));
+        }
+        return utxos;
+    }
+
+    /**
+     * @return {@code blocks} blocks extending {@code genesis}, each with {@code txsPerBlock}
+     *         transactions after the first, which splits the genesis coinbase. Different values
+     *         of {@code branch} give chains that share no block, so they can be used as forks.
+     */
+    ArrayList<Block> chain(Block genesis, KeyPair genesisOwner, int blocks, int txsPerBlock,
+            int branch) throws GeneralSecurityException {
+        KeyPair holder = keys[(1 + branch) % keys.length];
+        PublicKey miner = keys[(2 + branch) % keys.length].getPublic();
+        Transaction coinbase = genesis.getCoinbase();
+        int outputs = Math.max(1, (blocks - 1) * txsPerBlock);
+        Transaction split = split(coinbase.getHash(), 0, genesisOwner,
+                coinbase.getOutput(0).value - branch * 0.001, outputs, holder.getPublic());
+
+        ArrayList<Block> chain = new ArrayList<Block>(blocks);
+        Block first = new Block(genesis.getHash(), miner);
+        first.addTransaction(split);
+        first.finalize();
+        chain.add(first);
+        int next = 0;
+        for (int b = 1; b < blocks; b++) {
+            Block block = new Block(chain.get(b - 1).getHash(), miner);
+            for (int t = 0; t < txsPerBlock; t++, next++) {
+                Transaction tx = split(split.getHash(), next, holder,
+                        split.getOutput(next).value, 1, keys[next % keys.length].getPublic());
+                block.addTransaction(tx);
+            }
+            block.finalize();
+            chain.add(block);
+        }
+        return chain;
+    }
+
+    /**
+     * @return the blocks of {@code a} and {@code b}, two forks of the same genesis, ordered so that
+     *         the tip moves to the other fork with every second block
+     */
+    static ArrayList<Block> interleave(ArrayList<Block> a, ArrayList<Block> b) {
+        ArrayList<Block> order = new ArrayList<Block>(a.size() + b.size());
+        int i = 0, j = 0;
+        order.add(a.get(i++));
+        boolean fromB = true;
+        while (i < a.size() || j < b.size()) {
+            ArrayList<Block> from = fromB ? b : a;
+            for (int k = 0; k < 2; k++) {
+                if (fromB && j < b.size())
+                    order.add(from.get(j++));
+                else if (!fromB && i < a.size())
+                    order.add(from.get(i++));
+            }
+            fromB = !fromB;
+        }
+        return order;
+    }
+}
@@ -0,0 +1,139 @@
+import java.nio.ByteBuffer;
+import java.security.KeyPair;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Callable;
+
+/**
+ * Benchmarks the validation and chain hot paths: signature verification, transaction validation
+ * at several batch sizes, UTXO pool copies and lookups, transaction and block hashing, decoding
+ * blocks from the wire format eagerly and through views, and
+ * {@link BlockChain#addBlock} on a linear chain and on two forks that keep overtaking each other.
+ * See {@link Bench} for how each benchmark is timed; {@code jmh.HotPath} times the same
+ * operations under JMH.
+ *
+ * <pre>
+ * javac -d out *.java bench/*.java
+ * java -Xmx8g -cp out HotPathBenchmark [name filter]
+ * java -Dbench.utxoSizes=10000,100000 -cp out HotPathBenchmark utxopool
+ * </pre>
+ *
+ * {@code bench.utxoSizes} lists the UTXO pool sizes, 10^4 to 10^7 by default.
+ */
+public class HotPathBenchmark {
+
+    private static final int[] BATCH_SIZES = { 1, 16, 256, 1024 };
+    private static final int CHAIN_BLOCKS = 40;
+    private static final int CHAIN_TXS_PER_BLOCK = 8;
+    private static final String UTXO_SIZES = "10000,100000,1000000,10000000";
+
+    public static void main(String[] args) throws Exception {
+        register(new Bench(args.length > 0 ? args[0] : null),
+                System.getProperty("bench.utxoSizes", UTXO_SIZES));
+    }
+
+    /**
+     * @param utxoSizes the UTXO pool sizes of the utxopool benchmarks, separated by commas
+     * @return the operations of the benchmarks whose name contains a match for {@code filter},
+     *         set up but not run, by name
+     */
+    public static Map<String, Callable<Object>> operations(String filter, String utxoSizes)
+            throws Exception {
+        Bench bench = new Bench(filter, true);
+        register(bench, utxoSizes);
+        return bench.collected();
+    }
+
+    private static void register(final Bench bench, String utxoSizes) throws Exception {
+        final Fixtures fx = new Fixtures(42, 8);
+        final KeyPair owner = fx.keys[0];
+
+        // A source transaction with one output per spend, and a signed spend of each.
+        int maxBatch = BATCH_SIZES[BATCH_SIZES.length - 1];
+        Transaction coinbase = new Transaction(25, owner.getPublic());
+        Transaction source =
+                fx.split(coinbase.getHash(), 0, owner, 25, maxBatch, owner.getPublic());
+        final UTXOPool pool = new UTXOPool();
+        for (int i = 0; i < maxBatch; i++)
+            pool.addUTXO(new UTXO(source.getHash(), i), source.getOutput(i));
+        final Transaction[] spends = new Transaction[maxBatch];
+        for (int i = 0; i < maxBatch; i++)
+            spends[i] = fx.split(source.getHash(), i, owner, source.getOutput(i).value, 2,
+                    fx.keys[i % fx.keys.length].getPublic());
+
+        final Transaction tx = spends[0];
+        final byte[] message = tx.getRawDataToSign(0);
+        final byte[] signature = tx.getInput(0).signature;
+        bench.run("crypto.verifySignature", 1,
+                () -> Crypto.verifySignature(owner.getPublic(), message, signature));
+
+        final TxHandler validator = new TxHandler(pool);
+        bench.run("txhandler.isValidTx", 1, () -> validator.isValidTx(tx));
+        for (final int n : BATCH_SIZES) {
+            final Transaction[] batch = new Transaction[n];
+            System.arraycopy(spends, 0, batch, 0, n);
+            bench.run("txhandler.handleTxs batch=" + n, n,
+                    () -> new TxHandler(pool).handleTxs(batch));
+            bench.run("txhandler.handleTxs parallel batch=" + n, n, () -> {
+                TxHandler handler = new TxHandler(pool);
+                handler.setParallelVerification(true);
+                return handler.handleTxs(batch);
+            });
+        }
+
+        for (String size : utxoSizes.split(",")) {
+            if (!bench.selected("utxopool"))
+                break;
+            int n = Integer.parseInt(size.trim());
+            final UTXOPool big = new UTXOPool();
+            final UTXO[] utxos = fx.fillPool(big, n);
+            final Random random = new Random(n);
+            bench.run("utxopool.copy entries=" + n, 1, () -> new UTXOPool(big));
+            bench.run("utxopool.getTxOutput entries=" + n, 1,
+                    () -> big.getTxOutput(utxos[random.nextInt(utxos.length)]));
+            bench.run("utxopool.copy+add entries=" + n, 1, () -> {
+                UTXOPool copy = new UTXOPool(big);
+                copy.addUTXO(new UTXO(tx.getHash(), 0), tx.getOutput(0));
+                return copy;
+            });
+        }
+
+        bench.run("transaction.getRawTx", 1, () -> tx.getRawTx());
+        bench.run("transaction.finalize", 1, () -> {
+            tx.finalize();
+            return tx.getHash();
+        });
+        final Block block = new Block(new byte[32], owner.getPublic());
+        for (int i = 0; i < 100; i++)
+            block.addTransaction(spends[i]);
+        bench.run("block.finalize txs=100", 1, () -> {
+            block.finalize();
+            return block.getHash();
+        });
+        final ByteBuffer encoded = ByteBuffer.wrap(WireFormat.encode(block));
+        bench.run("wire.readBlock txs=100", 1, () -> WireFormat.readBlock(encoded.duplicate()));
+        bench.run("wire.viewBlock txs=100", 1, () -> WireFormat.viewBlock(encoded.duplicate()));
+        bench.run("wire.viewBlock+computeHash txs=100", 1,
+                () -> WireFormat.viewBlock(encoded.duplicate()).computeHash());
+
+        if (!bench.selected("blockchain"))
+            return;
+        final Block genesis = new Block(null, owner.getPublic());
+        genesis.finalize();
+        final ArrayList<Block> linear =
+                fx.chain(genesis, owner, CHAIN_BLOCKS, CHAIN_TXS_PER_BLOCK, 0);
+        final ArrayList<Block> forking = Fixtures.interleave(linear,
+                fx.chain(genesis, owner, CHAIN_BLOCKS, CHAIN_TXS_PER_BLOCK, 1));
+        bench.run("blockchain.addBlock linear", linear.size(), () -> addAll(genesis, linear));
+        bench.run("blockchain.addBlock forking", forking.size(), () -> addAll(genesis, forking));
+    }
+
+    private static BlockChain addAll(Block genesis, ArrayList<Block> blocks) {
+        BlockChain chain = new BlockChain(genesis);
+        for (Block b : blocks)
+            if (!chain.addBlock(b))
+                throw new IllegalStateException("fixture block rejected");
+        return chain;
+    }
+}
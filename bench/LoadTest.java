@@ -0,0 +1,167 @@
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Drives a {@link BlockHandler} with a {@link Workload} for a set time: transactions go to
+ * {@link BlockHandler#processTx} at a target rate, a block is mined with
+ * {@link BlockHandler#createBlock} at a fixed interval, and now and then a competing fork is sent
+ * to {@link BlockHandler#processBlock}, sometimes long enough to take over the tip. Reports the
+ * throughput and latency percentiles of each operation, how far behind schedule the driver fell,
+ * the transactions rejected while validating blocks, by reason, and heap use. Latencies are the
+ * time of the call alone; building and signing the transactions is not counted. Runs offline and
+ * single-threaded.
+ *
+ * <pre>
+ * javac -d out *.java bench/*.java
+ * java -Xmx2g -Dload.seconds=60 -Dload.txRate=500 -cp out LoadTest
+ * </pre>
+ *
+ * System properties: {@code load.seconds} (default 30), {@code load.txRate} in transactions per
+ * second, 0 for as fast as possible (default 200), {@code load.blockMillis} (default 1000),
+ * {@code load.forkRate}, the chance of a fork after each block (default 0.1), {@code load.seed}
+ * (default 1), {@code load.keys} (default 32) and {@code load.mempoolBytes}, the transaction
+ * pool's byte budget (default unbounded).
+ */
+public class LoadTest {
+
+    /** Latencies of one operation, in nanoseconds */
+    private static final class Latencies {
+        private long[] values = new long[1024];
+        private int n;
+
+        void add(long nanos) {
+            if (n == values.length)
+                values = Arrays.copyOf(values, n * 2);
+            values[n++] = nanos;
+        }
+
+        void print(String name, double seconds) {
+            long[] sorted = Arrays.copyOf(values, n);
+            Arrays.sort(sorted);
+            System.out.println(String.format(Locale.ROOT,
+                    "%-14s %9d %9.1f %9.1f %9.1f %9.1f %9.1f %9.1f", name, n, n / seconds,
+                    micros(sorted, 0.5), micros(sorted, 0.9), micros(sorted, 0.99),
+                    micros(sorted, 0.999), n == 0 ? 0 : sorted[n - 1] / 1000.0));
+        }
+
+        private static double micros(long[] sorted, double quantile) {
+            if (sorted.length == 0)
+                return 0;
+            int i = (int) Math.min(sorted.length - 1, Math.ceil(quantile * sorted.length) - 1);
+            return sorted[i] / 1000.0;
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        double seconds = Double.parseDouble(System.getProperty("load.seconds", "30"));
+        double txRate = Double.parseDouble(System.getProperty("load.txRate", "200"));
+        long blockNanos = Long.getLong("load.blockMillis", 1000) * 1000000L;
+        double forkRate = Double.parseDouble(System.getProperty("load.forkRate", "0.1"));
+        long seed = Long.getLong("load.seed", 1);
+
+        Workload workload = new Workload(seed, Integer.getInteger("load.keys", 32));
+        Random random = new Random(seed);
+        Block genesis = new Block(null, workload.minerAddress());
+        genesis.finalize();
+        BlockChain chain = new BlockChain(genesis);
+        Metrics metrics = new Metrics();
+        chain.setMetrics(metrics);
+        chain.getTransactionPool().setMaxBytes(Long.getLong("load.mempoolBytes", Long.MAX_VALUE));
+        BlockHandler handler = new BlockHandler(chain);
+        workload.addCoinbase(genesis);
+
+        Latencies txLatency = new Latencies();
+        Latencies createLatency = new Latencies();
+        Latencies forkLatency = new Latencies();
+        Latencies lag = new Latencies();
+        MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+        long peakHeap = 0;
+        long blocksCreated = 0, txsConfirmed = 0, forkBlocksAdded = 0;
+
+        long txNanos = txRate > 0 ? (long) (1e9 / txRate) : 0;
+        long start = System.nanoTime();
+        long end = start + (long) (seconds * 1e9);
+        long nextTx = start;
+        long nextBlock = start + blockNanos;
+        long now;
+        while ((now = System.nanoTime()) < end) {
+            if (now >= nextBlock) {
+                Block parent = chain.getMaxHeightBlock();
+                long t = System.nanoTime();
+                Block block = handler.createBlock(workload.minerAddress());
+                createLatency.add(System.nanoTime() - t);
+                if (block != null) {
+                    blocksCreated++;
+                    txsConfirmed += block.getTransactions().size();
+                    workload.addCoinbase(block);
+                    if (random.nextDouble() < forkRate) {
+                        // One block competes with the new tip; two take it over.
+                        for (Block b : workload.fork(parent, 1 + random.nextInt(2))) {
+                            t = System.nanoTime();
+                            boolean added = handler.processBlock(b);
+                            forkLatency.add(System.nanoTime() - t);
+                            if (added)
+                                forkBlocksAdded++;
+                        }
+                    }
+                }
+                workload.sync(chain.getMaxHeightUTXOPool(), chain.getTransactionPool());
+                peakHeap = Math.max(peakHeap, memory.getHeapMemoryUsage().getUsed());
+                nextBlock += blockNanos;
+                continue;
+            }
+            if (txNanos == 0 || now >= nextTx) {
+                Transaction tx = workload.nextTransaction();
+                if (tx == null) {
+                    // Nothing left to spend until the next block pays a coinbase.
+                    nextTx = nextBlock;
+                    continue;
+                }
+                long t = System.nanoTime();
+                if (txNanos > 0)
+                    lag.add(Math.max(0, t - nextTx));
+                handler.processTx(tx);
+                txLatency.add(System.nanoTime() - t);
+                nextTx += txNanos;
+                continue;
+            }
+            LockSupport.parkNanos(Math.min(nextTx, nextBlock) - now);
+        }
+        double elapsed = (System.nanoTime() - start) / 1e9;
+
+        System.out.println(String.format(Locale.ROOT,
+                "%.1f s, target %s tx/s, a block every %d ms, fork rate %.2f", elapsed,
+                txRate > 0 ? String.valueOf(txRate) : "max", blockNanos / 1000000, forkRate));
+        System.out.printf("%-14s %9s %9s %9s %9s %9s %9s %9s%n", "operation", "count", "ops/s",
+                "p50 us", "p90 us", "p99 us", "p99.9 us", "max us");
+        txLatency.print("processTx", elapsed);
+        createLatency.print("createBlock", elapsed);
+        forkLatency.print("processBlock", elapsed);
+        lag.print("schedule lag", elapsed);
+
+        System.out.println("blocks created " + blocksCreated + ", fork blocks added "
+                + forkBlocksAdded + ", height " + chain.getMaxHeight() + ", txs confirmed "
+                + txsConfirmed + ", txs pooled " + chain.getTransactionPool().size());
+        System.out.println("generated: transfers " + workload.transfers + ", fan-outs "
+                + workload.fanOuts + ", fan-ins " + workload.fanIns + ", double spends "
+                + workload.doubleSpends + "; wallet " + workload.walletSize());
+        StringBuilder rejected = new StringBuilder("rejected:");
+        for (Metrics.Rejection r : Metrics.Rejection.values())
+            rejected.append(' ').append(r.name().toLowerCase(Locale.ROOT)).append(' ')
+                    .append(metrics.getRejectedCount(r));
+        System.out.println(rejected);
+        StringBuilder evicted = new StringBuilder("evicted:");
+        for (Metrics.Eviction e : Metrics.Eviction.values())
+            evicted.append(' ').append(e.name().toLowerCase(Locale.ROOT)).append(' ')
+                    .append(metrics.getEvictedCount(e))
+                    .append(" (").append(metrics.getEvictedBytes(e)).append(" B)");
+        System.out.println(evicted + "; pooled " + chain.getTransactionPool().getBytes() + " B");
+        System.gc();
+        System.out.println(String.format(Locale.ROOT, "heap: peak %.1f MB, after gc %.1f MB",
+                peakHeap / 1048576.0, memory.getHeapMemoryUsage().getUsed() / 1048576.0));
+    }
+}
@@ -0,0 +1,132 @@
+import java.io.IOException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Random;
+
+/**
+ * Randomized checks of the disk-backed UTXO set, see {@link Checks}:
+ *
+ * <ul>
+ * <li>{@code mapped}: {@link MappedUTXOStore} against {@code HashMap} under random batches,
+ * closed and reopened in between</li>
+ * <li>{@code overlay}: {@link OverlayUTXOStore} over a non-empty base against {@code HashMap}
+ * under random put, remove, get and fork</li>
+ * </ul>
+ *
+ * <pre>
+ * javac -d out *.java bench/*.java
+ * java -Dcheck.seed=7 -cp out MappedStoreCheck
+ * </pre>
+ */
+public class MappedStoreCheck {
+
+    public static void main(String[] args) throws Exception {
+        Checks c = new Checks();
+        Checks.run("mapped", () -> mapped(c));
+        Checks.run("overlay", () -> overlay(c));
+    }
+
+    static void mapped(Checks c) throws IOException {
+        Random random = new Random(c.seed);
+        Path dir = Files.createTempDirectory("utxo-check");
+        try {
+            HashMap<UTXO, Transaction.Output> ref = new HashMap<UTXO, Transaction.Output>();
+            ArrayList<UTXO> known = new ArrayList<UTXO>();
+            Object removed = new Object();
+            MappedUTXOStore store = MappedUTXOStore.create(dir, 256);
+            try {
+                MappedUTXOStore.create(dir, 256).close();
+                throw new AssertionError("created over an existing store");
+            } catch (FileAlreadyExistsException expected) {
+            }
+            int done = 0;
+            int reopened = 0;
+            while (done < c.steps) {
+                // Batches grow the set well past the initial table, then mostly churn it.
+                LinkedHashMap<UTXO, Object> batch = new LinkedHashMap<UTXO, Object>();
+                int n = 1 + random.nextInt(2000);
+                for (int i = 0; i < n; i++) {
+                    if (known.isEmpty() || random.nextInt(3) > 0) {
+                        byte[] hash = new byte[32];
+                        random.nextBytes(hash);
+                        UTXO utxo = new UTXO(hash, random.nextInt(8));
+                        known.add(utxo);
+                        batch.put(utxo, c.output(random));
+                    } else {
+                        UTXO utxo = known.get(random.nextInt(known.size()));
+                        batch.put(utxo, random.nextBoolean() ? removed : c.output(random));
+                    }
+                }
+                store.apply(batch.entrySet(), removed);
+                for (Map.Entry<UTXO, Object> e : batch.entrySet()) {
+                    if (e.getValue() == removed)
+                        ref.remove(e.getKey());
+                    else
+                        ref.put(e.getKey(), (Transaction.Output) e.getValue());
+                }
+                done += n;
+                String after = " after " + done + " changes";
+                Checks.check(store.size() == ref.size(), "mapped size" + after);
+                for (int i = 0; i < 200; i++) {
+                    UTXO utxo = known.get(random.nextInt(known.size()));
+                    Checks.check(Objects.equals(store.get(utxo), ref.get(utxo)),
+                            "mapped get" + after);
+                    Checks.check(store.contains(utxo) == ref.containsKey(utxo),
+                            "mapped contains" + after);
+                }
+                if (random.nextInt(8) == 0) {
+                    if (random.nextBoolean())
+                        store.flush();
+                    store.close();
+                    store = new MappedUTXOStore(dir, 256);
+                    reopened++;
+                    checkMapped(store, ref, known, "after reopen " + reopened);
+                }
+            }
+            store.close();
+            store = new MappedUTXOStore(dir, 256);
+            checkMapped(store, ref, known, "at the end");
+            store.close();
+        } finally {
+            Checks.delete(dir);
+        }
+    }
+
+    private static void checkMapped(MappedUTXOStore store, HashMap<UTXO, Transaction.Output> ref,
+            List<UTXO> known, String when) {
+        Checks.check(store.size() == ref.size(), "mapped size " + when);
+        for (UTXO utxo : known)
+            Checks.check(Objects.equals(store.get(utxo), ref.get(utxo)), "mapped get " + when);
+        Checks.check(Checks.keys(store.iterator()).equals(ref.keySet()),
+                "mapped iteration " + when);
+    }
+
+    static void overlay(Checks c) throws IOException {
+        Path dir = Files.createTempDirectory("utxo-check");
+        try {
+            MappedUTXOStore base = MappedUTXOStore.create(dir, 64);
+            try {
+                // Start over a non-empty base, so removals and puts hit committed UTXOs.
+                HashMap<UTXO, Transaction.Output> initial = new HashMap<UTXO, Transaction.Output>();
+                Random random = new Random(c.seed);
+                for (int i = 0; i < 200; i++)
+                    initial.put(new UTXO(Checks.hash(random.nextInt(300), true), random.nextInt(4)),
+                            c.output(random));
+                LinkedHashMap<UTXO, Object> batch = new LinkedHashMap<UTXO, Object>(initial);
+                base.apply(batch.entrySet(), new Object());
+                c.storeAgainstMap("overlay", () -> new OverlayUTXOStore(base), initial, false);
+            } finally {
+                base.close();
+            }
+        } finally {
+            Checks.delete(dir);
+        }
+    }
+}
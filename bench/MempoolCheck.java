@@ -0,0 +1,157 @@
+import java.security.GeneralSecurityException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Random;
+
+/**
+ * Randomized check of the fee-rate index of {@link TransactionPool}: a chain with mempool
+ * validation is driven by a {@link Workload} with double spends and reorgs, and after every
+ * round the pool must be valid against the tip, every ancestor package fee rate and descendant
+ * score must match one recomputed from scratch, and selection must put parents first and start
+ * with a package of the highest fee rate. See {@link Checks}.
+ *
+ * <pre>
+ * javac -d out *.java bench/*.java
+ * java -Dcheck.seed=7 -cp out MempoolCheck
+ * </pre>
+ */
+public class MempoolCheck {
+
+    public static void main(String[] args) throws Exception {
+        Checks c = new Checks();
+        Checks.run("mempool", () -> mempool(c));
+    }
+
+    static void mempool(Checks c) throws GeneralSecurityException {
+        Random random = new Random(c.seed);
+        Workload workload = new Workload(c.seed, 12);
+        workload.doubleSpendRate = 0.1;
+        Block genesis = new Block(null, workload.minerAddress());
+        genesis.finalize();
+        BlockChain chain = new BlockChain(genesis);
+        chain.setMempoolValidation(true);
+        BlockHandler handler = new BlockHandler(chain);
+        workload.addCoinbase(genesis);
+        int rounds = Math.max(30, c.steps / 1000);
+        for (int round = 0; round < rounds; round++) {
+            for (int i = 0; i < 10; i++) {
+                Transaction tx = workload.nextTransaction();
+                if (tx != null)
+                    handler.processTx(tx);
+            }
+            checkMempool(chain, "round " + round);
+            if (round % 3 == 2) {
+                Block parent = chain.getMaxHeightBlock();
+                Block block = handler.createBlock(workload.minerAddress());
+                Checks.check(block != null, "mempool createBlock in round " + round);
+                workload.addCoinbase(block);
+                if (random.nextInt(3) == 0)
+                    for (Block b : workload.fork(parent, 1 + random.nextInt(2)))
+                        handler.processBlock(b);
+                workload.sync(chain.getMaxHeightUTXOPool(), chain.getTransactionPool());
+                checkMempool(chain, "round " + round + " after a block");
+            }
+        }
+    }
+
+    /**
+     * Checks that the pool is valid against the tip, that every package fee rate and descendant
+     * score matches one recomputed from the pooled parents and children, and that selection is
+     * parents first and starts with a package of the highest fee rate
+     */
+    private static void checkMempool(BlockChain chain, String when) {
+        UTXOPool tip = chain.getMaxHeightUTXOPool();
+        TransactionPool pool = chain.getTransactionPool();
+        ArrayList<Transaction> all = pool.getTransactions();
+        TxHandler valid = new TxHandler(tip);
+        valid.setDependencyOrdering(true);
+        Checks.check(valid.handleTxs(all.toArray(new Transaction[0])).length == all.size(),
+                "mempool not valid " + when);
+
+        HashMap<Hash256, Transaction> byHash = new HashMap<Hash256, Transaction>();
+        for (Transaction tx : all)
+            byHash.put(tx.getHashId(), tx);
+        double best = Double.NEGATIVE_INFINITY;
+        for (Transaction tx : all) {
+            double rate = packageFeeRate(ancestors(tx, byHash), tip, byHash);
+            double got = pool.getPackageFeeRate(tx.getHash());
+            Checks.check(Math.abs(got - rate) <= 1e-9 * Math.max(1, Math.abs(rate)),
+                    "mempool package fee rate " + got + " instead of " + rate + " " + when);
+            best = Math.max(best, rate);
+            double score = packageFeeRate(descendants(tx, byHash), tip, byHash);
+            got = pool.getDescendantScore(tx.getHash());
+            Checks.check(Math.abs(got - score) <= 1e-9 * Math.max(1, Math.abs(score)),
+                    "mempool descendant score " + got + " instead of " + score + " " + when);
+        }
+
+        ArrayList<Transaction> selected = pool.selectTransactions(new TxHandler(tip), all.size());
+        Checks.check(selected.size() == all.size(),
+                "mempool selected " + selected.size() + " of " + all.size() + " " + when);
+        Transaction[] inOrder = selected.toArray(new Transaction[0]);
+        Checks.check(new TxHandler(tip).handleTxs(inOrder).length == inOrder.length,
+                "mempool selection not parents first " + when);
+        // The first package selected is a prefix that is the ancestor package of its last
+        // transaction; no package beats the best of those.
+        double first = Double.NEGATIVE_INFINITY;
+        for (int i = 0; i < selected.size(); i++) {
+            HashSet<Transaction> closure = ancestors(selected.get(i), byHash);
+            if (closure.size() == i + 1 && closure.containsAll(selected.subList(0, i + 1)))
+                first = Math.max(first, packageFeeRate(closure, tip, byHash));
+        }
+        Checks.check(all.isEmpty() || first >= best - 1e-9 * Math.max(1, Math.abs(best)),
+                "mempool first package rate " + first + " below " + best + " " + when);
+    }
+
+    /** @return {@code tx} and the pooled transactions it spends from, directly or not */
+    private static HashSet<Transaction> ancestors(Transaction tx,
+            HashMap<Hash256, Transaction> pooled) {
+        HashSet<Transaction> seen = new HashSet<Transaction>();
+        ArrayDeque<Transaction> todo = new ArrayDeque<Transaction>();
+        seen.add(tx);
+        todo.add(tx);
+        while (!todo.isEmpty()) {
+            for (Transaction.Input in : todo.poll().getInputs()) {
+                Transaction parent = pooled.get(Hash256.of(in.prevTxHash));
+                if (parent != null && seen.add(parent))
+                    todo.add(parent);
+            }
+        }
+        return seen;
+    }
+
+    /** @return {@code tx} and the pooled transactions that spend from it, directly or not */
+    private static HashSet<Transaction> descendants(Transaction tx,
+            HashMap<Hash256, Transaction> pooled) {
+        HashSet<Transaction> seen = new HashSet<Transaction>();
+        ArrayDeque<Transaction> todo = new ArrayDeque<Transaction>();
+        seen.add(tx);
+        todo.add(tx);
+        while (!todo.isEmpty()) {
+            Hash256 hash = todo.poll().getHashId();
+            for (Transaction t : pooled.values())
+                for (Transaction.Input in : t.getInputs())
+                    if (hash.equals(Hash256.of(in.prevTxHash)) && seen.add(t))
+                        todo.add(t);
+        }
+        return seen;
+    }
+
+    private static double packageFeeRate(HashSet<Transaction> txs, UTXOPool tip,
+            HashMap<Hash256, Transaction> pooled) {
+        double fee = 0;
+        long size = 0;
+        for (Transaction tx : txs) {
+            for (Transaction.Input in : tx.getInputs()) {
+                Transaction parent = pooled.get(Hash256.of(in.prevTxHash));
+                fee += parent != null ? parent.getOutput(in.outputIndex).value
+                        : tip.getTxOutput(new UTXO(in.prevTxHash, in.outputIndex)).value;
+            }
+            for (Transaction.Output out : tx.getOutputs())
+                fee -= out.value;
+            size += Math.max(1, tx.getRawTx().length);
+        }
+        return fee / size;
+    }
+}
@@ -0,0 +1,95 @@
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Random;
+
+/**
+ * Randomized checks of the persistent UTXO pool, see {@link Checks}:
+ *
+ * <ul>
+ * <li>{@code hamt}: {@link PersistentHashMap} against {@code HashMap} under random put, remove,
+ * get and fork, with colliding hash codes</li>
+ * <li>{@code stores}: {@link PersistentUTXOStore} and {@link HashUTXOStore} against
+ * {@code HashMap}, the same way</li>
+ * </ul>
+ *
+ * <pre>
+ * javac -d out *.java bench/*.java
+ * java -Dcheck.seed=7 -cp out PersistentMapCheck
+ * </pre>
+ */
+public class PersistentMapCheck {
+
+    /** A key whose hash code is chosen, to make collisions */
+    private static final class Key {
+        final int hash;
+        final int id;
+
+        Key(int hash, int id) {
+            this.hash = hash;
+            this.id = id;
+        }
+
+        public int hashCode() {
+            return hash;
+        }
+
+        public boolean equals(Object other) {
+            return other instanceof Key && ((Key) other).id == id;
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        Checks c = new Checks();
+        Checks.run("hamt", () -> hamt(c));
+        Checks.run("stores", () -> {
+            c.storeAgainstMap("persistent", PersistentUTXOStore::new,
+                    new HashMap<UTXO, Transaction.Output>(), true);
+            c.storeAgainstMap("hash", HashUTXOStore::new,
+                    new HashMap<UTXO, Transaction.Output>(), true);
+        });
+    }
+
+    static void hamt(Checks c) {
+        Random random = new Random(c.seed);
+        ArrayList<PersistentHashMap<Key, Integer>> maps =
+                new ArrayList<PersistentHashMap<Key, Integer>>();
+        ArrayList<HashMap<Key, Integer>> refs = new ArrayList<HashMap<Key, Integer>>();
+        maps.add(new PersistentHashMap<Key, Integer>());
+        refs.add(new HashMap<Key, Integer>());
+        for (int step = 0; step < c.steps; step++) {
+            int m = random.nextInt(maps.size());
+            PersistentHashMap<Key, Integer> map = maps.get(m);
+            HashMap<Key, Integer> ref = refs.get(m);
+            int id = random.nextInt(5000);
+            // A third of the keys share one of seven hash codes.
+            Key key = new Key(random.nextInt(3) == 0 ? id % 7 : id * 31, id);
+            int op = random.nextInt(10);
+            if (op < 5) {
+                Integer value = random.nextInt();
+                Checks.check(Objects.equals(map.put(key, value), ref.put(key, value)),
+                        "hamt put at step " + step);
+            } else if (op < 8) {
+                Checks.check(Objects.equals(map.remove(key), ref.remove(key)),
+                        "hamt remove at step " + step);
+            } else if (op == 8 && maps.size() < 20) {
+                maps.add(map.fork());
+                refs.add(new HashMap<Key, Integer>(ref));
+            } else {
+                Checks.check(Objects.equals(map.get(key), ref.get(key)),
+                        "hamt get at step " + step);
+                Checks.check(map.containsKey(key) == ref.containsKey(key),
+                        "hamt containsKey at step " + step);
+            }
+            Checks.check(map.size() == ref.size(), "hamt size at step " + step);
+        }
+        for (int i = 0; i < maps.size(); i++) {
+            HashMap<Key, Integer> seen = new HashMap<Key, Integer>();
+            for (Map.Entry<Key, Integer> e : maps.get(i))
+                Checks.check(seen.put(e.getKey(), e.getValue()) == null,
+                        "hamt iterates a key twice");
+            Checks.check(seen.equals(refs.get(i)), "hamt iteration of fork " + i);
+        }
+    }
+}
@@ -0,0 +1,85 @@
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Random;
+
+/**
+ * Randomized check of {@link UTXODelta}: a delta for a random block with in-block chains is
+ * applied to a copy of a random pool, compared with the outputs recomputed from scratch, undone
+ * and applied again; see {@link Checks}.
+ *
+ * <pre>
+ * javac -d out *.java bench/*.java
+ * java -Dcheck.seed=7 -cp out UTXODeltaCheck
+ * </pre>
+ */
+public class UTXODeltaCheck {
+
+    public static void main(String[] args) throws Exception {
+        Checks c = new Checks();
+        Checks.run("delta", () -> delta(c));
+    }
+
+    static void delta(Checks c) {
+        Random random = new Random(c.seed);
+        Transaction owner = new Transaction();
+        int rounds = Math.max(10, c.steps / 2000);
+        for (int round = 0; round < rounds; round++) {
+            UTXOPool before = random.nextBoolean() ? new UTXOPool() : UTXOPool.compact(16);
+            ArrayList<UTXO> unspent = new ArrayList<UTXO>();
+            for (int i = 0, n = 1 + random.nextInt(200); i < n; i++) {
+                UTXO utxo = new UTXO(Checks.hash(random.nextInt(100000), true), random.nextInt(4));
+                before.addUTXO(utxo, c.output(random));
+                unspent.add(utxo);
+            }
+            Transaction coinbase = new Transaction(25, c.key(random));
+            UTXO coinbaseUtxo = new UTXO(coinbase.getHash(), 0);
+            // An identical coinbase already in the set: the block replaces, or spends and
+            // recreates, it.
+            if (random.nextInt(3) == 0) {
+                before.addUTXO(coinbaseUtxo, owner.new Output(25, coinbase.getOutput(0).address));
+                unspent.add(coinbaseUtxo);
+            }
+            HashMap<UTXO, Transaction.Output> original = Checks.contents(before);
+
+            HashMap<UTXO, Transaction.Output> expected =
+                    new HashMap<UTXO, Transaction.Output>(original);
+            Transaction[] txs = new Transaction[random.nextInt(30)];
+            for (int t = 0; t < txs.length; t++) {
+                Transaction tx = new Transaction();
+                for (int i = 0, n = 1 + random.nextInt(3); i < n && !unspent.isEmpty(); i++) {
+                    // Mostly spend recent outputs, so chains within the block are common.
+                    int at = random.nextBoolean()
+                            ? unspent.size() - 1 - random.nextInt(Math.min(4, unspent.size()))
+                            : random.nextInt(unspent.size());
+                    UTXO spend = unspent.remove(at);
+                    tx.addInput(spend.getTxHash(), spend.getIndex());
+                }
+                for (int i = 0, n = 1 + random.nextInt(3); i < n; i++)
+                    tx.addOutput(random.nextInt(100), c.key(random));
+                tx.addOutput(t, c.key(random)); // keeps the hashes distinct
+                tx.finalize();
+                for (Transaction.Input in : tx.getInputs())
+                    expected.remove(new UTXO(in.prevTxHash, in.outputIndex));
+                for (int i = 0; i < tx.numOutputs(); i++) {
+                    UTXO utxo = new UTXO(tx.getHash(), i);
+                    expected.put(utxo, tx.getOutput(i));
+                    unspent.add(utxo);
+                }
+                txs[t] = tx;
+            }
+            expected.put(coinbaseUtxo, coinbase.getOutput(0));
+
+            UTXODelta delta = new UTXODelta(txs, coinbase, before);
+            UTXOPool after = new UTXOPool(before);
+            delta.applyTo(after);
+            String in = " in round " + round;
+            Checks.check(Checks.contents(after).equals(expected), "delta apply" + in);
+            Checks.check(Checks.contents(before).equals(original),
+                    "delta changed the copied pool" + in);
+            delta.undo(after);
+            Checks.check(Checks.contents(after).equals(original), "delta undo" + in);
+            delta.applyTo(after);
+            Checks.check(Checks.contents(after).equals(expected), "delta apply after undo" + in);
+        }
+    }
+}
@@ -0,0 +1,83 @@
+import java.security.KeyPairGenerator;
+import java.security.NoSuchAlgorithmException;
+import java.security.PublicKey;
+import java.security.SecureRandom;
+import java.util.Random;
+import java.util.function.Supplier;
+
+/**
+ * Measures the retained heap per entry of each {@link UTXOStore}, and the time of a lookup.
+ *
+ * <pre>
+ * javac -d out *.java bench/*.java
+ * java -Xmx4g -cp out UTXOPoolMemoryBenchmark [entries...]
+ * </pre>
+ */
+public class UTXOPoolMemoryBenchmark {
+
+    private static final int ADDRESSES = 100;
+
+    public static void main(String[] args) throws NoSuchAlgorithmException {
+        int[] sizes = args.length == 0 ? new int[] { 100000, 1000000 } : new int[args.length];
+        for (int i = 0; i < args.length; i++)
+            sizes[i] = Integer.parseInt(args[i]);
+
+        SecureRandom seed = SecureRandom.getInstance("SHA1PRNG");
+        seed.setSeed(1);
+        KeyPairGenerator gen = KeyPairGenerator.getInstance("RSA");
+        gen.initialize(1024, seed);
+        PublicKey[] addresses = new PublicKey[ADDRESSES];
+        for (int i = 0; i < ADDRESSES; i++)
+            addresses[i] = gen.generateKeyPair().getPublic();
+
+        System.out.printf("%-12s %10s %14s %12s%n", "store", "entries", "bytes/entry", "ns/lookup");
+        for (int n : sizes) {
+            run("hashmap", n, addresses, HashUTXOStore::new);
+            run("persistent", n, addresses, PersistentUTXOStore::new);
+            run("compact", n, addresses, () -> new CompactUTXOStore(n));
+        }
+    }
+
+    private static void run(String name, int n, PublicKey[] addresses, Supplier<UTXOStore> make) {
+        Transaction owner = new Transaction();
+        UTXO[] keys = new UTXO[n];
+        Random random = new Random(n);
+        for (int i = 0; i < n; i++) {
+            byte[] hash = new byte[32];
+            random.nextBytes(hash);
+            keys[i] = new UTXO(hash, i & 3);
+        }
+
+        long before = usedHeap();
+        UTXOStore store = make.get();
+        // Fresh UTXO and Output objects, so whatever a store keeps of them is counted.
+        for (int i = 0; i < n; i++) {
+            UTXO key = new UTXO(keys[i].getTxHash(), keys[i].getIndex());
+            store.put(key, owner.new Output(i % 50, addresses[i % ADDRESSES]));
+        }
+        long after = usedHeap();
+        long perEntry = (after - before) / n;
+
+        long found = 0;
+        long start = System.nanoTime();
+        for (int round = 0; round < 3; round++)
+            for (int i = 0; i < n; i++)
+                if (store.contains(keys[(int) ((i * 7919L) % n)]))
+                    found++;
+        long nsPerLookup = (System.nanoTime() - start) / (3L * n);
+
+        System.out.printf("%-12s %10d %14d %12d%n", name, n, perEntry, nsPerLookup);
+        if (found != 3L * n || store.size() != n)
+            throw new IllegalStateException(name + " lost entries");
+    }
+
+    private static long usedHeap() {
+        Runtime rt = Runtime.getRuntime();
+        long used = Long.MAX_VALUE;
+        for (int i = 0; i < 5; i++) {
+            System.gc();
+            used = Math.min(used, rt.totalMemory() - rt.freeMemory());
+        }
+        return used;
+    }
+}
@@ -0,0 +1,136 @@
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Randomized check of {@link WireFormat}: random blocks are encoded, read back and viewed, and
+ * every field is compared with the original; a block or transaction whose carried hash is
+ * tampered with is refused by both readers. See {@link Checks}.
+ *
+ * <pre>
+ * javac -d out *.java bench/*.java
+ * java -Dcheck.seed=7 -cp out WireFormatCheck
+ * </pre>
+ */
+public class WireFormatCheck {
+
+    public static void main(String[] args) throws Exception {
+        Checks c = new Checks();
+        Checks.run("wire", () -> wire(c));
+    }
+
+    static void wire(Checks c) {
+        Random random = new Random(c.seed);
+        int blocks = Math.max(10, c.steps / 1000);
+        for (int n = 0; n < blocks; n++) {
+            byte[] prev = n % 10 == 0 ? null : Checks.hash(random.nextInt(1000), true);
+            Block block = new Block(prev, c.key(random), random.nextBoolean());
+            int txs = random.nextInt(12);
+            for (int i = 0; i < txs; i++)
+                block.addTransaction(randomTransaction(c, random));
+            block.finalize();
+            String of = " of block " + n;
+            String in = " in block " + n;
+
+            byte[] encoded = WireFormat.encode(block);
+            check(encoded.length == WireFormat.encodedSize(block), "wire encodedSize" + of);
+            Block back = WireFormat.readBlock(ByteBuffer.wrap(encoded));
+            check(Arrays.equals(back.getHash(), block.getHash()), "wire block hash" + of);
+            check(Arrays.equals(back.getRawBlock(), block.getRawBlock()), "wire raw block" + of);
+            check(Arrays.equals(WireFormat.encode(back), encoded), "wire re-encoding" + of);
+            check(back.getTransactions().size() == txs, "wire transaction count" + of);
+            for (int i = 0; i < txs; i++) {
+                Transaction tx = block.getTransaction(i);
+                Transaction read = back.getTransaction(i);
+                check(Arrays.equals(read.getHash(), tx.getHash()), "wire tx hash" + in);
+                check(Arrays.equals(read.getRawTx(), tx.getRawTx()), "wire raw tx" + in);
+                ByteBuffer alone = ByteBuffer.wrap(WireFormat.encode(tx));
+                check(Arrays.equals(WireFormat.readTransaction(alone).getHash(), tx.getHash()),
+                        "wire lone tx" + in);
+            }
+
+            WireFormat.BlockView view = WireFormat.viewBlock(ByteBuffer.wrap(encoded));
+            view.verifyHash();
+            check(view.encodedLength() == encoded.length, "wire view length" + of);
+            check(Arrays.equals(view.getPrevBlockHash(), block.getPrevBlockHash()),
+                    "wire view prev" + of);
+            check(view.isMerkleRootHash() == block.isMerkleRootHash(),
+                    "wire view merkle flag" + of);
+            check(Arrays.equals(view.computeHash(), block.getHash()), "wire view hash" + of);
+            check(view.numTransactions() == txs, "wire view transaction count" + of);
+            for (int i = 0; i < txs; i++) {
+                WireFormat.TxView tv = view.getTransaction(i);
+                Transaction tx = block.getTransaction(i);
+                tv.verifyHash();
+                check(tv.numInputs() == tx.numInputs() && tv.numOutputs() == tx.numOutputs(),
+                        "wire view shape" + in);
+                for (int j = 0; j < tx.numInputs(); j++) {
+                    Transaction.Input input = tx.getInput(j);
+                    check(tv.getOutpoint(j).equals(new UTXO(input.prevTxHash, input.outputIndex))
+                            && Arrays.equals(tv.getSignature(j), input.signature),
+                            "wire view input" + in);
+                }
+                for (int j = 0; j < tx.numOutputs(); j++)
+                    check(tv.getOutputValue(j) == tx.getOutput(j).value
+                            && tv.getOutputAddress(j).equals(tx.getOutput(j).address),
+                            "wire view output" + in);
+            }
+
+            // A carried hash that does not match the content is refused by both readers.
+            byte[] tampered = encoded.clone();
+            int at = indexOf(tampered, block.getHash());
+            check(at >= 0, "wire block hash not found in encoding" + of);
+            tampered[at + random.nextInt(32)] ^= (byte) (1 << random.nextInt(8));
+            rejects(tampered, "wire tampered block hash" + of);
+            if (txs > 0) {
+                tampered = encoded.clone();
+                at = indexOf(tampered, block.getTransaction(random.nextInt(txs)).getHash());
+                tampered[at + random.nextInt(32)] ^= (byte) (1 << random.nextInt(8));
+                rejects(tampered, "wire tampered tx hash" + of);
+            }
+        }
+    }
+
+    private static void rejects(byte[] encoded, String what) {
+        try {
+            WireFormat.readBlock(ByteBuffer.wrap(encoded));
+            throw new AssertionError(what + " read");
+        } catch (WireFormat.FormatException expected) {
+        }
+        try {
+            WireFormat.BlockView view = WireFormat.viewBlock(ByteBuffer.wrap(encoded));
+            view.verifyHash();
+            for (int i = 0; i < view.numTransactions(); i++)
+                view.getTransaction(i).verifyHash();
+            throw new AssertionError(what + " viewed");
+        } catch (WireFormat.FormatException expected) {
+        }
+    }
+
+    private static Transaction randomTransaction(Checks c, Random random) {
+        Transaction tx = new Transaction();
+        for (int i = 0, n = random.nextInt(4); i < n; i++) {
+            tx.addInput(Checks.hash(random.nextInt(1000), true), random.nextInt(5));
+            if (random.nextInt(4) > 0) {
+                byte[] sig = new byte[random.nextInt(160)];
+                random.nextBytes(sig);
+                tx.addSignature(sig, i);
+            }
+        }
+        for (int i = 0, n = random.nextInt(4); i < n; i++)
+            tx.addOutput(random.nextInt(1000) / 8.0, c.key(random));
+        tx.finalize();
+        return tx;
+    }
+
+    private static int indexOf(byte[] a, byte[] part) {
+        for (int i = 0; i + part.length <= a.length; i++)
+            if (Arrays.equals(a, i, i + part.length, part, 0, part.length))
+                return i;
+        return -1;
+    }
+
+    private static void check(boolean ok, String what) {
+        Checks.check(ok, what);
+    }
+}
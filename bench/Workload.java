@@ -0,0 +1,204 @@
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.PublicKey;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Random;
+
+/**
+ * Generates a deterministic stream of signed transactions and competing blocks for a pool of
+ * keys it owns. It keeps a wallet of the outputs it has paid to those keys and spends them as
+ * transfers, fan-outs (one input, many outputs), fan-ins (many inputs, one output) and, now and
+ * then, double spends of an output it already spent. New transactions may spend the outputs of
+ * earlier ones that are not in a block yet, so the spending graph is deeper than one block.
+ *
+ * <p>
+ * The wallet assumes every transaction it makes is accepted; {@link #sync} drops what the chain
+ * did not keep. The same seed and the same sequence of calls give the same transactions.
+ */
+final class Workload {
+
+    /** an output the workload can spend */
+    private static final class Coin {
+        final UTXO utxo;
+        final KeyPair owner;
+        final double value;
+
+        Coin(UTXO utxo, KeyPair owner, double value) {
+            this.utxo = utxo;
+            this.owner = owner;
+            this.value = value;
+        }
+    }
+
+    private static final int MAX_SPENT = 1024;
+    /** share of an input's value passed on; the rest is the fee */
+    private static final double KEEP = 0.995;
+
+    double doubleSpendRate = 0.02;
+    double fanOutRate = 0.2;
+    double fanInRate = 0.2;
+    int maxFan = 8;
+
+    private final KeyPair[] keys;
+    private final HashMap<PublicKey, KeyPair> owners = new HashMap<PublicKey, KeyPair>();
+    private final Random random;
+    private final ArrayList<Coin> wallet = new ArrayList<Coin>();
+    private final HashSet<UTXO> inWallet = new HashSet<UTXO>();
+    /** recently spent coins, for double spends */
+    private final ArrayList<Coin> spent = new ArrayList<Coin>();
+    private int miners;
+    private long forks;
+
+    long transfers, fanOuts, fanIns, doubleSpends;
+
+    Workload(long seed, int nKeys) throws GeneralSecurityException {
+        keys = new Fixtures(seed, nKeys).keys;
+        for (KeyPair k : keys)
+            owners.put(k.getPublic(), k);
+        random = new Random(seed);
+    }
+
+    /** @return the next of the workload's keys to mine a block to, in turn */
+    PublicKey minerAddress() {
+        return keys[miners++ % keys.length].getPublic();
+    }
+
+    int walletSize() {
+        return wallet.size();
+    }
+
+    /** Adds the coinbase of {@code block} to the wallet, if the workload owns it */
+    void addCoinbase(Block block) {
+        Transaction coinbase = block.getCoinbase();
+        for (int i = 0; i < coinbase.numOutputs(); i++) {
+            Transaction.Output out = coinbase.getOutput(i);
+            KeyPair owner = owners.get(out.address);
+            if (owner != null)
+                add(new Coin(new UTXO(coinbase.getHash(), i), owner, out.value));
+        }
+    }
+
+    /**
+     * @return a new transaction spending coins from the wallet, or null if the wallet is empty.
+     *         Its outputs go to the wallet unless it is a double spend.
+     */
+    Transaction nextTransaction() throws GeneralSecurityException {
+        double r = random.nextDouble();
+        if (r < doubleSpendRate && !spent.isEmpty()) {
+            doubleSpends++;
+            Coin c = spent.get(random.nextInt(spent.size()));
+            return build(new Coin[] { c }, 1, false);
+        }
+        if (wallet.isEmpty())
+            return null;
+        r -= doubleSpendRate;
+        if (r < fanInRate && wallet.size() >= 2) {
+            fanIns++;
+            Coin[] in = new Coin[2 + random.nextInt(Math.min(maxFan, wallet.size()) - 1)];
+            for (int i = 0; i < in.length; i++)
+                in[i] = take();
+            return build(in, 1, true);
+        }
+        if (r < fanInRate + fanOutRate) {
+            fanOuts++;
+            return build(new Coin[] { take() }, 2 + random.nextInt(maxFan - 1), true);
+        }
+        transfers++;
+        return build(new Coin[] { take() }, 1 + random.nextInt(2), true);
+    }
+
+    /**
+     * @return {@code length} blocks, each on the one before and the first on {@code parent}, which
+     *         must have been mined to one of the workload's keys. Each block only spends its
+     *         parent's coinbase, so it is valid wherever the parent is.
+     */
+    Block[] fork(Block parent, int length) throws GeneralSecurityException {
+        Block[] blocks = new Block[length];
+        Block prev = parent;
+        for (int b = 0; b < length; b++) {
+            Transaction coinbase = prev.getCoinbase();
+            KeyPair owner = owners.get(coinbase.getOutput(0).address);
+            if (owner == null)
+                throw new IllegalArgumentException("parent not mined by the workload");
+            // A distinct value keeps two forks of the same parent from having the same hash.
+            Transaction tx = new Transaction();
+            tx.addInput(coinbase.getHash(), 0);
+            double value = coinbase.getOutput(0).value * (1 - 1e-9 * ++forks);
+            tx.addOutput(value, randomKey().getPublic());
+            tx.addSignature(Fixtures.sign(owner.getPrivate(), tx.getRawDataToSign(0)), 0);
+            tx.finalize();
+            Block block = new Block(prev.getHash(), minerAddress());
+            block.addTransaction(tx);
+            block.finalize();
+            blocks[b] = block;
+            prev = block;
+        }
+        return blocks;
+    }
+
+    /**
+     * Drops the wallet coins that are neither in {@code tip} nor created by a transaction waiting
+     * in {@code txPool}, such as those of a transaction that lost to a double spend or of a block
+     * that lost to a fork.
+     */
+    void sync(UTXOPool tip, TransactionPool txPool) {
+        for (int i = wallet.size() - 1; i >= 0; i--) {
+            Coin c = wallet.get(i);
+            if (!tip.contains(c.utxo) && txPool.getTransaction(c.utxo.getTxHash()) == null)
+                removeAt(i);
+        }
+    }
+
+    private Transaction build(Coin[] in, int nOutputs, boolean keep)
+            throws GeneralSecurityException {
+        Transaction tx = new Transaction();
+        double value = 0;
+        for (Coin c : in) {
+            tx.addInput(c.utxo.getTxHash(), c.utxo.getIndex());
+            value += c.value;
+        }
+        KeyPair[] to = new KeyPair[nOutputs];
+        for (int i = 0; i < nOutputs; i++) {
+            to[i] = randomKey();
+            tx.addOutput(keep ? value * KEEP / nOutputs : value / nOutputs, to[i].getPublic());
+        }
+        for (int i = 0; i < in.length; i++)
+            tx.addSignature(Fixtures.sign(in[i].owner.getPrivate(), tx.getRawDataToSign(i)), i);
+        tx.finalize();
+        if (keep) {
+            for (int i = 0; i < nOutputs; i++)
+                add(new Coin(new UTXO(tx.getHash(), i), to[i], tx.getOutput(i).value));
+        }
+        return tx;
+    }
+
+    private KeyPair randomKey() {
+        return keys[random.nextInt(keys.length)];
+    }
+
+    private void add(Coin c) {
+        if (inWallet.add(c.utxo))
+            wallet.add(c);
+    }
+
+    /** @return a random coin, moved from the wallet to the spent coins */
+    private Coin take() {
+        Coin c = removeAt(random.nextInt(wallet.size()));
+        if (spent.size() < MAX_SPENT)
+            spent.add(c);
+        else
+            spent.set(random.nextInt(MAX_SPENT), c);
+        return c;
+    }
+
+    private Coin removeAt(int i) {
+        Coin c = wallet.get(i);
+        Coin last = wallet.remove(wallet.size() - 1);
+        if (i < wallet.size())
+            wallet.set(i, last);
+        inWallet.remove(c.utxo);
+        return c;
+    }
+}
@@ -0,0 +1,207 @@
+package jmh;
+
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Times the operations of {@code HotPathBenchmark} under JMH, one benchmark method per
+ * operation, with the batch sizes and UTXO pool sizes as parameters. JMH does not take
+ * benchmarks in the default package, and a named package cannot import from it, so each state
+ * builds its fixtures through {@code HotPathBenchmark.operations}, looked up by name once per
+ * trial, and keeps the operations it times. A benchmark method calls one of them, the only
+ * implementation its fork sees. Times are per call: a {@code handleTxs} call validates
+ * {@code batch} transactions.
+ *
+ * <pre>
+ * mvn -B -Pbench package
+ * java -jar target/benchmarks.jar jmh.HotPath.isValidTx
+ * java -jar target/benchmarks.jar jmh.HotPath.handleTxs -p batch=256 -p parallel=true
+ * java -jar target/benchmarks.jar jmh.HotPath.utxoPool -p entries=10000,100000
+ * </pre>
+ *
+ * The utxopool benchmarks fork with an 8 GB heap, which a pool of 10^7 entries needs.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HotPath {
+
+    /** Signature checks, validation of one transaction, hashing and the wire format */
+    @State(Scope.Benchmark)
+    public static class Transactions {
+        Callable<Object> verifySignature;
+        Callable<Object> isValidTx;
+        Callable<Object> getRawTx;
+        Callable<Object> finalizeTx;
+        Callable<Object> finalizeBlock;
+        Callable<Object> readBlock;
+        Callable<Object> viewBlock;
+        Callable<Object> viewBlockComputeHash;
+
+        @Setup
+        public void setUp() throws Exception {
+            Map<String, Callable<Object>> ops =
+                    operations("^(crypto|txhandler\\.isValidTx|transaction|block|wire)\\b", "");
+            verifySignature = get(ops, "crypto.verifySignature");
+            isValidTx = get(ops, "txhandler.isValidTx");
+            getRawTx = get(ops, "transaction.getRawTx");
+            finalizeTx = get(ops, "transaction.finalize");
+            finalizeBlock = get(ops, "block.finalize txs=100");
+            readBlock = get(ops, "wire.readBlock txs=100");
+            viewBlock = get(ops, "wire.viewBlock txs=100");
+            viewBlockComputeHash = get(ops, "wire.viewBlock+computeHash txs=100");
+        }
+    }
+
+    /** A batch of independent transactions for {@code TxHandler.handleTxs} */
+    @State(Scope.Benchmark)
+    public static class Batch {
+        @Param({ "1", "16", "256", "1024" })
+        public int batch;
+        @Param({ "false", "true" })
+        public boolean parallel;
+        Callable<Object> handleTxs;
+
+        @Setup
+        public void setUp() throws Exception {
+            String name = "txhandler.handleTxs " + (parallel ? "parallel " : "") + "batch=";
+            handleTxs = get(operations("^txhandler\\.handleTxs ", ""), name + batch);
+        }
+    }
+
+    /** A UTXO pool of {@code entries} outputs */
+    @State(Scope.Benchmark)
+    public static class Pool {
+        @Param({ "10000", "100000", "1000000", "10000000" })
+        public int entries;
+        Callable<Object> copy;
+        Callable<Object> getTxOutput;
+        Callable<Object> copyAndAdd;
+
+        @Setup
+        public void setUp() throws Exception {
+            Map<String, Callable<Object>> ops = operations("^utxopool", String.valueOf(entries));
+            copy = get(ops, "utxopool.copy entries=" + entries);
+            getTxOutput = get(ops, "utxopool.getTxOutput entries=" + entries);
+            copyAndAdd = get(ops, "utxopool.copy+add entries=" + entries);
+        }
+    }
+
+    /** Blocks for {@code BlockChain.addBlock}, on a linear chain and on two forks */
+    @State(Scope.Benchmark)
+    public static class Chain {
+        Callable<Object> linear;
+        Callable<Object> forking;
+
+        @Setup
+        public void setUp() throws Exception {
+            Map<String, Callable<Object>> ops = operations("^blockchain", "");
+            linear = get(ops, "blockchain.addBlock linear");
+            forking = get(ops, "blockchain.addBlock forking");
+        }
+    }
+
+    @Benchmark
+    public Object verifySignature(Transactions s) throws Exception {
+        return s.verifySignature.call();
+    }
+
+    @Benchmark
+    public Object isValidTx(Transactions s) throws Exception {
+        return s.isValidTx.call();
+    }
+
+    @Benchmark
+    public Object handleTxs(Batch s) throws Exception {
+        return s.handleTxs.call();
+    }
+
+    @Benchmark
+    @Fork(value = 1, jvmArgsAppend = "-Xmx8g")
+    public Object utxoPoolCopy(Pool s) throws Exception {
+        return s.copy.call();
+    }
+
+    @Benchmark
+    @Fork(value = 1, jvmArgsAppend = "-Xmx8g")
+    public Object utxoPoolGetTxOutput(Pool s) throws Exception {
+        return s.getTxOutput.call();
+    }
+
+    @Benchmark
+    @Fork(value = 1, jvmArgsAppend = "-Xmx8g")
+    public Object utxoPoolCopyAndAdd(Pool s) throws Exception {
+        return s.copyAndAdd.call();
+    }
+
+    @Benchmark
+    public Object transactionGetRawTx(Transactions s) throws Exception {
+        return s.getRawTx.call();
+    }
+
+    @Benchmark
+    public Object transactionFinalize(Transactions s) throws Exception {
+        return s.finalizeTx.call();
+    }
+
+    @Benchmark
+    public Object blockFinalize(Transactions s) throws Exception {
+        return s.finalizeBlock.call();
+    }
+
+    @Benchmark
+    public Object wireReadBlock(Transactions s) throws Exception {
+        return s.readBlock.call();
+    }
+
+    @Benchmark
+    public Object wireViewBlock(Transactions s) throws Exception {
+        return s.viewBlock.call();
+    }
+
+    @Benchmark
+    public Object wireViewBlockComputeHash(Transactions s) throws Exception {
+        return s.viewBlockComputeHash.call();
+    }
+
+    @Benchmark
+    public Object addBlockLinear(Chain s) throws Exception {
+        return s.linear.call();
+    }
+
+    @Benchmark
+    public Object addBlockForking(Chain s) throws Exception {
+        return s.forking.call();
+    }
+
+    /** @return the operations of {@code HotPathBenchmark.operations(filter, utxoSizes)} */
+    @SuppressWarnings("unchecked")
+    static Map<String, Callable<Object>> operations(String filter, String utxoSizes)
+            throws Exception {
+        return (Map<String, Callable<Object>>) Class.forName("HotPathBenchmark")
+                .getMethod("operations", String.class, String.class)
+                .invoke(null, filter, utxoSizes);
+    }
+
+    static Callable<Object> get(Map<String, Callable<Object>> ops, String name) {
+        Callable<Object> op = ops.get(name);
+        if (op == null)
+            throw new IllegalArgumentException("no benchmark " + name);
+        return op;
+    }
+}